@@ -0,0 +1,363 @@
+/*
+* Copyright 2012 Metamarkets Group Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import it.uniroma3.mat.extendedset.intset.ConciseSet;
+import it.uniroma3.mat.extendedset.intset.ConciseSetUtils;
+import it.uniroma3.mat.extendedset.intset.ImmutableConciseSet;
+import it.uniroma3.mat.extendedset.intset.IntSet;
+import it.uniroma3.mat.extendedset.utilities.random.MersenneTwisterFast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compression ratio and encoding speed of WAH, Concise and SECOMPAX over
+ * sets sweeping the density and the clustering of their integers.
+ * <p>
+ * Each set is a two-state Markov chain over {@link #UNIVERSE} integers,
+ * where the runs of present integers have an average length given by the
+ * clustering factor, a factor of 1 meaning integers drawn independently.
+ * The encoders are:
+ * <ul>
+ * <li><code>WAH</code>: {@link ConciseSet}, which always simulates WAH in
+ * this tree;</li>
+ * <li><code>Concise</code>: the words that Concise would write, counted
+ * from the WAH words by merging each literal with a single bit differing
+ * from the following fill into the fill, the mutable set being pinned to
+ * WAH. Its speeds are left empty;</li>
+ * <li><code>SECOMPAX-compact</code>: a {@link ConciseSet} re-encoded by
+ * {@link ImmutableConciseSet#compact(ConciseSet, boolean)}, the way the
+ * mutable sets are stored;</li>
+ * <li><code>SECOMPAX-sorted</code>: the single-pass encoder of
+ * {@link ImmutableConciseSet#newImmutableFromSorted(int...)}.</li>
+ * </ul>
+ * The size is reported in bits per set bit, the speeds in megabytes per
+ * second of 32-bit integers, encoded from a sorted array and decoded back
+ * into one, as the median of {@link #ROUNDS} timed rounds. Every decoded set
+ * is checked against its input.
+ * <p>
+ * Usage: <code>CompressionBenchmark [csv|json] [seed]</code>, the rows being
+ * printed to the standard output.
+ */
+public class CompressionBenchmark
+{
+  private static final int UNIVERSE = 1 << 22;
+  private static final double[] DENSITIES = {0.0001, 0.001, 0.01, 0.05, 0.1, 0.25, 0.5};
+  private static final int[] CLUSTERINGS = {1, 4, 16, 64};
+  private static final int WARMUP_ROUNDS = 2;
+  private static final int ROUNDS = 5;
+  // integers encoded by each timed round at least, so that sparse sets are timed over repetitions
+  private static final int MIN_ROUND_INTS = 1 << 20;
+  private static final int BATCH_SIZE = 1024;
+
+  private static final String[] COLUMNS = {
+      "density", "clustering", "elements", "codec", "words", "bitsPerSetBit", "encodeMBps", "decodeMBps"
+  };
+
+  // results of the timed loops, printed so that they are not optimized away
+  private static long sink = 0;
+
+  public static void main(String[] args)
+  {
+    final String format = args.length > 0 ? args[0] : "csv";
+    if (!format.equals("csv") && !format.equals("json")) {
+      throw new IllegalArgumentException("csv or json expected: " + format);
+    }
+    final long seed = args.length > 1 ? Long.parseLong(args[1]) : 0x5EC0;
+    final MersenneTwisterFast rnd = new MersenneTwisterFast(seed);
+
+    final Encoder[] encoders = {
+        new Encoder("WAH")
+        {
+          @Override
+          Object encode(int[] ints)
+          {
+            ConciseSet set = new ConciseSet(true);
+            for (int i : ints) {
+              set.add(i);
+            }
+            return set;
+          }
+
+          @Override
+          int getWordCount(Object encoded)
+          {
+            return ((ConciseSet) encoded).getlastWordIndex() + 1;
+          }
+
+          @Override
+          IntSet.IntIterator iterator(Object encoded)
+          {
+            return ((ConciseSet) encoded).iterator();
+          }
+        },
+        new Encoder("SECOMPAX-compact")
+        {
+          @Override
+          Object encode(int[] ints)
+          {
+            ConciseSet set = new ConciseSet(true);
+            for (int i : ints) {
+              set.add(i);
+            }
+            return ImmutableConciseSet.compact(set, true);
+          }
+
+          @Override
+          int getWordCount(Object encoded)
+          {
+            return ((ImmutableConciseSet) encoded).getLastWordIndex() + 1;
+          }
+
+          @Override
+          IntSet.IntIterator iterator(Object encoded)
+          {
+            return ((ImmutableConciseSet) encoded).iterator();
+          }
+        },
+        new Encoder("SECOMPAX-sorted")
+        {
+          @Override
+          Object encode(int[] ints)
+          {
+            return ImmutableConciseSet.newImmutableFromSorted(ints);
+          }
+
+          @Override
+          int getWordCount(Object encoded)
+          {
+            return ((ImmutableConciseSet) encoded).getLastWordIndex() + 1;
+          }
+
+          @Override
+          IntSet.IntIterator iterator(Object encoded)
+          {
+            return ((ImmutableConciseSet) encoded).iterator();
+          }
+        }
+    };
+
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for (double density : DENSITIES) {
+      for (int clustering : CLUSTERINGS) {
+        int[] ints = markovSet(rnd, density, clustering);
+        ConciseSet wah = null;
+        for (Encoder encoder : encoders) {
+          Object encoded = encoder.encode(ints);
+          check(encoder, encoded, ints);
+          double encodeSpeed = encodeSpeed(encoder, ints);
+          double decodeSpeed = decodeSpeed(encoder, encoded, ints.length);
+          rows.add(row(density, clustering, ints, encoder.name, encoder.getWordCount(encoded), encodeSpeed, decodeSpeed));
+          if (wah == null) {
+            wah = (ConciseSet) encoded;
+          }
+        }
+        rows.add(row(density, clustering, ints, "Concise", getConciseWordCount(wah.getWords()), Double.NaN, Double.NaN));
+      }
+    }
+
+    if (format.equals("csv")) {
+      printCsv(rows);
+    } else {
+      printJson(rows);
+    }
+    System.err.format("checksum %d%n", sink);
+  }
+
+  /**
+   * Increasing integers given by a two-state Markov chain, where runs of
+   * present integers have an average length of <code>clustering</code>
+   * and the overall density is <code>density</code>
+   */
+  private static int[] markovSet(MersenneTwisterFast rnd, double density, int clustering)
+  {
+    // independent integers leave a run with probability 1 - density
+    double leave = clustering == 1 ? 1 - density : 1.0 / clustering;
+    double enter = density * leave / (1 - density);
+    int[] ints = new int[UNIVERSE];
+    int n = 0;
+    boolean present = rnd.nextDouble() < density;
+    for (int i = 0; i < UNIVERSE; i++) {
+      if (present) {
+        ints[n++] = i;
+      }
+      present = rnd.nextDouble() < (present ? 1 - leave : enter);
+    }
+    return Arrays.copyOf(ints, n);
+  }
+
+  /**
+   * Counts the words of the Concise encoding of a set from its WAH words:
+   * Concise stores a literal followed by a fill in the fill itself when the
+   * literal has a single bit differing from the fill
+   */
+  private static int getConciseWordCount(int[] wahWords)
+  {
+    int count = wahWords.length;
+    for (int i = 0; i + 1 < wahWords.length; i++) {
+      int literal = wahWords[i];
+      int fill = wahWords[i + 1];
+      if ((ConciseSetUtils.isZeroSequence(fill) && ConciseSetUtils.isLiteralWithSingleOneBit(literal))
+          || (ConciseSetUtils.isOneSequence(fill) && ConciseSetUtils.isLiteralWithSingleZeroBit(literal))) {
+        count--;
+        // the merged fill cannot take another literal
+        i++;
+      }
+    }
+    return count;
+  }
+
+  private static void check(Encoder encoder, Object encoded, int[] ints)
+  {
+    int[] decoded = new int[ints.length];
+    int n = 0;
+    IntSet.IntIterator itr = encoder.iterator(encoded);
+    while (itr.hasNext()) {
+      if (n == decoded.length) {
+        throw new IllegalStateException(encoder.name + " decodes more integers than encoded");
+      }
+      decoded[n++] = itr.next();
+    }
+    if (!Arrays.equals(decoded, ints)) {
+      throw new IllegalStateException(encoder.name + " does not decode the encoded integers");
+    }
+  }
+
+  /**
+   * Gets the encoding speed in megabytes of integers per second
+   */
+  private static double encodeSpeed(Encoder encoder, int[] ints)
+  {
+    int repetitions = getRepetitions(ints.length);
+    long[] times = new long[ROUNDS];
+    for (int round = -WARMUP_ROUNDS; round < ROUNDS; round++) {
+      long t = System.nanoTime();
+      for (int i = 0; i < repetitions; i++) {
+        sink += encoder.getWordCount(encoder.encode(ints));
+      }
+      if (round >= 0) {
+        times[round] = System.nanoTime() - t;
+      }
+    }
+    return getSpeed(times, (long) repetitions * ints.length);
+  }
+
+  /**
+   * Gets the decoding speed in megabytes of integers per second
+   */
+  private static double decodeSpeed(Encoder encoder, Object encoded, int size)
+  {
+    int repetitions = getRepetitions(size);
+    int[] batch = new int[BATCH_SIZE];
+    long[] times = new long[ROUNDS];
+    for (int round = -WARMUP_ROUNDS; round < ROUNDS; round++) {
+      long t = System.nanoTime();
+      for (int i = 0; i < repetitions; i++) {
+        IntSet.IntIterator itr = encoder.iterator(encoded);
+        int n;
+        while ((n = itr.nextBatch(batch)) > 0) {
+          sink += batch[n - 1];
+        }
+      }
+      if (round >= 0) {
+        times[round] = System.nanoTime() - t;
+      }
+    }
+    return getSpeed(times, (long) repetitions * size);
+  }
+
+  private static int getRepetitions(int size)
+  {
+    return Math.max(1, MIN_ROUND_INTS / Math.max(1, size));
+  }
+
+  private static double getSpeed(long[] times, long ints)
+  {
+    Arrays.sort(times);
+    return ints * 4 / 1e6 / (times[ROUNDS / 2] / 1e9);
+  }
+
+  private static Object[] row(
+      double density, int clustering, int[] ints, String codec, int words, double encodeSpeed, double decodeSpeed
+  )
+  {
+    double bitsPerSetBit = ints.length == 0 ? Double.NaN : words * 32.0 / ints.length;
+    return new Object[]{density, clustering, ints.length, codec, words, bitsPerSetBit, encodeSpeed, decodeSpeed};
+  }
+
+  private static void printCsv(List<Object[]> rows)
+  {
+    StringBuilder line = new StringBuilder();
+    for (String column : COLUMNS) {
+      line.append(line.length() == 0 ? "" : ",").append(column);
+    }
+    System.out.println(line);
+    for (Object[] row : rows) {
+      line.setLength(0);
+      for (int i = 0; i < row.length; i++) {
+        line.append(i == 0 ? "" : ",").append(format(row[i], ""));
+      }
+      System.out.println(line);
+    }
+  }
+
+  private static void printJson(List<Object[]> rows)
+  {
+    System.out.println("[");
+    for (int r = 0; r < rows.size(); r++) {
+      Object[] row = rows.get(r);
+      StringBuilder line = new StringBuilder("  {");
+      for (int i = 0; i < row.length; i++) {
+        String value = row[i] instanceof String ? "\"" + row[i] + "\"" : format(row[i], "null");
+        line.append(i == 0 ? "" : ", ").append('"').append(COLUMNS[i]).append("\": ").append(value);
+      }
+      line.append(r + 1 < rows.size() ? "}," : "}");
+      System.out.println(line);
+    }
+    System.out.println("]");
+  }
+
+  /**
+   * Formats a value independently of the locale, with the given text for
+   * missing numbers
+   */
+  private static String format(Object value, String missing)
+  {
+    if (value instanceof Double) {
+      double d = (Double) value;
+      return Double.isNaN(d) ? missing : String.format(Locale.ROOT, "%.4f", d);
+    }
+    return String.valueOf(value);
+  }
+
+  private static abstract class Encoder
+  {
+    final String name;
+
+    Encoder(String name)
+    {
+      this.name = name;
+    }
+
+    abstract Object encode(int[] ints);
+
+    abstract int getWordCount(Object encoded);
+
+    abstract IntSet.IntIterator iterator(Object encoded);
+  }
+}
@@ -0,0 +1,210 @@
+/*
+* Copyright 2012 Metamarkets Group Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import it.uniroma3.mat.extendedset.intset.ConciseSetUtils;
+import it.uniroma3.mat.extendedset.intset.ImmutableConciseSet;
+import it.uniroma3.mat.extendedset.intset.IntSet;
+import it.uniroma3.mat.extendedset.utilities.random.MersenneTwisterFast;
+
+import java.nio.IntBuffer;
+
+/**
+ * Micro-benchmarks of the SECOMPAX word decoding loops of
+ * {@link ImmutableConciseSet}, reported as decoded words per second.
+ */
+public class ImmutableConciseSetBenchmark
+{
+  private static final int WORDS = 1 << 18;
+  private static final int ROUNDS = 10;
+  private static final int BATCH_SIZE = 1024;
+
+  public static void main(String[] args)
+  {
+    final long seed = args.length > 0 ? Long.parseLong(args[0]) : 0x5EC0;
+    final int[] words = randomWords(new MersenneTwisterFast(seed), WORDS);
+
+    // warm up
+    for (int i = 0; i < 5; i++) {
+      classifyWithPredicates(words);
+      classifyWithTable(words);
+      decodeSizeAndLast(words);
+    }
+
+    long t = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      classifyWithPredicates(words);
+    }
+    report("Classify (predicate chain):", t, (long) ROUNDS * words.length);
+
+    t = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      classifyWithTable(words);
+    }
+    report("Classify (header table):   ", t, (long) ROUNDS * words.length);
+
+    t = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      decodeSizeAndLast(words);
+    }
+    report("size() + getLast():        ", t, (long) ROUNDS * words.length);
+
+    t = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      iterate(words);
+    }
+    report("iterator():                ", t, (long) ROUNDS * words.length);
+
+    t = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      iterateBatches(words);
+    }
+    report("iterator().nextBatch():    ", t, (long) ROUNDS * words.length);
+
+    t = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      iterateWords(words);
+    }
+    report("newWordIterator():         ", t, (long) ROUNDS * words.length);
+  }
+
+  /**
+   * Generates a mix of literals, short fills, F1-L-F2 and L1-F-L2 words in
+   * equal proportions, so that the word type is unpredictable
+   */
+  private static int[] randomWords(MersenneTwisterFast rnd, int count)
+  {
+    int[] words = new int[count];
+    for (int i = 0; i < count; i++) {
+      switch (rnd.nextInt(5)) {
+        case 0:
+          words[i] = ConciseSetUtils.ALL_ZEROS_LITERAL | rnd.nextInt();
+          break;
+        case 1:
+          words[i] = ConciseSetUtils.SEQUENCE_0_FILL | (1 + rnd.nextInt(8));
+          break;
+        case 2:
+          words[i] = ConciseSetUtils.SEQUENCE_1_FILL | (1 + rnd.nextInt(8));
+          break;
+        case 3:
+          // any dirty byte and fill types, fill counts up to 7
+          words[i] = ConciseSetUtils.SEQUENCE_F1_L_F2 | (rnd.nextInt() & 0x1f07ff07);
+          break;
+        default:
+          // header from 0010 to 0101, fill count up to 7
+          words[i] = ((2 + rnd.nextInt(4)) << 28) | (rnd.nextInt() & 0x0f87ffff);
+      }
+    }
+    return words;
+  }
+
+  private static int legacyKind(int w)
+  {
+    if (ConciseSetUtils.is1_fill(w)) {
+      return ConciseSetUtils.WORD_1_FILL;
+    }
+    if (ConciseSetUtils.is0_fill(w)) {
+      return ConciseSetUtils.WORD_0_FILL;
+    }
+    if (ConciseSetUtils.isLiteral(w)) {
+      return ConciseSetUtils.WORD_LITERAL;
+    }
+    if (ConciseSetUtils.isF1_L_F2(w)) {
+      return ConciseSetUtils.WORD_F_L_F;
+    }
+    if (ConciseSetUtils.is0L1_F_0L2(w) || ConciseSetUtils.is0L_F_1L(w)
+        || ConciseSetUtils.is1L1_F_1L2(w) || ConciseSetUtils.is1L_F_0L(w)) {
+      return ConciseSetUtils.WORD_L_F_L;
+    }
+    return -1;
+  }
+
+  private static long classifyWithPredicates(int[] words)
+  {
+    long blocks = 0;
+    for (int w : words) {
+      switch (legacyKind(w)) {
+        case ConciseSetUtils.WORD_LITERAL:
+          blocks++;
+          break;
+        case ConciseSetUtils.WORD_0_FILL:
+        case ConciseSetUtils.WORD_1_FILL:
+          blocks += ConciseSetUtils.getSequenceCount(w);
+          break;
+        case ConciseSetUtils.WORD_F_L_F:
+          blocks += ConciseSetUtils.getFLFFirstFillCount(w) + 1 + ConciseSetUtils.getFLFSecondFillCount(w);
+          break;
+        default:
+          blocks += ConciseSetUtils.getLFLFillCount(w) + 2;
+      }
+    }
+    return blocks;
+  }
+
+  private static long classifyWithTable(int[] words)
+  {
+    long blocks = 0;
+    for (int w : words) {
+      blocks += ConciseSetUtils.getWordBlockCount(w);
+    }
+    return blocks;
+  }
+
+  private static long decodeSizeAndLast(int[] words)
+  {
+    ImmutableConciseSet set = new ImmutableConciseSet(IntBuffer.wrap(words));
+    return set.size() + set.getLast();
+  }
+
+  private static long iterate(int[] words)
+  {
+    long sum = 0;
+    IntSet.IntIterator itr = new ImmutableConciseSet(IntBuffer.wrap(words)).iterator();
+    while (itr.hasNext()) {
+      sum += itr.next();
+    }
+    return sum;
+  }
+
+  private static long iterateBatches(int[] words)
+  {
+    long sum = 0;
+    int[] batch = new int[BATCH_SIZE];
+    IntSet.IntIterator itr = new ImmutableConciseSet(IntBuffer.wrap(words)).iterator();
+    int n;
+    while ((n = itr.nextBatch(batch)) > 0) {
+      for (int i = 0; i < n; i++) {
+        sum += batch[i];
+      }
+    }
+    return sum;
+  }
+
+  private static long iterateWords(int[] words)
+  {
+    long sum = 0;
+    ImmutableConciseSet.WordIterator itr = new ImmutableConciseSet(IntBuffer.wrap(words)).newWordIterator();
+    while (itr.hasNext()) {
+      sum += itr.nextWord();
+    }
+    return sum;
+  }
+
+  private static void report(String label, long start, long words)
+  {
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.format("%s %8.1f Mwords/s%n", label, words / seconds / 1e6);
+  }
+}
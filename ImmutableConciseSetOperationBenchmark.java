@@ -0,0 +1,161 @@
+/*
+* Copyright 2012 Metamarkets Group Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import it.uniroma3.mat.extendedset.intset.ImmutableConciseSet;
+import it.uniroma3.mat.extendedset.utilities.random.MersenneTwisterFast;
+
+import java.util.Arrays;
+
+/**
+ * Micro-benchmarks of the set operations of {@link ImmutableConciseSet},
+ * comparing the two-operand union and intersection with the n-ary ones
+ */
+public class ImmutableConciseSetOperationBenchmark
+{
+  private static final int PAIRS = 200;
+  private static final int ROUNDS = 5;
+  private static final int UNIVERSE = 1 << 20;
+
+  public static void main(String[] args)
+  {
+    final long seed = args.length > 0 ? Long.parseLong(args[0]) : 0x5EC0;
+    final MersenneTwisterFast rnd = new MersenneTwisterFast(seed);
+
+    benchmark("sparse   (0.1%)", randomSets(rnd, 0.001));
+    benchmark("medium   (5%)  ", randomSets(rnd, 0.05));
+    benchmark("dense    (50%) ", randomSets(rnd, 0.5));
+    benchmark("clustered      ", clusteredSets(rnd));
+  }
+
+  private static void benchmark(String label, ImmutableConciseSet[] sets)
+  {
+    // warm up
+    for (int i = 0; i < 3; i++) {
+      unionPairs(sets);
+      unionPairsNary(sets);
+      intersectionPairs(sets);
+      intersectionPairsNary(sets);
+    }
+
+    long t = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      unionPairs(sets);
+    }
+    long union = System.nanoTime() - t;
+
+    t = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      unionPairsNary(sets);
+    }
+    long unionNary = System.nanoTime() - t;
+
+    t = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      intersectionPairs(sets);
+    }
+    long intersection = System.nanoTime() - t;
+
+    t = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      intersectionPairsNary(sets);
+    }
+    long intersectionNary = System.nanoTime() - t;
+
+    final long ops = (long) ROUNDS * PAIRS;
+    System.out.format(
+        "%s union %8.2f us/op (n-ary %8.2f)   intersection %8.2f us/op (n-ary %8.2f)%n",
+        label,
+        union / 1e3 / ops,
+        unionNary / 1e3 / ops,
+        intersection / 1e3 / ops,
+        intersectionNary / 1e3 / ops
+    );
+  }
+
+  private static ImmutableConciseSet[] randomSets(MersenneTwisterFast rnd, double density)
+  {
+    ImmutableConciseSet[] sets = new ImmutableConciseSet[2 * PAIRS];
+    int[] ints = new int[UNIVERSE];
+    for (int i = 0; i < sets.length; i++) {
+      int n = 0;
+      for (int j = 0; j < UNIVERSE; j++) {
+        if (rnd.nextDouble() < density) {
+          ints[n++] = j;
+        }
+      }
+      sets[i] = ImmutableConciseSet.newImmutableFromSorted(Arrays.copyOf(ints, n));
+    }
+    return sets;
+  }
+
+  /**
+   * Runs of consecutive integers separated by gaps, both with random lengths
+   */
+  private static ImmutableConciseSet[] clusteredSets(MersenneTwisterFast rnd)
+  {
+    ImmutableConciseSet[] sets = new ImmutableConciseSet[2 * PAIRS];
+    int[] ints = new int[UNIVERSE];
+    for (int i = 0; i < sets.length; i++) {
+      int n = 0;
+      int j = rnd.nextInt(1000);
+      while (j < UNIVERSE) {
+        int end = Math.min(UNIVERSE, j + 1 + rnd.nextInt(2000));
+        while (j < end) {
+          ints[n++] = j++;
+        }
+        j += 1 + rnd.nextInt(5000);
+      }
+      sets[i] = ImmutableConciseSet.newImmutableFromSorted(Arrays.copyOf(ints, n));
+    }
+    return sets;
+  }
+
+  private static long unionPairs(ImmutableConciseSet[] sets)
+  {
+    long sum = 0;
+    for (int i = 0; i < sets.length; i += 2) {
+      sum += ImmutableConciseSet.union(sets[i], sets[i + 1]).size();
+    }
+    return sum;
+  }
+
+  private static long unionPairsNary(ImmutableConciseSet[] sets)
+  {
+    long sum = 0;
+    for (int i = 0; i < sets.length; i += 2) {
+      sum += ImmutableConciseSet.union(Arrays.asList(sets[i], sets[i + 1])).size();
+    }
+    return sum;
+  }
+
+  private static long intersectionPairs(ImmutableConciseSet[] sets)
+  {
+    long sum = 0;
+    for (int i = 0; i < sets.length; i += 2) {
+      sum += ImmutableConciseSet.intersection(sets[i], sets[i + 1]).size();
+    }
+    return sum;
+  }
+
+  private static long intersectionPairsNary(ImmutableConciseSet[] sets)
+  {
+    long sum = 0;
+    for (int i = 0; i < sets.length; i += 2) {
+      sum += ImmutableConciseSet.intersection(Arrays.asList(sets[i], sets[i + 1])).size();
+    }
+    return sum;
+  }
+}
@@ -21,14 +21,25 @@ import junit.framework.Assert;
 //import org.junit.Test;
 import it.uniroma3.mat.extendedset.intset.ConciseSet;
 import it.uniroma3.mat.extendedset.intset.ConciseSetUtils;
+import it.uniroma3.mat.extendedset.intset.DenseBitmapCache;
 import it.uniroma3.mat.extendedset.intset.ImmutableConciseSet;
+import it.uniroma3.mat.extendedset.intset.ImmutableConciseSetExpression;
+import it.uniroma3.mat.extendedset.intset.ImmutableConciseSetFile;
 import it.uniroma3.mat.extendedset.intset.IntSet;
+import it.uniroma3.mat.extendedset.intset.OperationCache;
+import it.uniroma3.mat.extendedset.intset.RunCursor;
 import it.uniroma3.mat.extendedset.intset.ImmutableConciseSet.WordIterator;
+import it.uniroma3.mat.extendedset.utilities.IntList;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 
 
@@ -1797,6 +1808,953 @@ public class ImmutableConciseSetTest
     verifyComplement(expected, testSet, length);
   }
 
+  public static void testFLFWordDecoding()
+  {
+    // 1-fill of 2 blocks, literal with dirty byte 0x05 in position 1, 1-fill of 1 block
+    int[] words = {0x75020501};
+    ImmutableConciseSet set = new ImmutableConciseSet(IntBuffer.wrap(words));
+
+    List<Integer> expected = Lists.newArrayList();
+    for (int i = 0; i < 62; i++) {
+      expected.add(i);
+    }
+    expected.add(70);
+    expected.add(72);
+    for (int i = 93; i < 124; i++) {
+      expected.add(i);
+    }
+
+    verifyDecoding(expected, set);
+  }
+
+  public static void testLFLWordDecoding()
+  {
+    // literal with dirty byte 0x03 in position 0, 1-fill of 1 block, literal with dirty byte 0x80 in position 2
+    int[] words = {0x22810380};
+    ImmutableConciseSet set = new ImmutableConciseSet(IntBuffer.wrap(words));
+
+    List<Integer> expected = Lists.newArrayList();
+    expected.add(0);
+    expected.add(1);
+    for (int i = 31; i < 62; i++) {
+      expected.add(i);
+    }
+    expected.add(85);
+
+    verifyDecoding(expected, set);
+  }
+
+  public static void testSkipIndex()
+  {
+    // enough words to need several checkpoints: literal with bit 0 set, then a 0-fill of 1 block
+    int[] words = new int[1000];
+    for (int i = 0; i < words.length; i += 2) {
+      words[i] = 0x80000001;
+      words[i + 1] = 0x00000001;
+    }
+    ImmutableConciseSet set = new ImmutableConciseSet(IntBuffer.wrap(words));
+
+    for (int i = 0; i < words.length / 2; i++) {
+      Assert.assertEquals(62 * i, set.get(i));
+      Assert.assertTrue(set.contains(62 * i));
+      Assert.assertFalse(set.contains(62 * i + 31));
+      Assert.assertEquals(i, set.indexOf(62 * i));
+      Assert.assertEquals(-1, set.indexOf(62 * i + 1));
+    }
+    Assert.assertFalse(set.contains(62 * 500));
+
+    IntSet.IntIterator itr = set.iterator();
+    itr.skipAllBefore(62 * 300 - 5);
+    Assert.assertEquals(62 * 300, itr.next());
+    itr.skipAllBefore(62 * 499);
+    Assert.assertEquals(62 * 499, itr.next());
+    Assert.assertFalse(itr.hasNext());
+  }
+
+  public static void testSerializationHeader()
+  {
+    // F1-L-F2 word followed by a literal
+    int[] words = {0x75020501, 0x80000005};
+    ImmutableConciseSet set = new ImmutableConciseSet(IntBuffer.wrap(words));
+    List<Integer> expected = Lists.newArrayList();
+    for (int i = 0; i < 62; i++) {
+      expected.add(i);
+    }
+    expected.add(70);
+    expected.add(72);
+    for (int i = 93; i < 124; i++) {
+      expected.add(i);
+    }
+    expected.add(124);
+    expected.add(126);
+
+    byte[] bytes = set.toBytes();
+    Assert.assertEquals((ImmutableConciseSet.HEADER_INTS + words.length) * 4, bytes.length);
+    ImmutableConciseSet read = new ImmutableConciseSet(ByteBuffer.wrap(bytes));
+    verifyDecoding(expected, read);
+    Assert.assertEquals(124 + 2, read.getLast());
+
+    // headerless buffers are still read as plain words
+    ByteBuffer legacy = ByteBuffer.allocate(words.length * 4);
+    legacy.asIntBuffer().put(words);
+    verifyDecoding(expected, new ImmutableConciseSet(legacy));
+
+    // empty sets keep their header
+    ImmutableConciseSet empty = new ImmutableConciseSet(ByteBuffer.wrap(new ImmutableConciseSet().toBytes()));
+    Assert.assertEquals(0, empty.size());
+    Assert.assertEquals(-1, empty.getLast());
+  }
+
+  public static void testSerializationHeaderConciseCodec()
+  {
+    ConciseSet concise = new ConciseSet();
+    concise.add(1);
+    concise.add(2);
+    concise.add(100);
+    int[] words = concise.getWords();
+
+    ByteBuffer buf = ByteBuffer.allocate((ImmutableConciseSet.HEADER_INTS + words.length) * 4);
+    buf.asIntBuffer()
+       .put(ImmutableConciseSet.SERIAL_MAGIC)
+       .put((ImmutableConciseSet.SERIAL_VERSION << 8) | ImmutableConciseSet.CODEC_CONCISE)
+       .put(concise.size())
+       .put(concise.last())
+       .put(words.length)
+       .put(words);
+
+    verifyDecoding(Lists.newArrayList(1, 2, 100), new ImmutableConciseSet(buf));
+  }
+
+  public static void testSerializationHeaderUnsupported()
+  {
+    byte[] bytes = ImmutableConciseSet.newImmutableFromSorted(1, 2, 100, 5000).toBytes();
+
+    // a header of a later version is not read as legacy words
+    ByteBuffer buf = ByteBuffer.wrap(bytes.clone());
+    buf.putInt(4, (2 << 8) | ImmutableConciseSet.CODEC_SECOMPAX);
+    try {
+      new ImmutableConciseSet(buf);
+      Assert.fail();
+    }
+    catch (IllegalArgumentException e) {
+      // version 2 is unknown
+    }
+
+    buf = ByteBuffer.wrap(bytes.clone());
+    buf.putInt(4, (ImmutableConciseSet.SERIAL_VERSION << 8) | 7);
+    try {
+      new ImmutableConciseSet(buf);
+      Assert.fail();
+    }
+    catch (IllegalArgumentException e) {
+      // codec 7 is unknown
+    }
+
+    buf = ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length - 4));
+    try {
+      new ImmutableConciseSet(buf);
+      Assert.fail();
+    }
+    catch (IllegalArgumentException e) {
+      // a word is missing
+    }
+  }
+
+  public static void testUnionLiteralsFillingABlock()
+  {
+    // the first two literals already fill the block
+    List<ImmutableConciseSet> sets = Arrays.asList(
+        new ImmutableConciseSet(IntBuffer.wrap(new int[]{0x8000ffff})),
+        new ImmutableConciseSet(IntBuffer.wrap(new int[]{0xffff0000})),
+        new ImmutableConciseSet(IntBuffer.wrap(new int[]{0x80000001}))
+    );
+
+    List<Integer> expected = Lists.newArrayList();
+    for (int i = 0; i < 31; i++) {
+      expected.add(i);
+    }
+    verifyDecoding(expected, ImmutableConciseSet.union(sets));
+  }
+
+  public static void testParallelUnion()
+  {
+    List<ImmutableConciseSet> sets = Lists.newArrayList();
+    ConciseSet expected = new ConciseSet();
+    for (int i = 0; i < 100; i++) {
+      ConciseSet set = new ConciseSet();
+      // overlapping sparse bits and a dense run per set
+      for (int j = 0; j < 50; j++) {
+        set.add(i * 97 + j * 1013);
+      }
+      for (int j = i * 300; j < i * 300 + 100; j++) {
+        set.add(j);
+      }
+      expected.addAll(set);
+      sets.add(ImmutableConciseSet.compact(set));
+    }
+
+    List<Integer> expectedList = Lists.newArrayList();
+    for (int i : expected.toArray()) {
+      expectedList.add(i);
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      for (int threshold : new int[]{1, 2, 7, 100}) {
+        ImmutableConciseSet union = ImmutableConciseSet.parallelUnion(sets, pool, threshold);
+        verifyDecoding(expectedList, union);
+      }
+    }
+    finally {
+      pool.shutdown();
+    }
+    verifyDecoding(expectedList, ImmutableConciseSet.union(sets));
+  }
+
+  public static void testOperationSizes()
+  {
+    ConciseSet concise1 = new ConciseSet();
+    ConciseSet concise2 = new ConciseSet();
+    ConciseSet concise3 = new ConciseSet();
+    // sparse bits, a long run and a run crossing the end of the other set
+    for (int i = 0; i < 5000; i += 7) {
+      concise1.add(i);
+    }
+    for (int i = 1000; i < 4000; i++) {
+      concise2.add(i);
+    }
+    for (int i = 4500; i < 9000; i += 3) {
+      concise2.add(i);
+      concise3.add(i + 1);
+    }
+    concise3.add(1001);
+
+    ImmutableConciseSet set1 = ImmutableConciseSet.compact(concise1);
+    ImmutableConciseSet set2 = ImmutableConciseSet.compact(concise2);
+    ImmutableConciseSet set3 = ImmutableConciseSet.compact(concise3);
+
+    Assert.assertEquals(concise1.intersectionSize(concise2), ImmutableConciseSet.intersectionSize(set1, set2));
+    Assert.assertEquals(concise1.unionSize(concise2), ImmutableConciseSet.unionSize(set1, set2));
+    Assert.assertEquals(concise1.differenceSize(concise2), ImmutableConciseSet.differenceSize(set1, set2));
+    Assert.assertEquals(concise2.differenceSize(concise1), ImmutableConciseSet.differenceSize(set2, set1));
+    Assert.assertEquals(
+        concise1.symmetricDifferenceSize(concise2),
+        ImmutableConciseSet.symmetricDifferenceSize(set1, set2)
+    );
+
+    List<ImmutableConciseSet> sets = Arrays.asList(set1, set2, set3);
+    Assert.assertEquals(
+        concise1.union(concise2).union(concise3).size(),
+        ImmutableConciseSet.unionSize(sets)
+    );
+    Assert.assertEquals(
+        concise1.intersection(concise2).intersection(concise3).size(),
+        ImmutableConciseSet.intersectionSize(sets)
+    );
+
+    Assert.assertEquals(0, ImmutableConciseSet.intersectionSize(set1, new ImmutableConciseSet()));
+    Assert.assertEquals(set1.size(), ImmutableConciseSet.unionSize(set1, new ImmutableConciseSet()));
+    Assert.assertEquals(0, ImmutableConciseSet.intersectionSize(Arrays.<ImmutableConciseSet>asList()));
+  }
+
+  public static void testSizesOfManyChunks()
+  {
+    // more sets than a chunk, the last chunk being only counted
+    List<ImmutableConciseSet> sets = Lists.newArrayList();
+    for (int i = 0; i < 25001; i++) {
+      sets.add(ImmutableConciseSet.newImmutableFromSorted(i % 3, 100 + i % 7, 1000000 + i));
+    }
+    Assert.assertEquals(ImmutableConciseSet.union(sets).size(), ImmutableConciseSet.unionSize(sets));
+    Assert.assertEquals(3 + 7 + 25001, ImmutableConciseSet.unionSize(sets));
+    Assert.assertEquals(0, ImmutableConciseSet.intersectionSize(sets));
+
+    sets.clear();
+    for (int i = 0; i < 25001; i++) {
+      sets.add(ImmutableConciseSet.newImmutableFromSorted(5, 64, 1000000 + i % 2, 2000000));
+    }
+    Assert.assertEquals(3, ImmutableConciseSet.intersectionSize(sets));
+    Assert.assertEquals(5, ImmutableConciseSet.unionSize(sets));
+  }
+
+  public static void testExpression()
+  {
+    ConciseSet concise1 = new ConciseSet();
+    ConciseSet concise2 = new ConciseSet();
+    ConciseSet concise3 = new ConciseSet();
+    for (int i = 0; i < 3000; i += 5) {
+      concise1.add(i);
+    }
+    for (int i = 500; i < 2500; i++) {
+      concise2.add(i);
+    }
+    for (int i = 0; i < 4000; i += 2) {
+      concise3.add(i);
+    }
+
+    ImmutableConciseSetExpression set1 = ImmutableConciseSetExpression.of(ImmutableConciseSet.compact(concise1));
+    ImmutableConciseSetExpression set2 = ImmutableConciseSetExpression.of(ImmutableConciseSet.compact(concise2));
+    ImmutableConciseSetExpression set3 = ImmutableConciseSetExpression.of(ImmutableConciseSet.compact(concise3));
+
+    // (set1 OR set2) AND NOT set3
+    ImmutableConciseSetExpression expression = ImmutableConciseSetExpression.and(
+        ImmutableConciseSetExpression.or(set1, set2),
+        ImmutableConciseSetExpression.not(set3)
+    );
+    List<Integer> expected = Lists.newArrayList();
+    for (int i : concise1.union(concise2).difference(concise3).toArray()) {
+      expected.add(i);
+    }
+    verifyDecoding(expected, expression.evaluate());
+    Assert.assertEquals(expected.size(), expression.size());
+
+    // NOT set3 is bounded by the greatest element of set3, or by the given length
+    expected.clear();
+    for (int i = 1; i < 3998; i += 2) {
+      expected.add(i);
+    }
+    verifyDecoding(expected, ImmutableConciseSetExpression.not(set3).evaluate());
+    expected.add(3999);
+    expected.add(4000);
+    expected.add(4001);
+    verifyDecoding(expected, ImmutableConciseSetExpression.not(set3).evaluate(4002));
+    Assert.assertEquals(expected.size(), ImmutableConciseSetExpression.not(set3).size(4002));
+  }
+
+  public static void testDifference()
+  {
+    ConciseSet concise1 = new ConciseSet();
+    ConciseSet concise2 = new ConciseSet();
+    // a run, sparse bits and a run longer than the other set
+    for (int i = 100; i < 3000; i++) {
+      concise1.add(i);
+    }
+    for (int i = 0; i < 2000; i += 3) {
+      concise2.add(i);
+    }
+    for (int i = 2500; i < 6000; i++) {
+      concise2.add(i);
+    }
+    concise1.add(7000);
+
+    ImmutableConciseSet set1 = ImmutableConciseSet.compact(concise1);
+    ImmutableConciseSet set2 = ImmutableConciseSet.compact(concise2);
+
+    List<Integer> expected = Lists.newArrayList();
+    for (int i : concise1.difference(concise2).toArray()) {
+      expected.add(i);
+    }
+    verifyDecoding(expected, ImmutableConciseSet.difference(set1, set2));
+
+    expected.clear();
+    for (int i : concise2.difference(concise1).toArray()) {
+      expected.add(i);
+    }
+    verifyDecoding(expected, ImmutableConciseSet.difference(set2, set1));
+
+    expected.clear();
+    for (int i : concise1.symmetricDifference(concise2).toArray()) {
+      expected.add(i);
+    }
+    verifyDecoding(expected, ImmutableConciseSet.symmetricDifference(set1, set2));
+
+    Assert.assertEquals(0, ImmutableConciseSet.difference(set1, set1).size());
+    Assert.assertEquals(0, ImmutableConciseSet.symmetricDifference(set2, set2).size());
+    Assert.assertEquals(set1.size(), ImmutableConciseSet.difference(set1, new ImmutableConciseSet()).size());
+    Assert.assertEquals(set2.size(), ImmutableConciseSet.symmetricDifference(new ImmutableConciseSet(), set2).size());
+  }
+
+  public static void testThreshold()
+  {
+    ConciseSet concise1 = new ConciseSet();
+    ConciseSet concise2 = new ConciseSet();
+    ConciseSet concise3 = new ConciseSet();
+    for (int i = 0; i < 1000; i++) {
+      concise1.add(i);
+    }
+    for (int i = 500; i < 2000; i += 2) {
+      concise2.add(i);
+    }
+    for (int i = 0; i < 3000; i += 3) {
+      concise3.add(i);
+    }
+    List<ImmutableConciseSet> sets = Arrays.asList(
+        ImmutableConciseSet.compact(concise1),
+        ImmutableConciseSet.compact(concise2),
+        ImmutableConciseSet.compact(concise3)
+    );
+
+    for (int minCount = 1; minCount <= 3; minCount++) {
+      List<Integer> expected = Lists.newArrayList();
+      List<Integer> expectedCounts = Lists.newArrayList();
+      for (int i = 0; i < 3000; i++) {
+        int count = (concise1.contains(i) ? 1 : 0) + (concise2.contains(i) ? 1 : 0) + (concise3.contains(i) ? 1 : 0);
+        if (count >= minCount) {
+          expected.add(i);
+          expectedCounts.add(count);
+        }
+      }
+
+      IntList counts = new IntList();
+      verifyDecoding(expected, ImmutableConciseSet.threshold(sets, minCount, counts));
+      List<Integer> actualCounts = Lists.newArrayList();
+      for (int i = 0; i < counts.length(); i++) {
+        actualCounts.add(counts.get(i));
+      }
+      Assert.assertEquals(expectedCounts, actualCounts);
+      verifyDecoding(expected, ImmutableConciseSet.threshold(sets, minCount));
+    }
+    Assert.assertEquals(0, ImmutableConciseSet.threshold(sets, 4).size());
+  }
+
+  public static void testNextBatch()
+  {
+    ConciseSet concise = new ConciseSet();
+    List<Integer> expected = Lists.newArrayList();
+    // literals, a one fill, a zero fill and a composite word
+    for (int i : new int[]{1, 5, 30, 31, 70}) {
+      concise.add(i);
+    }
+    for (int i = 93; i < 93 + 31 * 20; i++) {
+      concise.add(i);
+    }
+    concise.add(5000);
+    for (int i = 5022; i < 5022 + 31 * 3; i++) {
+      concise.add(i);
+    }
+    for (int i : concise.toArray()) {
+      expected.add(i);
+    }
+    ImmutableConciseSet set = ImmutableConciseSet.compact(concise);
+
+    for (int batchSize : new int[]{1, 7, 31, 1000}) {
+      for (IntSet.IntIterator itr : Arrays.asList(set.iterator(), concise.iterator())) {
+        List<Integer> actual = Lists.newArrayList();
+        // mix single elements with batches
+        actual.add(itr.next());
+        int[] batch = new int[batchSize];
+        int n;
+        while ((n = itr.nextBatch(batch)) > 0) {
+          for (int i = 0; i < n; i++) {
+            actual.add(batch[i]);
+          }
+        }
+        Assert.assertEquals(expected, actual);
+        Assert.assertFalse(itr.hasNext());
+      }
+    }
+  }
+
+  public static void testRunCursor()
+  {
+    ConciseSet concise = new ConciseSet();
+    // runs within a literal, across literals, a one fill with a missing
+    // bit and a one fill followed by a literal
+    int[][] runs = {{3, 4}, {10, 40}, {62, 65}, {93, 700}, {701, 1000}, {1500, 1521}};
+    for (int[] run : runs) {
+      for (int i = run[0]; i < run[1]; i++) {
+        concise.add(i);
+      }
+    }
+
+    List<Integer> expected = Lists.newArrayList();
+    for (int[] run : runs) {
+      expected.add(run[0]);
+      expected.add(run[1]);
+    }
+    for (RunCursor cursor : Arrays.asList(concise.runCursor(), ImmutableConciseSet.compact(concise).runCursor())) {
+      List<Integer> actual = Lists.newArrayList();
+      while (cursor.next()) {
+        actual.add(cursor.getStart());
+        actual.add(cursor.getEnd());
+      }
+      Assert.assertEquals(expected, actual);
+    }
+    Assert.assertFalse(new ImmutableConciseSet().runCursor().next());
+  }
+
+  public static void testOperationCache()
+  {
+    ConciseSet concise1 = new ConciseSet();
+    ConciseSet concise2 = new ConciseSet();
+    for (int i = 0; i < 5000; i += 3) {
+      concise1.add(i);
+    }
+    for (int i = 2000; i < 9000; i++) {
+      concise2.add(i);
+    }
+    ImmutableConciseSet set1 = ImmutableConciseSet.compact(concise1);
+    ImmutableConciseSet set2 = ImmutableConciseSet.newImmutableFromSorted(toArray(concise2));
+    // same elements, other encoding and instance
+    ImmutableConciseSet set2Copy = ImmutableConciseSet.compact(concise2);
+    Assert.assertEquals(set2.fingerprint(), set2Copy.fingerprint());
+    Assert.assertEquals(set2.fingerprint(), concise2.runCursor().fingerprint());
+    Assert.assertTrue(set1.fingerprint() != set2.fingerprint());
+
+    OperationCache cache = new OperationCache(1 << 20);
+    ImmutableConciseSet union = cache.union(set1, set2);
+    verifyDecoding(toList(concise1.union(concise2)), union);
+    Assert.assertSame(union, cache.union(set2, set1));
+    Assert.assertSame(union, cache.union(Arrays.asList(set2, set1)));
+    verifyDecoding(toList(concise1.intersection(concise2)), cache.intersection(set1, set2));
+    Assert.assertEquals(0, cache.intersection(set1, new ImmutableConciseSet()).size());
+    Assert.assertEquals(2, cache.stats().hitCount());
+    Assert.assertEquals(2, cache.stats().missCount());
+
+    // operands are compared by identity, not by fingerprint
+    ImmutableConciseSet copyUnion = cache.union(set2Copy, set1);
+    Assert.assertTrue(copyUnion != union);
+    verifyDecoding(toList(concise1.union(concise2)), copyUnion);
+    Assert.assertEquals(2, cache.stats().hitCount());
+    Assert.assertEquals(3, cache.stats().missCount());
+
+    // results are evicted beyond the budget
+    OperationCache small = new OperationCache(300);
+    small.union(set1, set2);
+    small.intersection(set1, set2);
+    Assert.assertTrue(small.stats().evictionCount() > 0);
+  }
+
+  private static int[] toArray(ConciseSet set)
+  {
+    int[] retVal = new int[set.size()];
+    IntSet.IntIterator itr = set.iterator();
+    for (int i = 0; itr.hasNext(); i++) {
+      retVal[i] = itr.next();
+    }
+    return retVal;
+  }
+
+  public static void testDenseBitmapCache()
+  {
+    ImmutableConciseSet hot = ImmutableConciseSet.newImmutableFromSorted(multiples(3, 100000));
+    ImmutableConciseSet other = ImmutableConciseSet.newImmutableFromSorted(1, 2, 3, 4, 5000, 5002, 99999, 150000);
+    ImmutableConciseSet large = ImmutableConciseSet.newImmutableFromSorted(multiples(2, 100000));
+
+    long[] bitmap = DenseBitmapCache.toBitmap(other);
+    Assert.assertEquals(150000 / 64 + 1, bitmap.length);
+    Assert.assertEquals(0x1EL, bitmap[0]);
+    Assert.assertEquals(1L << (150000 % 64), bitmap[150000 / 64]);
+
+    List<Integer> intersection = Lists.newArrayList(3, 99999);
+    List<Integer> difference = Lists.newArrayList(1, 2, 4, 5000, 5002, 150000);
+
+    // room for a single bitmap
+    DenseBitmapCache cache = new DenseBitmapCache(20000, 2);
+    ImmutableConciseSet.setDenseCache(cache);
+    try {
+      for (int i = 0; i < 4; i++) {
+        verifyDecoding(intersection, ImmutableConciseSet.intersection(hot, other));
+        verifyDecoding(intersection, ImmutableConciseSet.intersection(other, hot));
+        verifyDecoding(difference, ImmutableConciseSet.difference(other, hot));
+        Assert.assertEquals(2, ImmutableConciseSet.intersectionSize(other, hot));
+      }
+      Assert.assertNotNull(cache.getIfPresent(hot));
+      Assert.assertEquals(1, cache.size());
+
+      // a set used less often does not evict the bitmap of the hot one
+      for (int i = 0; i < 4; i++) {
+        Assert.assertEquals(16667, ImmutableConciseSet.intersectionSize(large, hot));
+      }
+      Assert.assertNotNull(cache.getIfPresent(hot));
+      Assert.assertNull(cache.getIfPresent(large));
+
+      Assert.assertNotNull(cache.load(large));
+      Assert.assertNull(cache.getIfPresent(hot));
+      Assert.assertEquals(16667, ImmutableConciseSet.intersectionSize(large, hot));
+      Assert.assertEquals(50000 - 16667, ImmutableConciseSet.differenceSize(large, hot));
+    }
+    finally {
+      ImmutableConciseSet.setDenseCache(null);
+    }
+  }
+
+  public static void testLiteralRuns()
+  {
+    ConciseSet concise1 = new ConciseSet();
+    ConciseSet concise2 = new ConciseSet();
+    // runs of literals longer than the chunks combined at once, broken by
+    // fills at different places in the two sets
+    for (int i = 0; i < 40000; i += 3) {
+      if (i < 12000 || i > 13000) {
+        concise1.add(i);
+      }
+    }
+    for (int i = 1; i < 50000; i += 5) {
+      if (i < 20000 || i > 21000) {
+        concise2.add(i);
+      }
+      concise2.add(i + 1);
+    }
+    ImmutableConciseSet set1 = ImmutableConciseSet.compact(concise1);
+    ImmutableConciseSet set2 = ImmutableConciseSet.compact(concise2);
+
+    verifyDecoding(toList(concise1.union(concise2)), ImmutableConciseSet.union(set1, set2));
+    verifyDecoding(toList(concise1.intersection(concise2)), ImmutableConciseSet.intersection(set1, set2));
+    verifyDecoding(toList(concise1.difference(concise2)), ImmutableConciseSet.difference(set1, set2));
+    verifyDecoding(toList(concise2.difference(concise1)), ImmutableConciseSet.difference(set2, set1));
+    verifyDecoding(
+        toList(concise1.symmetricDifference(concise2)),
+        ImmutableConciseSet.symmetricDifference(set1, set2)
+    );
+    Assert.assertEquals(concise1.intersectionSize(concise2), ImmutableConciseSet.intersectionSize(set1, set2));
+    Assert.assertEquals(concise1.unionSize(concise2), ImmutableConciseSet.unionSize(set1, set2));
+    Assert.assertEquals(concise1.differenceSize(concise2), ImmutableConciseSet.differenceSize(set1, set2));
+  }
+
+  private static List<Integer> toList(ConciseSet set)
+  {
+    List<Integer> retVal = Lists.newArrayList();
+    IntSet.IntIterator itr = set.iterator();
+    while (itr.hasNext()) {
+      retVal.add(itr.next());
+    }
+    return retVal;
+  }
+
+  public static void testPooledWords()
+  {
+    // the results of the operations of a thread are written in the same
+    // scratch list, either handed over or copied
+    ImmutableConciseSet evens = ImmutableConciseSet.newImmutableFromSorted(multiples(2, 100000));
+    ImmutableConciseSet threes = ImmutableConciseSet.newImmutableFromSorted(multiples(3, 100000));
+    ImmutableConciseSet small = ImmutableConciseSet.newImmutableFromSorted(1, 2, 3);
+
+    ImmutableConciseSet union = ImmutableConciseSet.union(evens, threes);
+    int[] unionWords = union.getWords().clone();
+    ImmutableConciseSet intersection = ImmutableConciseSet.intersection(evens, small);
+    ImmutableConciseSet complement = ImmutableConciseSet.complement(threes);
+
+    Assert.assertTrue(Arrays.equals(unionWords, union.getWords()));
+    Assert.assertEquals(unionWords.length, union.toBytes().length / 4 - ImmutableConciseSet.HEADER_INTS);
+    Assert.assertEquals(50000 + 33334 - 16667, union.size());
+    verifyDecoding(Lists.newArrayList(2), intersection);
+    Assert.assertEquals(99999 - 33333, complement.size());
+    Assert.assertFalse(complement.contains(3));
+    Assert.assertTrue(complement.contains(4));
+  }
+
+  public static void testPooledCapacity()
+  {
+    // the list handed over keeps its capacity for the next operation, and
+    // allocates nothing until then
+    IntList words = new IntList();
+    Assert.assertEquals(1000, words.capacity());
+    for (int i = 0; i < 5000; i++) {
+      words.add(i);
+    }
+    int capacity = words.capacity();
+    IntBuffer handedOver = words.detach();
+    Assert.assertEquals(5000, handedOver.remaining());
+    Assert.assertTrue(words.isEmpty());
+    Assert.assertEquals(capacity, words.capacity());
+    words.add(7);
+    Assert.assertEquals(capacity, words.capacity());
+    Assert.assertEquals(4999, handedOver.get(4999));
+
+    // the pool may be bounded down to nothing without changing the results
+    ImmutableConciseSet evens = ImmutableConciseSet.newImmutableFromSorted(multiples(2, 100000));
+    ImmutableConciseSet threes = ImmutableConciseSet.newImmutableFromSorted(multiples(3, 100000));
+    try {
+      ImmutableConciseSet.setMaxPooledWords(0);
+      ImmutableConciseSet.clearWordPool();
+      Assert.assertEquals(50000 + 33334 - 16667, ImmutableConciseSet.union(evens, threes).size());
+      Assert.assertEquals(16667, ImmutableConciseSet.intersection(evens, threes).size());
+    }
+    finally {
+      ImmutableConciseSet.setMaxPooledWords(ImmutableConciseSet.DEFAULT_MAX_POOLED_WORDS);
+    }
+    Assert.assertEquals(16667, ImmutableConciseSet.intersection(evens, threes).size());
+    try {
+      ImmutableConciseSet.setMaxPooledWords(-1);
+      Assert.fail();
+    }
+    catch (IllegalArgumentException e) {
+      // the limit is a capacity
+    }
+  }
+
+  private static int[] multiples(int step, int limit)
+  {
+    int[] retVal = new int[(limit + step - 1) / step];
+    for (int i = 0; i < retVal.length; i++) {
+      retVal[i] = i * step;
+    }
+    return retVal;
+  }
+
+  public static void testBuilderSnapshot()
+  {
+    ImmutableConciseSet.Builder builder = new ImmutableConciseSet.Builder(1);
+    Assert.assertEquals(0, builder.snapshot().size());
+
+    List<Integer> expected = Lists.newArrayList();
+    for (int i = 0; i < 1000; i += 7) {
+      builder.add(i);
+      expected.add(i);
+    }
+    // 1001 shares its block with 1000, that is still being filled
+    builder.add(1000);
+    expected.add(1000);
+    ImmutableConciseSet snapshot = builder.snapshot();
+    verifyDecoding(expected, snapshot);
+    Assert.assertSame(snapshot, builder.snapshot());
+
+    List<Integer> all = Lists.newArrayList(expected);
+    builder.add(1001);
+    all.add(1001);
+    // fills and literals merged into the last words written
+    for (int i = 5000; i < 5200; i++) {
+      builder.add(i);
+      all.add(i);
+    }
+    builder.addWord(ConciseSetUtils.SEQUENCE_1_FILL | 3);
+    ImmutableConciseSet later = builder.snapshot();
+    for (int i = 0; i < 93; i++) {
+      all.add(ConciseSetUtils.maxLiteralLengthMultiplication(168) + i);
+    }
+    builder.add(100000);
+    all.add(100000);
+
+    verifyDecoding(expected, snapshot);
+    verifyDecoding(all.subList(0, all.size() - 1), later);
+    verifyDecoding(all, builder.build());
+  }
+
+  public static void testBuilder()
+  {
+    int[] ints = {3, 40, 41, 500, 5000, 5001, 100000};
+    List<Integer> expected = Lists.newArrayList();
+    // a small capacity makes the buffer grow
+    ImmutableConciseSet.Builder builder = new ImmutableConciseSet.Builder(1);
+    for (int i : ints) {
+      builder.add(i);
+      expected.add(i);
+    }
+    ImmutableConciseSet set = builder.build();
+    verifyDecoding(expected, set);
+    Assert.assertEquals(0, set.compareTo(ImmutableConciseSet.newImmutableFromSorted(ints)));
+
+    // the words of a built set are copied out of its direct buffer
+    int[] words = set.getWords();
+    Assert.assertEquals(set.getLastWordIndex() + 1, words.length);
+    verifyDecoding(expected, new ImmutableConciseSet(IntBuffer.wrap(words)));
+    verifyDecoding(expected, ImmutableConciseSet.compact(set));
+
+    // the builder is done once the set is built
+    try {
+      builder.add(200000);
+      Assert.fail();
+    }
+    catch (IllegalStateException e) {
+      // expected
+    }
+
+    // integers and words mixed
+    builder = new ImmutableConciseSet.Builder();
+    expected.clear();
+    builder.add(1);
+    expected.add(1);
+    // two empty blocks, then a full one
+    builder.addWord(2);
+    builder.addWord(ConciseSetUtils.SEQUENCE_1_FILL | 1);
+    for (int i = 93; i < 124; i++) {
+      expected.add(i);
+    }
+    builder.addWord(ConciseSetUtils.ALL_ZEROS_LITERAL | 0x5);
+    expected.add(124);
+    expected.add(126);
+    builder.add(200);
+    expected.add(200);
+    verifyDecoding(expected, builder.build());
+
+    Assert.assertEquals(0, new ImmutableConciseSet.Builder().build().size());
+
+    builder = new ImmutableConciseSet.Builder();
+    builder.addWord(3);
+    try {
+      builder.add(50);
+      Assert.fail();
+    }
+    catch (IllegalArgumentException e) {
+      // integers covered by the words must not be added
+    }
+  }
+
+  public static void testCompositeOperations()
+  {
+    // one bit every 6 blocks, hence F1-L-F2 and L1-F-L2 words with the same
+    // fills and dirty bytes in both sets
+    int[] ints1 = new int[200];
+    int[] ints2 = new int[200];
+    List<Integer> union = Lists.newArrayList();
+    List<Integer> difference = Lists.newArrayList();
+    for (int i = 0; i < ints1.length; i++) {
+      int block = ConciseSetUtils.MAX_LITERAL_LENGTH * (6 * i + 2);
+      ints1[i] = block + 1;
+      ints2[i] = block + (i % 3 == 0 ? 1 : 3);
+      union.add(ints1[i]);
+      if (ints2[i] != ints1[i]) {
+        union.add(ints2[i]);
+        difference.add(ints1[i]);
+      }
+    }
+    List<Integer> intersection = Lists.newArrayList();
+    for (int i = 0; i < ints1.length; i += 3) {
+      intersection.add(ints1[i]);
+    }
+    List<Integer> symmetricDifference = Lists.newArrayList(union);
+    symmetricDifference.removeAll(intersection);
+
+    ImmutableConciseSet set1 = ImmutableConciseSet.newImmutableFromSorted(ints1);
+    ImmutableConciseSet set2 = ImmutableConciseSet.newImmutableFromSorted(ints2);
+    ImmutableConciseSet res = ImmutableConciseSet.union(set1, set2);
+    verifyDecoding(union, res);
+    Assert.assertEquals(set1.getLastWordIndex(), res.getLastWordIndex());
+    verifyDecoding(intersection, ImmutableConciseSet.intersection(set1, set2));
+    verifyDecoding(difference, ImmutableConciseSet.difference(set1, set2));
+    verifyDecoding(symmetricDifference, ImmutableConciseSet.symmetricDifference(set1, set2));
+    Assert.assertEquals(intersection.size(), ImmutableConciseSet.intersectionSize(set1, set2));
+    Assert.assertEquals(union.size(), ImmutableConciseSet.unionSize(set1, set2));
+  }
+
+  public static void testAdaptiveCodec()
+  {
+    // far apart integers take fewer ints as an array
+    int[] sparse = new int[100];
+    List<Integer> expected = Lists.newArrayList();
+    for (int i = 0; i < sparse.length; i++) {
+      sparse[i] = i * 1000003;
+      expected.add(sparse[i]);
+    }
+    ImmutableConciseSet array = ImmutableConciseSet.newImmutableAdaptive(sparse);
+    Assert.assertEquals(ImmutableConciseSet.CODEC_ARRAY, array.getCodec());
+    verifyDecoding(expected, array);
+    Assert.assertTrue(array.contains(2000006));
+    Assert.assertFalse(array.contains(2000007));
+    Assert.assertEquals(2, array.indexOf(2000006));
+    Assert.assertEquals(-1, array.indexOf(2000007));
+
+    ImmutableConciseSet read = new ImmutableConciseSet(ByteBuffer.wrap(array.toBytes()));
+    Assert.assertEquals(ImmutableConciseSet.CODEC_ARRAY, read.getCodec());
+    verifyDecoding(expected, read);
+
+    // a dense run stays encoded as words
+    List<Integer> denseExpected = Lists.newArrayList();
+    ConciseSet concise = new ConciseSet();
+    for (int i = 10; i < 1000; i++) {
+      denseExpected.add(i);
+      concise.add(i);
+    }
+    ImmutableConciseSet dense = ImmutableConciseSet.newImmutableAdaptive(concise.iterator());
+    Assert.assertEquals(ImmutableConciseSet.CODEC_SECOMPAX, dense.getCodec());
+    verifyDecoding(denseExpected, dense);
+
+    // operations on mixed codecs
+    List<Integer> union = Lists.newArrayList(denseExpected);
+    union.addAll(expected.subList(1, expected.size()));
+    union.add(0, 0);
+    verifyDecoding(union, ImmutableConciseSet.union(array, dense));
+    verifyDecoding(Lists.newArrayList(0), ImmutableConciseSet.intersection(array, ImmutableConciseSet.complement(dense)));
+    Assert.assertEquals(0, ImmutableConciseSet.intersectionSize(array, dense));
+    Assert.assertEquals(union.size(), ImmutableConciseSet.unionSize(Arrays.asList(dense, array)));
+    Assert.assertEquals(0, array.compareTo(ImmutableConciseSet.newImmutableFromSorted(sparse)));
+  }
+
+  public static void testNewImmutableFromSorted()
+  {
+    List<Integer> expected = Lists.newArrayList();
+    ConciseSet concise = new ConciseSet();
+    int[] ints = new int[400];
+    int n = 0;
+    // isolated bits, a dense run of blocks and long gaps
+    for (int i : new int[]{3, 40, 41, 500}) {
+      ints[n++] = i;
+    }
+    for (int i = 620; i < 900; i++) {
+      ints[n++] = i;
+    }
+    ints[n++] = 5000;
+    ints[n++] = 100000;
+    ints = Arrays.copyOf(ints, n);
+    for (int i : ints) {
+      expected.add(i);
+      concise.add(i);
+    }
+
+    verifyDecoding(expected, ImmutableConciseSet.newImmutableFromSorted(ints));
+    verifyDecoding(expected, ImmutableConciseSet.newImmutableFromIterator(concise.iterator()));
+    verifyDecoding(expected, ImmutableConciseSet.compact(concise));
+    Assert.assertEquals(0, ImmutableConciseSet.newImmutableFromSorted().size());
+
+    try {
+      ImmutableConciseSet.newImmutableFromSorted(5, 5);
+      Assert.fail();
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public static void testMappedSetFile() throws IOException
+  {
+    List<ImmutableConciseSet> sets = Lists.newArrayList(
+        new ImmutableConciseSet(IntBuffer.wrap(new int[]{0x80000005})),
+        new ImmutableConciseSet(),
+        new ImmutableConciseSet(IntBuffer.wrap(new int[]{0x00000002, 0x75020501}))
+    );
+
+    File file = File.createTempFile("sets", ".bin");
+    try {
+      ImmutableConciseSetFile.write(file, sets);
+      ImmutableConciseSetFile mapped = ImmutableConciseSetFile.map(file);
+
+      Assert.assertEquals(3, mapped.size());
+      verifyDecoding(Lists.newArrayList(0, 2), mapped.get(0));
+      Assert.assertEquals(0, mapped.get(1).size());
+      Assert.assertEquals(sets.get(2).toString(), mapped.get(2).toString());
+      Assert.assertEquals(sets.get(2).getLast(), mapped.get(2).getLast());
+      Assert.assertTrue(Arrays.equals(sets.get(2).getWords(), mapped.get(2).getWords()));
+
+      byte[] bytes = Files.readAllBytes(file.toPath());
+      Assert.assertEquals(3, ImmutableConciseSetFile.open(ByteBuffer.wrap(bytes)).size());
+      // sets cut short, too many sets, and offsets going back
+      assertCorruptSetFile(ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length - 4)));
+      assertCorruptSetFile(ByteBuffer.wrap(bytes.clone()).putInt(8, Integer.MAX_VALUE));
+      assertCorruptSetFile(ByteBuffer.wrap(bytes.clone()).putInt(8, bytes.length / 4 - 3));
+      assertCorruptSetFile(ByteBuffer.wrap(bytes.clone()).putInt(20, 1 << 20));
+      assertCorruptSetFile(ByteBuffer.wrap(bytes.clone()).putInt(16, -4));
+    }
+    finally {
+      file.delete();
+    }
+  }
+
+  private static void assertCorruptSetFile(ByteBuffer buffer)
+  {
+    try {
+      ImmutableConciseSetFile.open(buffer);
+      Assert.fail();
+    }
+    catch (IOException e) {
+      // expected
+    }
+  }
+
+  private static void verifyDecoding(List<Integer> expected, ImmutableConciseSet set)
+  {
+    List<Integer> actual = Lists.newArrayList();
+    IntSet.IntIterator itr = set.iterator();
+    while (itr.hasNext()) {
+      actual.add(itr.next());
+    }
+    Assert.assertEquals(expected, actual);
+    Assert.assertEquals(expected.size(), set.size());
+    Assert.assertEquals(expected.get(expected.size() - 1).intValue(), set.getLast());
+    for (int i = 0; i < expected.size(); i++) {
+      Assert.assertEquals(expected.get(i).intValue(), set.get(i));
+    }
+  }
+
   private static void verifyComplement(List<Integer> expected, ImmutableConciseSet set, int endIndex)
   {
     List<Integer> actual = Lists.newArrayList();
@@ -0,0 +1,603 @@
+/*
+* Copyright 2012 Metamarkets Group Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import it.uniroma3.mat.extendedset.intset.ArraySet;
+import it.uniroma3.mat.extendedset.intset.ConciseSet;
+import it.uniroma3.mat.extendedset.intset.FastSet;
+import it.uniroma3.mat.extendedset.intset.HashIntSet;
+import it.uniroma3.mat.extendedset.intset.ImmutableConciseSet;
+import it.uniroma3.mat.extendedset.intset.IntSet;
+import it.uniroma3.mat.extendedset.utilities.random.MersenneTwisterFast;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Benchmarks of all the {@link IntSet} implementations and of
+ * {@link ImmutableConciseSet}, over the same inputs drawn from uniform,
+ * clustered, Zipf and Markov distributions.
+ * <p>
+ * Each operation is repeated {@link #ROUNDS} times after
+ * {@link #WARMUP_ROUNDS} warm-up rounds, and the median time is reported in
+ * microseconds per set, or per pair of sets for the binary operations:
+ * <ul>
+ * <li><code>add</code> builds a set from its integers, one at a time for
+ * the mutable sets, with the encoder of each mode for the immutable ones;</li>
+ * <li><code>contains</code> looks up {@link #PROBES} random integers;</li>
+ * <li><code>size</code> is the size of an intersection computed without
+ * building it, the size of a set being a field read everywhere;</li>
+ * <li><code>serialize</code> writes a set to bytes and reads it back.</li>
+ * </ul>
+ * The last column is the average number of serialized bytes per set. All
+ * the inputs come from a {@link MersenneTwisterFast} seeded with the first
+ * argument, so that runs with the same seed measure the same sets.
+ */
+public class IntSetBenchmark
+{
+  private static final int UNIVERSE = 1 << 20;
+  private static final int PAIRS = 8;
+  private static final int PROBES = 1 << 14;
+  private static final int WARMUP_ROUNDS = 3;
+  private static final int ROUNDS = 5;
+
+  private static final int ADD = 0;
+  private static final int CONTAINS = 1;
+  private static final int ITERATE = 2;
+  private static final int UNION = 3;
+  private static final int INTERSECTION = 4;
+  private static final int DIFFERENCE = 5;
+  private static final int SIZE = 6;
+  private static final int SERIALIZE = 7;
+  private static final String[] OPERATIONS = {
+      "add", "contains", "iterate", "union", "intersection", "difference", "size", "serialize"
+  };
+
+  private static final double ZIPF_EXPONENT = 1.2;
+
+  // results of the timed operations, printed so that they are not optimized away
+  private static long sink = 0;
+
+  public static void main(String[] args) throws Exception
+  {
+    final long seed = args.length > 0 ? Long.parseLong(args[0]) : 0x5EC0;
+    final MersenneTwisterFast rnd = new MersenneTwisterFast(seed);
+    final int[] probes = new int[PROBES];
+    for (int i = 0; i < probes.length; i++) {
+      probes[i] = rnd.nextInt(UNIVERSE);
+    }
+
+    final Subject[] subjects = {
+        new MutableSubject("ConciseSet", new ConciseSet()),
+        new MutableSubject("FastSet", new FastSet()),
+        new MutableSubject("ArraySet", new ArraySet()),
+        new MutableSubject("HashIntSet", new HashIntSet()),
+        new ImmutableSubject("Immutable (Concise)", ImmutableSubject.CONCISE),
+        new ImmutableSubject("Immutable (SECOMPAX)", ImmutableSubject.SECOMPAX),
+        new ImmutableSubject("Immutable (adaptive)", ImmutableSubject.ADAPTIVE)
+    };
+
+    benchmark("uniform (1%)", uniformSets(rnd, 0.01), probes, subjects);
+    benchmark("clustered", clusteredSets(rnd), probes, subjects);
+    benchmark("Zipf (s=" + ZIPF_EXPONENT + ")", zipfSets(rnd, UNIVERSE / 32), probes, subjects);
+    benchmark("Markov (5%, runs of 16)", markovSets(rnd, 0.05, 16), probes, subjects);
+    System.out.format("checksum %d%n", sink);
+  }
+
+  private static void benchmark(String label, int[][] sets, int[] probes, Subject[] subjects) throws Exception
+  {
+    long elements = 0;
+    for (int[] set : sets) {
+      elements += set.length;
+    }
+    System.out.format("%n%s, %d elements per set (us/op)%n", label, elements / sets.length);
+    System.out.format("%-22s", "");
+    for (String operation : OPERATIONS) {
+      System.out.format(" %12s", operation);
+    }
+    System.out.format(" %12s%n", "bytes");
+
+    for (Subject subject : subjects) {
+      subject.sets = sets;
+      subject.probes = probes;
+      System.out.format("%-22s", subject.name);
+      for (int operation = 0; operation < OPERATIONS.length; operation++) {
+        long nanos = time(subject, operation);
+        int count = operation < UNION || operation == SERIALIZE ? sets.length : sets.length / 2;
+        System.out.format(" %12.2f", nanos / 1e3 / count);
+      }
+      System.out.format(" %12d%n", subject.bytes / sets.length);
+      subject.clear();
+    }
+  }
+
+  /**
+   * Gets the median time of an operation, in nanoseconds
+   */
+  private static long time(Subject subject, int operation) throws Exception
+  {
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      sink += subject.run(operation);
+    }
+    long[] times = new long[ROUNDS];
+    for (int i = 0; i < ROUNDS; i++) {
+      long t = System.nanoTime();
+      sink += subject.run(operation);
+      times[i] = System.nanoTime() - t;
+    }
+    Arrays.sort(times);
+    return times[ROUNDS / 2];
+  }
+
+  /**
+   * Integers drawn independently with the same probability
+   */
+  private static int[][] uniformSets(MersenneTwisterFast rnd, double density)
+  {
+    int[][] sets = new int[2 * PAIRS][];
+    int[] ints = new int[UNIVERSE];
+    for (int i = 0; i < sets.length; i++) {
+      int n = 0;
+      for (int j = 0; j < UNIVERSE; j++) {
+        if (rnd.nextDouble() < density) {
+          ints[n++] = j;
+        }
+      }
+      sets[i] = Arrays.copyOf(ints, n);
+    }
+    return sets;
+  }
+
+  /**
+   * Runs of consecutive integers separated by gaps, both with random lengths
+   */
+  private static int[][] clusteredSets(MersenneTwisterFast rnd)
+  {
+    int[][] sets = new int[2 * PAIRS][];
+    int[] ints = new int[UNIVERSE];
+    for (int i = 0; i < sets.length; i++) {
+      int n = 0;
+      int j = rnd.nextInt(1000);
+      while (j < UNIVERSE) {
+        int end = Math.min(UNIVERSE, j + 1 + rnd.nextInt(2000));
+        while (j < end) {
+          ints[n++] = j++;
+        }
+        j += 1 + rnd.nextInt(5000);
+      }
+      sets[i] = Arrays.copyOf(ints, n);
+    }
+    return sets;
+  }
+
+  /**
+   * Integers drawn with a probability proportional to
+   * <code>1 / (i + 1)^s</code>, so that the sets are dense at the beginning
+   * of the universe and sparse in the tail
+   */
+  private static int[][] zipfSets(MersenneTwisterFast rnd, int draws)
+  {
+    double[] cumulative = new double[UNIVERSE];
+    double sum = 0;
+    for (int i = 0; i < UNIVERSE; i++) {
+      sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+      cumulative[i] = sum;
+    }
+
+    int[][] sets = new int[2 * PAIRS][];
+    boolean[] drawn = new boolean[UNIVERSE];
+    int[] ints = new int[UNIVERSE];
+    for (int i = 0; i < sets.length; i++) {
+      Arrays.fill(drawn, false);
+      for (int j = 0; j < draws; j++) {
+        int k = Arrays.binarySearch(cumulative, rnd.nextDouble() * sum);
+        drawn[Math.min(UNIVERSE - 1, k < 0 ? -k - 1 : k)] = true;
+      }
+      int n = 0;
+      for (int j = 0; j < UNIVERSE; j++) {
+        if (drawn[j]) {
+          ints[n++] = j;
+        }
+      }
+      sets[i] = Arrays.copyOf(ints, n);
+    }
+    return sets;
+  }
+
+  /**
+   * Integers given by a two-state Markov chain, where runs of present
+   * integers have the given average length and the given overall density
+   */
+  private static int[][] markovSets(MersenneTwisterFast rnd, double density, int runLength)
+  {
+    double leave = 1.0 / runLength;
+    double enter = density * leave / (1 - density);
+    int[][] sets = new int[2 * PAIRS][];
+    int[] ints = new int[UNIVERSE];
+    for (int i = 0; i < sets.length; i++) {
+      int n = 0;
+      boolean present = rnd.nextDouble() < density;
+      for (int j = 0; j < UNIVERSE; j++) {
+        if (present) {
+          ints[n++] = j;
+        }
+        present = rnd.nextDouble() < (present ? 1 - leave : enter);
+      }
+      sets[i] = Arrays.copyOf(ints, n);
+    }
+    return sets;
+  }
+
+  /**
+   * Implementation under test, holding the sets built by the last
+   * <code>add</code>
+   */
+  private static abstract class Subject
+  {
+    final String name;
+    int[][] sets;
+    int[] probes;
+    // serialized bytes of all the sets
+    long bytes;
+
+    Subject(String name)
+    {
+      this.name = name;
+    }
+
+    long run(int operation) throws Exception
+    {
+      switch (operation) {
+        case ADD:
+          return add();
+        case CONTAINS:
+          return contains();
+        case ITERATE:
+          return iterate();
+        case UNION:
+          return union();
+        case INTERSECTION:
+          return intersection();
+        case DIFFERENCE:
+          return difference();
+        case SIZE:
+          return size();
+        case SERIALIZE:
+          bytes = serialize();
+          return bytes;
+        default:
+          throw new IllegalArgumentException("unknown operation: " + Integer.toString(operation));
+      }
+    }
+
+    abstract long add();
+
+    abstract long contains();
+
+    abstract long iterate();
+
+    abstract long union();
+
+    abstract long intersection();
+
+    abstract long difference();
+
+    abstract long size();
+
+    /**
+     * @return the number of serialized bytes
+     */
+    abstract long serialize() throws Exception;
+
+    abstract void clear();
+  }
+
+  private static class MutableSubject extends Subject
+  {
+    private final IntSet prototype;
+    private IntSet[] built;
+
+    MutableSubject(String name, IntSet prototype)
+    {
+      super(name);
+      this.prototype = prototype;
+    }
+
+    @Override
+    long add()
+    {
+      built = new IntSet[sets.length];
+      long sum = 0;
+      for (int i = 0; i < sets.length; i++) {
+        IntSet set = prototype.empty();
+        for (int e : sets[i]) {
+          set.add(e);
+        }
+        built[i] = set;
+        sum += set.size();
+      }
+      return sum;
+    }
+
+    @Override
+    long contains()
+    {
+      long count = 0;
+      for (IntSet set : built) {
+        for (int probe : probes) {
+          if (set.contains(probe)) {
+            count++;
+          }
+        }
+      }
+      return count;
+    }
+
+    @Override
+    long iterate()
+    {
+      long sum = 0;
+      for (IntSet set : built) {
+        IntSet.IntIterator itr = set.iterator();
+        while (itr.hasNext()) {
+          sum += itr.next();
+        }
+      }
+      return sum;
+    }
+
+    @Override
+    long union()
+    {
+      long sum = 0;
+      for (int i = 0; i < built.length; i += 2) {
+        sum += built[i].union(built[i + 1]).size();
+      }
+      return sum;
+    }
+
+    @Override
+    long intersection()
+    {
+      long sum = 0;
+      for (int i = 0; i < built.length; i += 2) {
+        sum += built[i].intersection(built[i + 1]).size();
+      }
+      return sum;
+    }
+
+    @Override
+    long difference()
+    {
+      long sum = 0;
+      for (int i = 0; i < built.length; i += 2) {
+        sum += built[i].difference(built[i + 1]).size();
+      }
+      return sum;
+    }
+
+    @Override
+    long size()
+    {
+      long sum = 0;
+      for (int i = 0; i < built.length; i += 2) {
+        sum += built[i].intersectionSize(built[i + 1]);
+      }
+      return sum;
+    }
+
+    /**
+     * Uses Java serialization when the implementation supports it, a plain
+     * list of integers otherwise
+     */
+    @Override
+    long serialize() throws Exception
+    {
+      long total = 0;
+      for (IntSet set : built) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        IntSet copy;
+        if (set instanceof Serializable) {
+          ObjectOutputStream out = new ObjectOutputStream(bytes);
+          out.writeObject(set);
+          out.close();
+          ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+          copy = (IntSet) in.readObject();
+        } else {
+          DataOutputStream out = new DataOutputStream(bytes);
+          out.writeInt(set.size());
+          IntSet.IntIterator itr = set.iterator();
+          while (itr.hasNext()) {
+            out.writeInt(itr.next());
+          }
+          out.close();
+          DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+          int[] ints = new int[in.readInt()];
+          for (int i = 0; i < ints.length; i++) {
+            ints[i] = in.readInt();
+          }
+          copy = prototype.convert(ints);
+        }
+        total += bytes.size();
+        sink += copy.size();
+      }
+      return total;
+    }
+
+    @Override
+    void clear()
+    {
+      built = null;
+    }
+  }
+
+  private static class ImmutableSubject extends Subject
+  {
+    // built from a ConciseSet and serialized as Concise words
+    static final int CONCISE = 0;
+    // SECOMPAX words written by the sorted encoder
+    static final int SECOMPAX = 1;
+    // SECOMPAX words or sorted integers, whichever is smaller
+    static final int ADAPTIVE = 2;
+
+    private final int mode;
+    private ImmutableConciseSet[] built;
+    private int[][] conciseWords;
+
+    ImmutableSubject(String name, int mode)
+    {
+      super(name);
+      this.mode = mode;
+    }
+
+    @Override
+    long add()
+    {
+      built = new ImmutableConciseSet[sets.length];
+      conciseWords = new int[sets.length][];
+      long sum = 0;
+      for (int i = 0; i < sets.length; i++) {
+        switch (mode) {
+          case CONCISE:
+            ConciseSet set = new ConciseSet();
+            for (int e : sets[i]) {
+              set.add(e);
+            }
+            conciseWords[i] = set.getWords();
+            built[i] = ImmutableConciseSet.compact(set, true);
+            break;
+          case SECOMPAX:
+            built[i] = ImmutableConciseSet.newImmutableFromSorted(sets[i]);
+            break;
+          default:
+            built[i] = ImmutableConciseSet.newImmutableAdaptive(sets[i]);
+        }
+        sum += built[i].size();
+      }
+      return sum;
+    }
+
+    @Override
+    long contains()
+    {
+      long count = 0;
+      for (ImmutableConciseSet set : built) {
+        for (int probe : probes) {
+          if (set.contains(probe)) {
+            count++;
+          }
+        }
+      }
+      return count;
+    }
+
+    @Override
+    long iterate()
+    {
+      long sum = 0;
+      for (ImmutableConciseSet set : built) {
+        IntSet.IntIterator itr = set.iterator();
+        while (itr.hasNext()) {
+          sum += itr.next();
+        }
+      }
+      return sum;
+    }
+
+    @Override
+    long union()
+    {
+      long sum = 0;
+      for (int i = 0; i < built.length; i += 2) {
+        sum += ImmutableConciseSet.union(built[i], built[i + 1]).size();
+      }
+      return sum;
+    }
+
+    @Override
+    long intersection()
+    {
+      long sum = 0;
+      for (int i = 0; i < built.length; i += 2) {
+        sum += ImmutableConciseSet.intersection(built[i], built[i + 1]).size();
+      }
+      return sum;
+    }
+
+    @Override
+    long difference()
+    {
+      long sum = 0;
+      for (int i = 0; i < built.length; i += 2) {
+        sum += ImmutableConciseSet.difference(built[i], built[i + 1]).size();
+      }
+      return sum;
+    }
+
+    @Override
+    long size()
+    {
+      long sum = 0;
+      for (int i = 0; i < built.length; i += 2) {
+        sum += ImmutableConciseSet.intersectionSize(built[i], built[i + 1]);
+      }
+      return sum;
+    }
+
+    /**
+     * Writes the serialized form and reads it back, the Concise mode storing
+     * the words of the {@link ConciseSet} that are re-encoded when read
+     */
+    @Override
+    long serialize()
+    {
+      long total = 0;
+      for (int i = 0; i < built.length; i++) {
+        byte[] bytes = mode == CONCISE ? toConciseBytes(built[i], conciseWords[i]) : built[i].toBytes();
+        total += bytes.length;
+        sink += new ImmutableConciseSet(ByteBuffer.wrap(bytes)).size();
+      }
+      return total;
+    }
+
+    @Override
+    void clear()
+    {
+      built = null;
+      conciseWords = null;
+    }
+
+    private static byte[] toConciseBytes(ImmutableConciseSet set, int[] words)
+    {
+      ByteBuffer buf = ByteBuffer.allocate((ImmutableConciseSet.HEADER_INTS + words.length) * 4);
+      IntBuffer ints = buf.asIntBuffer();
+      ints.put(ImmutableConciseSet.SERIAL_MAGIC);
+      ints.put((ImmutableConciseSet.SERIAL_VERSION << 8) | ImmutableConciseSet.CODEC_CONCISE);
+      ints.put(set.size());
+      ints.put(set.getLast());
+      ints.put(words.length);
+      ints.put(words);
+      return buf.array();
+    }
+  }
+}
@@ -1629,6 +1629,13 @@ public class ConciseSet extends AbstractIntSet implements java.io.Serializable
     public void skipAllBefore(int i);
 
     public void reset(int offset, int word, boolean fromBeginning);
+
+    /**
+     * Copies the next integers into <code>dst</code>, starting at <code>from</code>
+     *
+     * @return the number of copied integers
+     */
+    public int nextBatch(int[] dst, int from);
   }
 
   /**
@@ -1686,6 +1693,15 @@ public class ConciseSet extends AbstractIntSet implements java.io.Serializable
       }
     }
 
+    @Override
+    public int nextBatch(int[] dst, int from)
+    {
+      int count = Math.min(len - current, dst.length - from);
+      System.arraycopy(buffer, current, dst, from, count);
+      current += count;
+      return count;
+    }
+
     @Override
     public void reset(int offset, int word, boolean fromBeginning)
     {
@@ -1780,6 +1796,20 @@ public class ConciseSet extends AbstractIntSet implements java.io.Serializable
       current = i - 1;
     }
 
+    @Override
+    public int nextBatch(int[] dst, int from)
+    {
+      int n = from;
+      while (n < dst.length && current < lastInt) {
+        current++;
+        if (!simulateWAH && current == exception) {
+          current++;
+        }
+        dst[n++] = current;
+      }
+      return n - from;
+    }
+
     @Override
     public void reset(int offset, int word, boolean fromBeginning)
     {
@@ -1801,6 +1831,69 @@ public class ConciseSet extends AbstractIntSet implements java.io.Serializable
     }
   }
 
+  /**
+   * Gets a cursor over the runs of consecutive elements of the set, taking
+   * sequences of 1's as a whole
+   */
+  public RunCursor runCursor()
+  {
+    return new WordRunCursor();
+  }
+
+  /**
+   * Cursor over the runs of a {@link ConciseSet} instance. The (un)set bit
+   * of a sequence is reported as a literal for its first block, followed
+   * by the rest of the sequence.
+   */
+  private class WordRunCursor extends RunCursor
+  {
+    int nextIndex = 0;
+    int nextOffset = 0;
+    int pendingOnes = 0;
+
+    @Override
+    boolean nextPart()
+    {
+      if (pendingOnes > 0) {
+        setOneFill(nextOffset, nextOffset + pendingOnes);
+        nextOffset += pendingOnes;
+        pendingOnes = 0;
+        return true;
+      }
+      if (nextIndex > lastWordIndex) {
+        return false;
+      }
+
+      final int word = words[nextIndex++];
+      if (isLiteral(word)) {
+        setLiteral(nextOffset, getLiteralBits(word));
+        nextOffset += ConciseSetUtils.MAX_LITERAL_LENGTH;
+        return true;
+      }
+
+      int length = maxLiteralLengthMultiplication(getSequenceCount(word) + 1);
+      if (simulateWAH || isSequenceWithNoBits(word)) {
+        if (isOneSequence(word)) {
+          setOneFill(nextOffset, nextOffset + length);
+        }
+        nextOffset += length;
+        return true;
+      }
+
+      // the first block is a literal with a single (un)set bit
+      int bit = 1 << (((0x3FFFFFFF & word) >>> 25) - 1);
+      if (isOneSequence(word)) {
+        setLiteral(nextOffset, ConciseSetUtils.ALL_ONES_WITHOUT_MSB & ~bit);
+        pendingOnes = length - ConciseSetUtils.MAX_LITERAL_LENGTH;
+      } else {
+        setLiteral(nextOffset, bit);
+        nextOffset += length - ConciseSetUtils.MAX_LITERAL_LENGTH;
+      }
+      nextOffset += ConciseSetUtils.MAX_LITERAL_LENGTH;
+      return true;
+    }
+  }
+
   /**
    * Iterator for all the integers of a  {@link ConciseSet}  instance
    */
@@ -1861,6 +1954,31 @@ public class ConciseSet extends AbstractIntSet implements java.io.Serializable
       return exp.next();
     }
 
+    /**
+     * Decodes literals directly, and fills through their expander
+     */
+    @Override
+    public int nextBatch(int[] dst)
+    {
+      int n = exp.nextBatch(dst, 0);
+      while (n < dst.length && nextIndex <= lastWordIndex) {
+        final int word = words[nextIndex];
+        if (isLiteral(word) && dst.length - n >= ConciseSetUtils.MAX_LITERAL_LENGTH) {
+          int bits = getLiteralBits(word);
+          while (bits != 0) {
+            dst[n++] = nextOffset + Integer.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+          }
+          nextIndex++;
+          nextOffset += ConciseSetUtils.MAX_LITERAL_LENGTH;
+        } else {
+          nextWord();
+          n += exp.nextBatch(dst, n);
+        }
+      }
+      return n;
+    }
+
     @Override
     public void remove()
     {
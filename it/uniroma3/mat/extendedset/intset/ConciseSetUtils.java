@@ -106,6 +106,38 @@ public class ConciseSetUtils
    * Prepare for judging whether a literal can be consider to have a DirtyByte
    */
   public final static int[] SECOMPAX_0_MASK = {0x000000ff,0x0000ff00,0x00ff0000,0x7f000000};
+
+  /**
+   * Kind of a 0-fill word, as returned by {@link #getWordKind(int)}
+   */
+  public final static int WORD_0_FILL = 0;
+  /**
+   * Kind of a 1-fill word, as returned by {@link #getWordKind(int)}
+   */
+  public final static int WORD_1_FILL = 1;
+  /**
+   * Kind of a L1-F-L2 word (0L1-F-0L2, 1L1-F-1L2, 0L-F-1L or 1L-F-0L), as
+   * returned by {@link #getWordKind(int)}
+   */
+  public final static int WORD_L_F_L = 2;
+  /**
+   * Kind of a F1-L-F2 word, as returned by {@link #getWordKind(int)}
+   */
+  public final static int WORD_F_L_F = 3;
+  /**
+   * Kind of a literal word, as returned by {@link #getWordKind(int)}
+   */
+  public final static int WORD_LITERAL = 4;
+
+  /*
+   * Word kinds indexed by the 4-bit header of a word
+   */
+  private final static int[] WORD_KINDS = {
+      WORD_0_FILL, WORD_1_FILL, WORD_L_F_L, WORD_L_F_L,
+      WORD_L_F_L, WORD_L_F_L, WORD_F_L_F, WORD_F_L_F,
+      WORD_LITERAL, WORD_LITERAL, WORD_LITERAL, WORD_LITERAL,
+      WORD_LITERAL, WORD_LITERAL, WORD_LITERAL, WORD_LITERAL
+  };
   
   //Ľ
   /**
@@ -582,6 +614,7 @@ public class ConciseSetUtils
   /*
    *  When meeting the F1-L-F2,the number of the Fill words is useful
    *  This method is used for getting the number of the Fill words in the 2 Fill compressed in the F1-L-F2 word.
+   *  It allocates a new array at each call, see getFLFFirstFillCount() and getFLFSecondFillCount().
    */
   public static int[] getFLFFILLWords(int word)
   {
@@ -612,6 +645,7 @@ public class ConciseSetUtils
   
   /*
    *  Return the Dirtybytes of the L-F-L.
+   *  It allocates a new array at each call, see getLFLFirstLiteral() and getLFLSecondLiteral().
    */
   public static int[] getLFLLiteralWords(int word)
   {
@@ -638,6 +672,336 @@ public class ConciseSetUtils
 	  }
 	  return 0;
   }
+
+  /**
+   * Checks whether a word is a L1-F-L2 word, that is 0L1-F-0L2, 1L1-F-1L2,
+   * 0L-F-1L or 1L-F-0L
+   *
+   * @param word word to check
+   *
+   * @return <code>true</code> if the given word is a L1-F-L2 word
+   */
+  public static boolean isL_F_L(int word)
+  {
+    return getWordKind(word) == WORD_L_F_L;
+  }
+
+  /**
+   * Classifies a SECOMPAX word with a single table lookup on its 4-bit
+   * header, so that decoding loops can <code>switch</code> on the result
+   * instead of testing each word type in turn
+   *
+   * @param word word to check
+   *
+   * @return one of {@link #WORD_0_FILL}, {@link #WORD_1_FILL},
+   *         {@link #WORD_L_F_L}, {@link #WORD_F_L_F} and {@link #WORD_LITERAL}
+   */
+  public static int getWordKind(int word)
+  {
+    return WORD_KINDS[word >>> 28];
+  }
+
+  /**
+   * Gets the number of 31-bit blocks of the first fill of a F1-L-F2 word
+   */
+  public static int getFLFFirstFillCount(int word)
+  {
+    return (word & 0x00ff0000) >>> 16;
+  }
+
+  /**
+   * Gets the number of 31-bit blocks of the second fill of a F1-L-F2 word
+   */
+  public static int getFLFSecondFillCount(int word)
+  {
+    return word & 0x000000ff;
+  }
+
+  /**
+   * Gets the type of the first fill of a F1-L-F2 word (0 = 0-fill, 1 = 1-fill)
+   */
+  public static int getFLFFirstFillType(int word)
+  {
+    return (word & 0x10000000) >>> 28;
+  }
+
+  /**
+   * Gets the type of the second fill of a F1-L-F2 word (0 = 0-fill, 1 = 1-fill)
+   */
+  public static int getFLFSecondFillType(int word)
+  {
+    return (word & 0x04000000) >>> 26;
+  }
+
+  /**
+   * Gets the literal (with the most significant bit set to 1) compressed
+   * within a F1-L-F2 word
+   */
+  public static int getFLFLiteral(int word)
+  {
+    return getDirtyByteLiteral(
+        (word & 0x0000ff00) >>> 8,
+        (word & 0x03000000) >>> 24,
+        (word & 0x08000000) >>> 27
+    );
+  }
+
+  /**
+   * Gets the number of 31-bit blocks of the fill of a L1-F-L2 word
+   */
+  public static int getLFLFillCount(int word)
+  {
+    return (word & 0x007f0000) >>> 16;
+  }
+
+  /**
+   * Gets the type of the fill of a L1-F-L2 word (0 = 0-fill, 1 = 1-fill)
+   */
+  public static int getLFLFillType(int word)
+  {
+    return (word & 0x00800000) >>> 23;
+  }
+
+  /**
+   * Gets the first literal (with the most significant bit set to 1)
+   * compressed within a L1-F-L2 word
+   */
+  public static int getLFLFirstLiteral(int word)
+  {
+    // 1L1-F-1L2 and 1L-F-0L start with a nearly-1 literal
+    int header = word & 0xf0000000;
+    return getDirtyByteLiteral(
+        (word & 0x0000ff00) >>> 8,
+        (word & 0x0c000000) >>> 26,
+        (header == SEQUENCE_1L1_F_1L2 || header == SEQUENCE_1L_F_0L) ? 1 : 0
+    );
+  }
+
+  /**
+   * Gets the second literal (with the most significant bit set to 1)
+   * compressed within a L1-F-L2 word
+   */
+  public static int getLFLSecondLiteral(int word)
+  {
+    // 1L1-F-1L2 and 0L-F-1L end with a nearly-1 literal
+    int header = word & 0xf0000000;
+    return getDirtyByteLiteral(
+        word & 0x000000ff,
+        (word & 0x03000000) >>> 24,
+        (header == SEQUENCE_1L1_F_1L2 || header == SEQUENCE_0L_F_1L) ? 1 : 0
+    );
+  }
+
+  /**
+   * Rebuilds the literal represented by a dirty byte
+   *
+   * @param dirtyByte the dirty byte
+   * @param pos       position of the dirty byte within the literal (0 to 3)
+   * @param type      0 if the other bytes are all 0's, 1 if they are all 1's
+   *
+   * @return the literal, with the most significant bit set to 1
+   */
+  public static int getDirtyByteLiteral(int dirtyByte, int pos, int type)
+  {
+    int shift = pos << 3;
+    int literal = ALL_ZEROS_LITERAL | (dirtyByte << shift);
+    return type == 0 ? literal : literal | ~(0x000000ff << shift);
+  }
+
+  /**
+   * Gets the number of 31-bit blocks represented by a SECOMPAX word
+   *
+   * @param word word to check
+   *
+   * @return the number of 31-bit blocks covered by the word
+   */
+  public static int getWordBlockCount(int word)
+  {
+    switch (getWordKind(word)) {
+      case WORD_LITERAL:
+        return 1;
+      case WORD_0_FILL:
+      case WORD_1_FILL:
+        return getSequenceCount(word);
+      case WORD_F_L_F:
+        return getFLFFirstFillCount(word) + 1 + getFLFSecondFillCount(word);
+      default:
+        return 1 + getLFLFillCount(word) + 1;
+    }
+  }
+
+  /**
+   * Gets the number of set bits represented by a SECOMPAX word
+   *
+   * @param word word to check
+   *
+   * @return the number of set bits within the word
+   */
+  public static int getWordBitCount(int word)
+  {
+    switch (getWordKind(word)) {
+      case WORD_LITERAL:
+        return getLiteralBitCount(word);
+      case WORD_0_FILL:
+        return 0;
+      case WORD_1_FILL:
+        return maxLiteralLengthMultiplication(getSequenceCount(word));
+      case WORD_F_L_F:
+        return maxLiteralLengthMultiplication(
+            getFLFFirstFillType(word) * getFLFFirstFillCount(word)
+            + getFLFSecondFillType(word) * getFLFSecondFillCount(word)
+        ) + getLiteralBitCount(getFLFLiteral(word));
+      default:
+        return getLiteralBitCount(getLFLFirstLiteral(word))
+               + maxLiteralLengthMultiplication(getLFLFillType(word) * getLFLFillCount(word))
+               + getLiteralBitCount(getLFLSecondLiteral(word));
+    }
+  }
+
+  /**
+   * Gets the position of the last set bit of a SECOMPAX word, relative to
+   * the first bit of the word
+   *
+   * @param word word to check
+   *
+   * @return the position of the last set bit, or -1 if the word has no set bit
+   */
+  public static int getWordLastSetBit(int word)
+  {
+    switch (getWordKind(word)) {
+      case WORD_LITERAL:
+        return MAX_LITERAL_LENGTH - Integer.numberOfLeadingZeros(getLiteralBits(word));
+      case WORD_0_FILL:
+        return -1;
+      case WORD_1_FILL:
+        return maxLiteralLengthMultiplication(getSequenceCount(word)) - 1;
+      case WORD_F_L_F:
+        return getFLFLastSetBit(word);
+      default:
+        return getLFLLastSetBit(word);
+    }
+  }
+
+  private static int getFLFLastSetBit(int word)
+  {
+    int firstFill = maxLiteralLengthMultiplication(getFLFFirstFillCount(word));
+    if (getFLFSecondFillType(word) == 1 && getFLFSecondFillCount(word) > 0) {
+      return firstFill + MAX_LITERAL_LENGTH + maxLiteralLengthMultiplication(getFLFSecondFillCount(word)) - 1;
+    }
+    int literalBits = getLiteralBits(getFLFLiteral(word));
+    if (literalBits != 0) {
+      return firstFill + MAX_LITERAL_LENGTH - Integer.numberOfLeadingZeros(literalBits);
+    }
+    return getFLFFirstFillType(word) == 1 ? firstFill - 1 : -1;
+  }
+
+  private static int getLFLLastSetBit(int word)
+  {
+    int fill = maxLiteralLengthMultiplication(getLFLFillCount(word));
+    int literalBits = getLiteralBits(getLFLSecondLiteral(word));
+    if (literalBits != 0) {
+      return MAX_LITERAL_LENGTH + fill + MAX_LITERAL_LENGTH - Integer.numberOfLeadingZeros(literalBits);
+    }
+    if (getLFLFillType(word) == 1 && fill > 0) {
+      return MAX_LITERAL_LENGTH + fill - 1;
+    }
+    return MAX_LITERAL_LENGTH - Integer.numberOfLeadingZeros(getLiteralBits(getLFLFirstLiteral(word)));
+  }
+
+  /**
+   * Gets one of the three parts of a F1-L-F2 or L1-F-L2 word as a plain
+   * SECOMPAX word, that is a literal, a 0-fill or a 1-fill
+   *
+   * @param word F1-L-F2 or L1-F-L2 word
+   * @param part index of the part, from 0 to 2
+   *
+   * @return the literal or fill word corresponding to the given part
+   */
+  public static int getCompositeWordPart(int word, int part)
+  {
+    if (getWordKind(word) == WORD_F_L_F) {
+      switch (part) {
+        case 0:
+          return (getFLFFirstFillType(word) << 28) | getFLFFirstFillCount(word);
+        case 1:
+          return getFLFLiteral(word);
+        default:
+          return (getFLFSecondFillType(word) << 28) | getFLFSecondFillCount(word);
+      }
+    }
+    switch (part) {
+      case 0:
+        return getLFLFirstLiteral(word);
+      case 1:
+        return (getLFLFillType(word) << 28) | getLFLFillCount(word);
+      default:
+        return getLFLSecondLiteral(word);
+    }
+  }
+
+  /**
+   * Checks whether a bit of a SECOMPAX word is set
+   *
+   * @param word word to check
+   * @param bit  position of the bit, relative to the first bit of the word,
+   *             that must be less than <code>31 * getWordBlockCount(word)</code>
+   *
+   * @return <code>true</code> if the given bit is set
+   */
+  public static boolean isWordBitSet(int word, int bit)
+  {
+    switch (getWordKind(word)) {
+      case WORD_LITERAL:
+        return (word & (1 << bit)) != 0;
+      case WORD_0_FILL:
+        return false;
+      case WORD_1_FILL:
+        return true;
+      default:
+        for (int i = 0; i < 3; i++) {
+          int part = getCompositeWordPart(word, i);
+          int length = maxLiteralLengthMultiplication(getWordBlockCount(part));
+          if (bit < length) {
+            return isWordBitSet(part, bit);
+          }
+          bit -= length;
+        }
+        return false;
+    }
+  }
+
+  /**
+   * Gets the number of set bits of a SECOMPAX word that precede a given bit
+   *
+   * @param word word to check
+   * @param bit  position of the bit, relative to the first bit of the word,
+   *             that must be less than <code>31 * getWordBlockCount(word)</code>
+   *
+   * @return the number of set bits before the given bit
+   */
+  public static int getWordBitCountBefore(int word, int bit)
+  {
+    switch (getWordKind(word)) {
+      case WORD_LITERAL:
+        return BitCount.count(word & ~(0xFFFFFFFF << bit));
+      case WORD_0_FILL:
+        return 0;
+      case WORD_1_FILL:
+        return bit;
+      default:
+        int count = 0;
+        for (int i = 0; i < 3; i++) {
+          int part = getCompositeWordPart(word, i);
+          int length = maxLiteralLengthMultiplication(getWordBlockCount(part));
+          if (bit < length) {
+            return count + getWordBitCountBefore(part, bit);
+          }
+          count += getWordBitCount(part);
+          bit -= length;
+        }
+        return count;
+    }
+  }
   
   
   //Ľ
@@ -657,6 +1021,13 @@ public class ConciseSetUtils
 
     public void reset(int offset, int word, boolean fromBeginning);
 
+    /**
+     * Copies the next integers into <code>dst</code>, starting at <code>from</code>
+     *
+     * @return the number of copied integers
+     */
+    public int nextBatch(int[] dst, int from);
+
     public WordExpander clone();
   }
 
@@ -720,6 +1091,15 @@ public class ConciseSetUtils
       }
     }
 
+    @Override
+    public int nextBatch(int[] dst, int from)
+    {
+      int count = Math.min(len - current, dst.length - from);
+      System.arraycopy(buffer, current, dst, from, count);
+      current += count;
+      return count;
+    }
+
     @Override
     public void reset(int offset, int word, boolean fromBeginning)
     {
@@ -825,6 +1205,16 @@ public class ConciseSetUtils
       current = i - 1;
     }
 
+    @Override
+    public int nextBatch(int[] dst, int from)
+    {
+      int count = (int) Math.min((long) lastInt - current, dst.length - from);
+      for (int i = 0; i < count; i++) {
+        dst[from + i] = ++current;
+      }
+      return count;
+    }
+
     @Override
     public void reset(int offset, int word, boolean fromBeginning)
     {
@@ -955,22 +1345,74 @@ public class ConciseSetUtils
     }
   }
   */
-  public static FLFExpander newFLFExpander()
-  {
-    return new FLFExpander();
-  }
-
   /**
-   * Iterator over the bits of one-fill words
+   * Iterator over the bits of a word made up of (at most) three consecutive
+   * segments, each one being either a run of 31-bit blocks or the set bits of
+   * a literal. All the buffers are allocated once, hence resetting the
+   * expander on a new word does not allocate.
    */
-  public static class FLFExpander implements WordExpander
-
+  static abstract class CompositeWordExpander implements WordExpander
   {
-    int firstInt = 1;
-    int lastInt = -1;
-    int current = 0;
-    int [] buffer;
+    final int[] segStart = new int[3];
+    final int[] segLen = new int[3];
+    final boolean[] segRun = new boolean[3];
+    final int[] buffer = new int[2 * MAX_LITERAL_LENGTH];
+    int segments = 0;
+    int bufferLen = 0;
     int len = 0;
+    int current = 0;
+
+    void clearSegments()
+    {
+      segments = 0;
+      bufferLen = 0;
+      len = 0;
+    }
+
+    /**
+     * Appends the integers <code>[offset, offset + 31 * blocks)</code> when
+     * <code>fillType</code> is 1, nothing otherwise
+     */
+    void addFill(int offset, int blocks, int fillType)
+    {
+      if (fillType == 0 || blocks == 0) {
+        return;
+      }
+      segRun[segments] = true;
+      segStart[segments] = offset;
+      segLen[segments] = maxLiteralLengthMultiplication(blocks);
+      len += segLen[segments++];
+    }
+
+    /**
+     * Appends the set bits of the given literal, starting from <code>offset</code>
+     */
+    void addLiteral(int offset, int literal)
+    {
+      int start = bufferLen;
+      int bits = getLiteralBits(literal);
+      while (bits != 0) {
+        buffer[bufferLen++] = offset + Integer.numberOfTrailingZeros(bits);
+        bits &= bits - 1;
+      }
+      if (bufferLen == start) {
+        return;
+      }
+      segRun[segments] = false;
+      segStart[segments] = start;
+      segLen[segments] = bufferLen - start;
+      len += segLen[segments++];
+    }
+
+    int get(int index)
+    {
+      for (int s = 0; ; s++) {
+        if (index < segLen[s]) {
+          return segRun[s] ? segStart[s] + index : buffer[segStart[s] + index];
+        }
+        index -= segLen[s];
+      }
+    }
 
     @Override
     public boolean hasNext()
@@ -990,7 +1432,7 @@ public class ConciseSetUtils
       if (!hasNext()) {
         throw new NoSuchElementException();
       }
-      return buffer[current++];
+      return get(current++);
     }
 
     @Override
@@ -999,272 +1441,154 @@ public class ConciseSetUtils
       if (!hasPrevious()) {
         throw new NoSuchElementException();
       }
-      return buffer[--current];
+      return get(--current);
     }
 
     @Override
     public void skipAllAfter(int i)
     {
-      if (i >= current) {
-        return;
+      while (hasPrevious() && get(current - 1) > i) {
+        current--;
       }
-      current = i + 1;
     }
 
     @Override
     public void skipAllBefore(int i)
     {
-      if (i <= current) {
-        return;
+      int base = 0;
+      for (int s = 0; s < segments; base += segLen[s], s++) {
+        int end = base + segLen[s];
+        if (current >= end) {
+          continue;
+        }
+        if (segRun[s]) {
+          // jump directly within the run
+          if (i <= segStart[s] + current - base) {
+            return;
+          }
+          if (i < segStart[s] + segLen[s]) {
+            current = base + i - segStart[s];
+            return;
+          }
+          current = end;
+        } else {
+          while (current < end && buffer[segStart[s] + current - base] < i) {
+            current++;
+          }
+          if (current < end) {
+            return;
+          }
+        }
       }
-      current = i - 1;
     }
 
     @Override
-    public void reset(int offset, int word, boolean fromBeginning)
+    public int nextBatch(int[] dst, int from)
     {
-      int i= 0;
-      int[] fillnum = new int[2];
-      int[] fillType = new int [2];
-      int literal;
-      int literalType;
-      int literalPos;
-      int literalcount;
-      int literalByte = getFLFLiteralWords(word);
-      fillnum = getFLFFILLWords(word);
-      fillType[0] = (word & 0x10000000) >>> 28;
-      fillType[1] = (word & 0x04000000) >>> 26;
-      literalType = (word & 0x08000000) >>> 27;
-      literalPos = (word & 0x03000000) >>> 24;
-      
-      len += maxLiteralLengthMultiplication(fillnum[0] * fillType[0]);
-      if(literalType == 0)
-      {
-    	  literal = (literalByte << (literalPos * 8)) | 0x80000000;
-      }
-      else
-      {
-    	  literal = (literalByte <<(literalPos * 8));
-    	  switch(literalPos)
-    	  {
-    	  case 0: literal |= 0xffffff00; break;
-    	  case 1: literal |= 0xffff00ff; break;
-    	  case 2: literal |= 0xff00ffff; break;
-    	  default : literal |= 0x80ffffff;
-    	  }
-      }
-      literalcount = getLiteralBitCount(literal);
-     
-      len += literalcount;
-      
-      len += maxLiteralLengthMultiplication(fillnum[1] * fillType[1]);
-      
-      buffer = new int[len];
-      for(i =0 ;i<maxLiteralLengthMultiplication(fillnum[0] * fillType[0]);i++)
-      {
-    	  buffer[i] = offset + i;
-      }
-      
-      offset += maxLiteralLengthMultiplication(fillnum[0]);
-      for(int j = 0 ;j<MAX_LITERAL_LENGTH ;j++)
-      {
-    	  if ((literal & (1 << j)) != 0) 
-              buffer[i++] = offset + j;
-      }
-      
-      offset += MAX_LITERAL_LENGTH;
-      
-      for(int j=0 ; j< maxLiteralLengthMultiplication(fillnum[1] * fillType[1]); i++,j++)
-      {
-    	  buffer[i] = offset + j;
+      int n = from;
+      int base = 0;
+      for (int s = 0; s < segments && n < dst.length; base += segLen[s], s++) {
+        int end = base + segLen[s];
+        if (current >= end) {
+          continue;
+        }
+        int count = Math.min(end - current, dst.length - n);
+        if (segRun[s]) {
+          int value = segStart[s] + current - base;
+          for (int i = 0; i < count; i++) {
+            dst[n + i] = value + i;
+          }
+        } else {
+          System.arraycopy(buffer, segStart[s] + current - base, dst, n, count);
+        }
+        current += count;
+        n += count;
       }
-      
-      lastInt = buffer[len - 1] + 1;
-      //current = fromBeginning ? (firstInt - 1) : (lastInt + 1);
+      return n - from;
     }
 
     @Override
-    public WordExpander clone()
+    public abstract WordExpander clone();
+
+    void copyTo(CompositeWordExpander other)
     {
-      FLFExpander retVal = new FLFExpander();
-      retVal.firstInt = firstInt;
-      retVal.lastInt = lastInt;
-      retVal.current = current;
-      retVal.buffer = buffer;
-      return retVal;
+      System.arraycopy(segStart, 0, other.segStart, 0, segStart.length);
+      System.arraycopy(segLen, 0, other.segLen, 0, segLen.length);
+      System.arraycopy(segRun, 0, other.segRun, 0, segRun.length);
+      System.arraycopy(buffer, 0, other.buffer, 0, bufferLen);
+      other.segments = segments;
+      other.bufferLen = bufferLen;
+      other.len = len;
+      other.current = current;
     }
   }
-  
-  public static LFLExpander newLFLExpander()
+
+  public static FLFExpander newFLFExpander()
   {
-    return new LFLExpander();
+    return new FLFExpander();
   }
-  public static class LFLExpander implements WordExpander
 
+  /**
+   * Iterator over the bits of F1-L-F2 words
+   */
+  public static class FLFExpander extends CompositeWordExpander
   {
-    int firstInt = 1;
-    int lastInt = -1;
-    int current = 0;
-    int [] buffer;
-    int len = 0;
-
-    @Override
-    public boolean hasNext()
-    {
-      return current < len;
-    }
-
     @Override
-    public boolean hasPrevious()
-    {
-      return current > 0;
-    }
-
-    @Override
-    public int next()
+    public void reset(int offset, int word, boolean fromBeginning)
     {
-      if (!hasNext()) {
-        throw new NoSuchElementException();
+      if (!isF1_L_F2(word)) {
+        throw new RuntimeException("NOT a F1-L-F2 word!");
       }
-      return buffer[current++];
-    }
-
-    @Override
-    public int previous()
-    {
-      if (!hasPrevious()) {
-        throw new NoSuchElementException();
-      }
-      return buffer[--current];
+      int firstFill = getFLFFirstFillCount(word);
+      clearSegments();
+      addFill(offset, firstFill, getFLFFirstFillType(word));
+      offset += maxLiteralLengthMultiplication(firstFill);
+      addLiteral(offset, getFLFLiteral(word));
+      offset += MAX_LITERAL_LENGTH;
+      addFill(offset, getFLFSecondFillCount(word), getFLFSecondFillType(word));
+      current = fromBeginning ? 0 : len;
     }
 
     @Override
-    public void skipAllAfter(int i)
+    public WordExpander clone()
     {
-      if (i >= current) {
-        return;
-      }
-      current = i + 1;
+      FLFExpander retVal = new FLFExpander();
+      copyTo(retVal);
+      return retVal;
     }
+  }
 
-    @Override
-    public void skipAllBefore(int i)
-    {
-      if (i <= current) {
-        return;
-      }
-      current = i - 1;
-    }
+  public static LFLExpander newLFLExpander()
+  {
+    return new LFLExpander();
+  }
 
+  /**
+   * Iterator over the bits of L1-F-L2 words
+   */
+  public static class LFLExpander extends CompositeWordExpander
+  {
     @Override
     public void reset(int offset, int word, boolean fromBeginning)
     {
-      int i= 0;
-      int fillnum ;
-      int fillType ;
-      int[] literal = new int[2];
-      int[] literalPos = new int [2];
-      int[] literalcount = new int[2];
-      int[] literalByte = getLFLLiteralWords(word);
-      fillnum = getLFLFILLWords(word);
-      fillType = (word & 0x00800000) >>> 23;
-      literalPos[0] = (word & 0x0c000000) >>> 26;
-      literalPos[1] = (word & 0x03000000) >>> 24;
-      if(is0L1_F_0L2(word))
-      {
-    	  literal[0] =  0x80000000 | (literalByte[0] <<(literalPos[0] * 8));
-    	  literal[1] =  0x80000000 | (literalByte[1] <<(literalPos[1] * 8));
+      if (!isL_F_L(word)) {
+        throw new RuntimeException("NOT a L1-F-L2 word!");
       }
-      else
-      {
-    	  if(is0L_F_1L(word))
-    	  {
-    		  literal[0] = 0x80000000 | (literalByte[0] <<(literalPos[0] * 8));
-    		  literal[1] = (literalByte[1] <<(literalPos[1] * 8));
-        	  switch(literalPos[1])
-        	  {
-        	  case 0: literal[1] |= 0xffffff00; break;
-        	  case 1: literal[1] |= 0xffff00ff; break;
-        	  case 2: literal[1] |= 0xff00ffff; break;
-        	  default : literal[1] |= 0x80ffffff;
-        	  }
-    	  }
-    	  else
-    	  {
-    		  if(is1L_F_0L(word))
-    		  {
-    			  literal[0] = (literalByte[0] <<(literalPos[0] * 8));
-    	    	  switch(literalPos[0])
-    	    	  {
-    	    	  case 0: literal[0] |= 0xffffff00; break;
-    	    	  case 1: literal[0] |= 0xffff00ff; break;
-    	    	  case 2: literal[0] |= 0xff00ffff; break;
-    	    	  default : literal[0] |= 0x80ffffff;
-    	    	  }
-    			  literal[1] = 0x80000000 | (literalByte[1] <<(literalPos[1] * 8));
-    		  }
-    		  else
-    		  {
-    			  literal[0] = (literalByte[0] <<(literalPos[0] * 8));
-    	    	  switch(literalPos[0])
-    	    	  {
-    	    	  case 0: literal[0] |= 0xffffff00; break;
-    	    	  case 1: literal[0] |= 0xffff00ff; break;
-    	    	  case 2: literal[0] |= 0xff00ffff; break;
-    	    	  default : literal[0] |= 0x80ffffff;
-    	    	  }
-    	    	  literal[1] = (literalByte[1] <<(literalPos[1] * 8));
-    	    	  switch(literalPos[1])
-    	    	  {
-    	    	  case 0: literal[1] |= 0xffffff00; break;
-    	    	  case 1: literal[1] |= 0xffff00ff; break;
-    	    	  case 2: literal[1] |= 0xff00ffff; break;
-    	    	  default : literal[1] |= 0x80ffffff;
-    	    	  }
-    		  }
-    	  }
-      }
-      
-      len += maxLiteralLengthMultiplication(fillnum * fillType);
-      
-      literalcount[0] = getLiteralBitCount(literal[0]);
-      literalcount[1] = getLiteralBitCount(literal[1]);
-      len += literalcount[0] + literalcount[1];
-      
-      buffer = new int[len];
-      for(int j = 0 ;j<MAX_LITERAL_LENGTH ;j++)
-      {
-    	  if ((literal[0] & (1 << j)) != 0) 
-              buffer[i++] = offset + j;
-      }
-      
-      offset += MAX_LITERAL_LENGTH;
-      for(int j =0 ;j<maxLiteralLengthMultiplication(fillnum * fillType);j++,i++)
-      {
-    	  buffer[i] = offset + j;
-      }
-      
-      offset += fillnum * 31;
-      for(int j = 0 ;j<MAX_LITERAL_LENGTH ;j++)
-      {
-    	  if ((literal[1] & (1 << j)) != 0) 
-              buffer[i++] = offset + j;
-      }
-      
+      int fill = getLFLFillCount(word);
+      clearSegments();
+      addLiteral(offset, getLFLFirstLiteral(word));
       offset += MAX_LITERAL_LENGTH;
-      
-      lastInt = buffer[len - 1] + 1;
-      //current = fromBeginning ? (firstInt - 1) : (lastInt + 1);
+      addFill(offset, fill, getLFLFillType(word));
+      offset += maxLiteralLengthMultiplication(fill);
+      addLiteral(offset, getLFLSecondLiteral(word));
+      current = fromBeginning ? 0 : len;
     }
 
     @Override
     public WordExpander clone()
     {
-      FLFExpander retVal = new FLFExpander();
-      retVal.firstInt = firstInt;
-      retVal.lastInt = lastInt;
-      retVal.current = current;
-      retVal.buffer = buffer;
+      LFLExpander retVal = new LFLExpander();
+      copyTo(retVal);
       return retVal;
     }
   }
@@ -0,0 +1,357 @@
+/*
+* Copyright 2012 Metamarkets Group Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package it.uniroma3.mat.extendedset.intset;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the uncompressed bitmaps of frequently used sets, as
+ * <code>long[]</code> arrays where element <code>i</code> is bit
+ * <code>i % 64</code> of word <code>i / 64</code>.
+ * <p>
+ * The lookups of each set are counted, and a set is decoded once it has
+ * been looked up <code>minHits</code> times. The bitmaps are kept within a
+ * budget of bytes: a new bitmap evicts the least frequently used ones, and
+ * is not cached unless all of them were used less often than its set, so
+ * that sets used as often as the cached ones do not take turns being
+ * decoded. A set left out is tried again each time its count doubles. The
+ * counts are halved every {@link #AGING_PERIOD} lookups, so that sets no
+ * longer used make room for the new hot ones.
+ * <p>
+ * Sets are compared by identity and referenced weakly, so that a cached
+ * bitmap goes away with its set. The cache is opt-in: once installed with
+ * {@link ImmutableConciseSet#setDenseCache(DenseBitmapCache)}, the
+ * intersection, the difference and their sizes read the bitmap of a cached
+ * operand instead of walking its words.
+ */
+public class DenseBitmapCache
+{
+  /**
+   * Default number of lookups of a set before it is decoded
+   */
+  public final static int DEFAULT_MIN_HITS = 2;
+
+  /**
+   * Number of lookups after which the counts are halved
+   */
+  public final static int AGING_PERIOD = 1 << 16;
+
+  // sets looked up but not decoded yet
+  private final static int MAX_CANDIDATES = 1024;
+  // bytes taken by an array besides its elements
+  private final static int ARRAY_OVERHEAD = 16;
+
+  private final static Comparator<Map.Entry<ImmutableConciseSet, Entry>> LEAST_USED_FIRST =
+      new Comparator<Map.Entry<ImmutableConciseSet, Entry>>()
+      {
+        @Override
+        public int compare(Map.Entry<ImmutableConciseSet, Entry> e1, Map.Entry<ImmutableConciseSet, Entry> e2)
+        {
+          return Integer.compare(e1.getValue().hits.get(), e2.getValue().hits.get());
+        }
+      };
+
+  private final long maxBytes;
+  private final int minHits;
+  private final Cache<ImmutableConciseSet, Entry> bitmaps;
+  private final LoadingCache<ImmutableConciseSet, AtomicInteger> candidates;
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong lookups = new AtomicLong();
+
+  public DenseBitmapCache(long maxBytes)
+  {
+    this(maxBytes, DEFAULT_MIN_HITS);
+  }
+
+  /**
+   * @param maxBytes maximum number of bytes taken by the bitmaps
+   * @param minHits  number of lookups of a set before it is decoded
+   */
+  public DenseBitmapCache(long maxBytes, int minHits)
+  {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("non-negative size expected: " + Long.toString(maxBytes));
+    }
+    if (minHits < 1) {
+      throw new IllegalArgumentException("positive count expected: " + Integer.toString(minHits));
+    }
+    this.maxBytes = maxBytes;
+    this.minHits = minHits;
+    this.bitmaps = CacheBuilder.newBuilder()
+                               .weakKeys()
+                               .removalListener(
+                                   new RemovalListener<ImmutableConciseSet, Entry>()
+                                   {
+                                     @Override
+                                     public void onRemoval(RemovalNotification<ImmutableConciseSet, Entry> notification)
+                                     {
+                                       bytes.addAndGet(-getBytes(notification.getValue().bitmap.length));
+                                     }
+                                   }
+                               )
+                               .build();
+    this.candidates = CacheBuilder.newBuilder()
+                                  .weakKeys()
+                                  .maximumSize(MAX_CANDIDATES)
+                                  .build(
+                                      new CacheLoader<ImmutableConciseSet, AtomicInteger>()
+                                      {
+                                        @Override
+                                        public AtomicInteger load(ImmutableConciseSet set)
+                                        {
+                                          return new AtomicInteger();
+                                        }
+                                      }
+                                  );
+  }
+
+  /**
+   * Counts a lookup of a set and gets its bitmap, decoding it when the set
+   * has been looked up often enough
+   *
+   * @return the bitmap, or <code>null</code> if the set is not cached
+   */
+  public long[] get(ImmutableConciseSet set)
+  {
+    if (lookups.incrementAndGet() % AGING_PERIOD == 0) {
+      age();
+    }
+    Entry entry = bitmaps.getIfPresent(set);
+    if (entry != null) {
+      entry.hits.incrementAndGet();
+      return entry.bitmap;
+    }
+    if (set.size() == 0) {
+      return null;
+    }
+    int hits = candidates.getUnchecked(set).incrementAndGet();
+    // a set not admitted is tried again each time its count doubles
+    if (hits < minHits || (hits != minHits && (hits & (hits - 1)) != 0)) {
+      return null;
+    }
+    return admit(set, hits, false);
+  }
+
+  /**
+   * Gets the bitmap of a set if it is cached, without counting a lookup
+   */
+  public long[] getIfPresent(ImmutableConciseSet set)
+  {
+    Entry entry = bitmaps.getIfPresent(set);
+    return entry == null ? null : entry.bitmap;
+  }
+
+  /**
+   * Decodes a set and caches its bitmap whatever the number of lookups,
+   * evicting the least frequently used bitmaps if needed
+   *
+   * @return the bitmap, or <code>null</code> if it does not fit the budget
+   */
+  public long[] load(ImmutableConciseSet set)
+  {
+    if (set.size() == 0) {
+      return null;
+    }
+    return admit(set, Math.max(minHits, candidates.getUnchecked(set).get()), true);
+  }
+
+  /**
+   * Gets the number of cached bitmaps
+   */
+  public long size()
+  {
+    return bitmaps.size();
+  }
+
+  /**
+   * Gets the number of bytes taken by the cached bitmaps
+   */
+  public long getBytes()
+  {
+    return bytes.get();
+  }
+
+  public void invalidateAll()
+  {
+    bitmaps.invalidateAll();
+    candidates.invalidateAll();
+  }
+
+  private synchronized long[] admit(ImmutableConciseSet set, int hits, boolean force)
+  {
+    Entry entry = bitmaps.getIfPresent(set);
+    if (entry != null) {
+      return entry.bitmap;
+    }
+    long size = getBytes(getLength(set));
+    if (size > maxBytes) {
+      return null;
+    }
+
+    // least frequently used bitmaps making room for the new one
+    List<ImmutableConciseSet> victims = new ArrayList<ImmutableConciseSet>();
+    long free = maxBytes - bytes.get();
+    if (free < size) {
+      List<Map.Entry<ImmutableConciseSet, Entry>> entries =
+          new ArrayList<Map.Entry<ImmutableConciseSet, Entry>>(bitmaps.asMap().entrySet());
+      Collections.sort(entries, LEAST_USED_FIRST);
+      for (Map.Entry<ImmutableConciseSet, Entry> victim : entries) {
+        if (free >= size) {
+          break;
+        }
+        if (!force && victim.getValue().hits.get() >= hits) {
+          return null;
+        }
+        victims.add(victim.getKey());
+        free += getBytes(victim.getValue().bitmap.length);
+      }
+      if (free < size) {
+        return null;
+      }
+    }
+    for (ImmutableConciseSet victim : victims) {
+      bitmaps.invalidate(victim);
+    }
+
+    entry = new Entry(toBitmap(set), hits);
+    bytes.addAndGet(size);
+    bitmaps.put(set, entry);
+    candidates.invalidate(set);
+    return entry.bitmap;
+  }
+
+  /**
+   * Halves the counts of the cached and candidate sets
+   */
+  private void age()
+  {
+    for (Entry entry : bitmaps.asMap().values()) {
+      halve(entry.hits);
+    }
+    for (AtomicInteger hits : candidates.asMap().values()) {
+      halve(hits);
+    }
+  }
+
+  private static void halve(AtomicInteger hits)
+  {
+    int count;
+    do {
+      count = hits.get();
+    } while (!hits.compareAndSet(count, count >> 1));
+  }
+
+  /**
+   * Decodes a set into a bitmap, one run of consecutive elements at a time
+   */
+  public static long[] toBitmap(ImmutableConciseSet set)
+  {
+    long[] retVal = new long[getLength(set)];
+    RunCursor runs = set.runCursor();
+    while (runs.next()) {
+      setRange(retVal, runs.getStart(), runs.getEnd());
+    }
+    return retVal;
+  }
+
+  /**
+   * Gets the given 31-bit block of a bitmap, as the bits of a literal
+   * without its literal flag
+   */
+  static int getBlock(long[] bitmap, int block)
+  {
+    long offset = (long) block * ConciseSetUtils.MAX_LITERAL_LENGTH;
+    int index = (int) (offset >>> 6);
+    if (index >= bitmap.length) {
+      return 0;
+    }
+    int shift = (int) offset & 63;
+    long bits = bitmap[index] >>> shift;
+    if (shift > 64 - ConciseSetUtils.MAX_LITERAL_LENGTH && index + 1 < bitmap.length) {
+      bits |= bitmap[index + 1] << (64 - shift);
+    }
+    return (int) bits & ConciseSetUtils.ALL_ONES_LITERAL & ~ConciseSetUtils.ALL_ZEROS_LITERAL;
+  }
+
+  /**
+   * Gets the number of 31-bit blocks that may have set bits in a bitmap
+   */
+  static int getBlockCount(long[] bitmap)
+  {
+    return (int) (((long) bitmap.length * 64 + ConciseSetUtils.MAX_LITERAL_LENGTH - 1)
+                  / ConciseSetUtils.MAX_LITERAL_LENGTH);
+  }
+
+  private static int getLength(ImmutableConciseSet set)
+  {
+    return set.size() == 0 ? 0 : (set.getLast() >>> 6) + 1;
+  }
+
+  private static long getBytes(int length)
+  {
+    return (long) length * 8 + ARRAY_OVERHEAD;
+  }
+
+  /**
+   * Sets the bits <code>[from, to)</code>
+   */
+  private static void setRange(long[] bitmap, int from, int to)
+  {
+    int first = from >>> 6;
+    int last = (to - 1) >>> 6;
+    // shifts are taken modulo 64
+    long firstMask = -1L << from;
+    long lastMask = -1L >>> -to;
+    if (first == last) {
+      bitmap[first] |= firstMask & lastMask;
+      return;
+    }
+    bitmap[first] |= firstMask;
+    for (int i = first + 1; i < last; i++) {
+      bitmap[i] = -1L;
+    }
+    bitmap[last] |= lastMask;
+  }
+
+  /**
+   * Cached bitmap, which must not reference its set: the set is a weak key
+   */
+  private static class Entry
+  {
+    private final long[] bitmap;
+    private final AtomicInteger hits;
+
+    Entry(long[] bitmap, int hits)
+    {
+      this.bitmap = bitmap;
+      this.hits = new AtomicInteger(hits);
+    }
+  }
+}
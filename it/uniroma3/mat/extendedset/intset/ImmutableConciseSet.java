@@ -19,22 +19,80 @@ package it.uniroma3.mat.extendedset.intset;
 
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
-import com.google.common.collect.MinMaxPriorityQueue;
 import com.google.common.collect.UnmodifiableIterator;
 import com.google.common.primitives.Ints;
 import it.uniroma3.mat.extendedset.utilities.IntList;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 public class ImmutableConciseSet
 {
   private final static int CHUNK_SIZE = 10000;
+  private final static int SKIP_INDEX_INTERVAL = 128;
+
+  /**
+   * Default number of sets united by a single task of {@link #parallelUnion(List)}
+   */
+  public final static int PARALLEL_UNION_THRESHOLD = 1000;
+
+  /**
+   * Serialized sets start with a header of {@link #HEADER_INTS} ints: the
+   * magic number, the format version (second byte) and codec id (lowest
+   * byte), the cardinality, the last set bit and the number of words. Buffers
+   * without the header are read as plain SECOMPAX words. Sets stored with
+   * {@link #CODEC_ARRAY} contain the sorted integers instead of words.
+   */
+  public final static int SERIAL_MAGIC = 0x5EC0BA5E;
+  public final static int SERIAL_VERSION = 1;
+  public final static int CODEC_CONCISE = 0;
+  public final static int CODEC_SECOMPAX = 1;
+  public final static int CODEC_ARRAY = 2;
+  public final static int HEADER_INTS = 5;
+
+  private final static int UNKNOWN_LAST = Integer.MIN_VALUE;
+
+  // scratch word list of each thread, reused by the operations writing
+  // words, see borrowWords() and releaseWords()
+  private final static ThreadLocal<IntList> WORD_POOL = new ThreadLocal<IntList>();
+  /**
+   * Default capacity of the largest scratch word list kept by a thread
+   */
+  public final static int DEFAULT_MAX_POOLED_WORDS = 1 << 20;
+
+  // larger lists are left to the garbage collector, see setMaxPooledWords()
+  private static volatile int maxPooledWords = DEFAULT_MAX_POOLED_WORDS;
+
+  // bitmaps of the hot sets, null unless installed by setDenseCache()
+  private static volatile DenseBitmapCache denseCache = null;
+
+  // operators applied by addCombinedComposites()
+  private final static int OP_AND = 0;
+  private final static int OP_OR = 1;
+  private final static int OP_AND_NOT = 2;
+  private final static int OP_XOR = 3;
+
+  // fields of F1-L-F2 and L1-F-L2 words that must be equal to combine them:
+  // the kind, the fill lengths and the positions of the dirty bytes
+  private final static int FLF_LAYOUT = 0xE3FF00FF;
+  private final static int LFL_LAYOUT = 0x0F7F0000;
+  // fill type and dirty bytes of L1-F-L2 words, the literal types are in the header
+  private final static int LFL_BITS = 0x0080FFFF;
+  // headers of L1-F-L2 words, indexed by the types of their two literals
+  private final static int[] LFL_HEADERS = {
+      ConciseSetUtils.SEQUENCE_0L1_F_0L2, ConciseSetUtils.SEQUENCE_0L_F_1L,
+      ConciseSetUtils.SEQUENCE_1L_F_0L, ConciseSetUtils.SEQUENCE_1L1_F_1L2
+  };
+  // longest run of literals combined at once by addCombinedLiterals()
+  private final static int LITERAL_CHUNK = 256;
 
   public static ImmutableConciseSet newImmutableFromMutable(ConciseSet conciseSet)
   {
@@ -58,6 +116,17 @@ public class ImmutableConciseSet
     return union(Arrays.asList(sets));
   }
 
+  public static ImmutableConciseSet union(ImmutableConciseSet set1, ImmutableConciseSet set2)
+  {
+    if (set1 == null || set1.isEmpty()) {
+      return set2 == null ? new ImmutableConciseSet() : set2;
+    }
+    if (set2 == null || set2.isEmpty()) {
+      return set1;
+    }
+    return doUnion(set1, set2);
+  }
+
   public static ImmutableConciseSet union(Iterable<ImmutableConciseSet> sets)
   {
     return union(sets.iterator());
@@ -65,12 +134,48 @@ public class ImmutableConciseSet
 
   public static ImmutableConciseSet union(Iterator<ImmutableConciseSet> sets)
   {
-    ImmutableConciseSet partialResults = doUnion(Iterators.limit(sets, CHUNK_SIZE));
-    while (sets.hasNext()) {
-      final UnmodifiableIterator<ImmutableConciseSet> partialIter = Iterators.singletonIterator(partialResults);
-      partialResults = doUnion(Iterators.<ImmutableConciseSet>concat(partialIter, Iterators.limit(sets, CHUNK_SIZE)));
+    // union each chunk on its own, then the chunk results, so that the
+    // growing result is not merged again with every chunk
+    List<ImmutableConciseSet> partialResults = new ArrayList<ImmutableConciseSet>();
+    do {
+      partialResults.add(doUnion(Iterators.limit(sets, CHUNK_SIZE)));
+    } while (sets.hasNext());
+
+    if (partialResults.size() == 1) {
+      return partialResults.get(0);
     }
-    return partialResults;
+    return union(partialResults.iterator());
+  }
+
+  /**
+   * Same as {@link #parallelUnion(List, ForkJoinPool, int)}, running on the
+   * common pool with {@link #PARALLEL_UNION_THRESHOLD} sets per task
+   */
+  public static ImmutableConciseSet parallelUnion(List<ImmutableConciseSet> sets)
+  {
+    return parallelUnion(sets, ForkJoinPool.commonPool(), PARALLEL_UNION_THRESHOLD);
+  }
+
+  /**
+   * Union of many sets computed as a tree reduction: the list is split in
+   * halves until at most <code>threshold</code> sets are left, each part is
+   * united by a separate task, and the partial results are merged pairwise.
+   *
+   * @param sets      sets to unite
+   * @param pool      pool running the tasks
+   * @param threshold maximum number of sets united by a single task
+   *
+   * @return the union of the sets
+   */
+  public static ImmutableConciseSet parallelUnion(List<ImmutableConciseSet> sets, ForkJoinPool pool, int threshold)
+  {
+    if (threshold < 1) {
+      throw new IllegalArgumentException("positive threshold expected: " + Integer.toString(threshold));
+    }
+    if (sets.size() <= threshold) {
+      return union(sets);
+    }
+    return pool.invoke(new UnionTask(sets, threshold));
   }
 
   public static ImmutableConciseSet intersection(ImmutableConciseSet... sets)
@@ -78,6 +183,64 @@ public class ImmutableConciseSet
     return intersection(Arrays.asList(sets));
   }
 
+  public static ImmutableConciseSet intersection(ImmutableConciseSet set1, ImmutableConciseSet set2)
+  {
+    if (set1 == null || set1.isEmpty() || set2 == null || set2.isEmpty()) {
+      return new ImmutableConciseSet();
+    }
+    WordWriter retVal = new WordWriter();
+    if (!doCachedIntersection(set1, set2, retVal)) {
+      doIntersection(set1, set2, retVal);
+    }
+    return retVal.build();
+  }
+
+  /**
+   * Installs a cache of the bitmaps of the sets used most often, read by
+   * the intersection, the difference and their sizes
+   *
+   * @param cache the cache, or <code>null</code> to walk the words of the
+   *              sets only
+   */
+  public static void setDenseCache(DenseBitmapCache cache)
+  {
+    denseCache = cache;
+  }
+
+  public static DenseBitmapCache getDenseCache()
+  {
+    return denseCache;
+  }
+
+  /**
+   * Bounds the scratch word list that each thread keeps between the
+   * operations. The lists kept by the other threads are dropped the next time
+   * they operate, see {@link #clearWordPool()} for the current thread.
+   *
+   * @param maxWords capacity of the largest list kept, 0 to keep none
+   */
+  public static void setMaxPooledWords(int maxWords)
+  {
+    if (maxWords < 0) {
+      throw new IllegalArgumentException("non-negative size expected: " + Integer.toString(maxWords));
+    }
+    maxPooledWords = maxWords;
+  }
+
+  public static int getMaxPooledWords()
+  {
+    return maxPooledWords;
+  }
+
+  /**
+   * Drops the scratch word list of the current thread, for the threads done
+   * with the sets, such as the workers of a shared pool
+   */
+  public static void clearWordPool()
+  {
+    WORD_POOL.remove();
+  }
+
   public static ImmutableConciseSet intersection(Iterable<ImmutableConciseSet> sets)
   {
     return intersection(sets.iterator());
@@ -95,6 +258,191 @@ public class ImmutableConciseSet
     return partialResults;
   }
 
+  /**
+   * Elements of the first set that are not in the second one, computed
+   * without complementing the second set
+   */
+  public static ImmutableConciseSet difference(ImmutableConciseSet set1, ImmutableConciseSet set2)
+  {
+    if (set1 == null || set1.isEmpty()) {
+      return new ImmutableConciseSet();
+    }
+    if (set2 == null || set2.isEmpty()) {
+      return set1;
+    }
+    DenseBitmapCache cache = denseCache;
+    long[] bitmap = cache == null ? null : cache.get(set2);
+    if (bitmap != null) {
+      WordWriter retVal = new WordWriter();
+      doDense(set1, bitmap, true, retVal);
+      return retVal.build();
+    }
+    return doDifference(set1, set2);
+  }
+
+  /**
+   * Elements that are in exactly one of the two sets
+   */
+  public static ImmutableConciseSet symmetricDifference(ImmutableConciseSet set1, ImmutableConciseSet set2)
+  {
+    if (set1 == null || set1.isEmpty()) {
+      return set2 == null ? new ImmutableConciseSet() : set2;
+    }
+    if (set2 == null || set2.isEmpty()) {
+      return set1;
+    }
+    return doSymmetricDifference(set1, set2);
+  }
+
+  /**
+   * Elements that are in at least <code>minCount</code> of the given sets
+   */
+  public static ImmutableConciseSet threshold(List<ImmutableConciseSet> sets, int minCount)
+  {
+    return threshold(sets, minCount, null);
+  }
+
+  /**
+   * Elements that are in at least <code>minCount</code> of the given sets.
+   * Fills are skipped in bulk while enough sets agree on them, the bits of
+   * the other blocks are counted with bit-sliced counters.
+   *
+   * @param sets     sets to merge
+   * @param minCount minimum number of sets containing an element of the result
+   * @param counts   if not <code>null</code>, receives for each element of
+   *                 the result, in increasing order, the number of sets
+   *                 containing it
+   *
+   * @return the elements in at least <code>minCount</code> sets
+   */
+  public static ImmutableConciseSet threshold(List<ImmutableConciseSet> sets, int minCount, IntList counts)
+  {
+    if (minCount < 1) {
+      throw new IllegalArgumentException("positive count expected: " + Integer.toString(minCount));
+    }
+    if (minCount == 1 && counts == null) {
+      return union(sets);
+    }
+
+    List<WordCursor> cursors = new ArrayList<WordCursor>(sets.size());
+    for (ImmutableConciseSet set : sets) {
+      if (set != null && !set.isEmpty()) {
+        cursors.add(new WordCursor(set));
+      }
+    }
+    if (cursors.size() < minCount) {
+      return new ImmutableConciseSet();
+    }
+
+    WordWriter retVal = new WordWriter();
+    doThreshold(cursors.toArray(new WordCursor[cursors.size()]), minCount, retVal, counts);
+    return retVal.build();
+  }
+
+  /**
+   * Computes the number of elements of the intersection of two sets,
+   * without encoding the intersection
+   */
+  public static int intersectionSize(ImmutableConciseSet set1, ImmutableConciseSet set2)
+  {
+    if (set1 == null || set1.isEmpty() || set2 == null || set2.isEmpty()) {
+      return 0;
+    }
+    WordCounter counter = new WordCounter();
+    if (!doCachedIntersection(set1, set2, counter)) {
+      doIntersection(set1, set2, counter);
+    }
+    return counter.getCount();
+  }
+
+  public static int intersectionSize(Iterable<ImmutableConciseSet> sets)
+  {
+    return intersectionSize(sets.iterator());
+  }
+
+  /**
+   * Computes the number of elements of the intersection of many sets,
+   * without encoding the intersection
+   */
+  public static int intersectionSize(Iterator<ImmutableConciseSet> sets)
+  {
+    // only the intersections of the chunks before the last one are encoded,
+    // each one being intersected with the next chunk
+    List<ImmutableConciseSet> chunk = Lists.newArrayList(Iterators.limit(sets, CHUNK_SIZE));
+    while (sets.hasNext()) {
+      ImmutableConciseSet partialResult = doIntersection(chunk.iterator());
+      if (partialResult.isEmpty()) {
+        return 0;
+      }
+      chunk = Lists.newArrayList(Iterators.limit(sets, CHUNK_SIZE));
+      chunk.add(partialResult);
+    }
+    WordCounter counter = new WordCounter();
+    doIntersection(chunk.iterator(), counter);
+    return counter.getCount();
+  }
+
+  /**
+   * Computes the number of elements of the union of two sets, without
+   * encoding the union
+   */
+  public static int unionSize(ImmutableConciseSet set1, ImmutableConciseSet set2)
+  {
+    int size1 = set1 == null ? 0 : set1.size();
+    int size2 = set2 == null ? 0 : set2.size();
+    return size1 + size2 - intersectionSize(set1, set2);
+  }
+
+  public static int unionSize(Iterable<ImmutableConciseSet> sets)
+  {
+    return unionSize(sets.iterator());
+  }
+
+  /**
+   * Computes the number of elements of the union of many sets, without
+   * encoding the union
+   */
+  public static int unionSize(Iterator<ImmutableConciseSet> sets)
+  {
+    // only the unions of the chunks before the last one are encoded, the
+    // last chunk being merged with them
+    List<ImmutableConciseSet> operands = Lists.newArrayList(Iterators.limit(sets, CHUNK_SIZE));
+    if (sets.hasNext()) {
+      List<ImmutableConciseSet> partialResults = new ArrayList<ImmutableConciseSet>();
+      do {
+        partialResults.add(doUnion(operands.iterator()));
+        operands = Lists.newArrayList(Iterators.limit(sets, CHUNK_SIZE));
+      } while (sets.hasNext());
+      operands.addAll(partialResults);
+    }
+    WordCounter counter = new WordCounter();
+    doUnion(operands.iterator(), counter);
+    return counter.getCount();
+  }
+
+  /**
+   * Computes the number of elements of the first set that are not in the
+   * second one, without encoding the difference
+   */
+  public static int differenceSize(ImmutableConciseSet set1, ImmutableConciseSet set2)
+  {
+    if (set1 == null) {
+      return 0;
+    }
+    return set1.size() - intersectionSize(set1, set2);
+  }
+
+  /**
+   * Computes the number of elements that are in exactly one of the two
+   * sets, without encoding the symmetric difference
+   */
+  public static int symmetricDifferenceSize(ImmutableConciseSet set1, ImmutableConciseSet set2)
+  {
+    int size1 = set1 == null ? 0 : set1.size();
+    int size2 = set2 == null ? 0 : set2.size();
+    return size1 + size2 - 2 * intersectionSize(set1, set2);
+  }
+
   public static ImmutableConciseSet complement(ImmutableConciseSet set)
   {
     return doComplement(set);
@@ -115,7 +463,7 @@ public class ImmutableConciseSet
       return ImmutableConciseSet.newImmutableFromMutable(newSet);
     }
 
-    IntList retVal = new IntList();
+    IntList retVal = borrowWords();
     int endIndex = length - 1;
 
     int wordsWalked = 0;
@@ -124,7 +472,7 @@ public class ImmutableConciseSet
     WordIterator iter = set.newWordIterator();
 
     while (iter.hasNext()) {
-        int word = iter.next();
+        int word = iter.nextWord();
         wordsWalked = iter.wordsWalked;
         if (ConciseSetUtils.isLiteral(word)) {
           retVal.add(ConciseSetUtils.ALL_ZEROS_LITERAL | ~word);
@@ -175,53 +523,100 @@ public class ImmutableConciseSet
     trimZeros(retVal);
 
     if (retVal.isEmpty()) {
+      giveBackWords(retVal);
       return new ImmutableConciseSet();
     }
-    return compact(new ImmutableConciseSet(IntBuffer.wrap(retVal.toArray())));
+    return compact(new ImmutableConciseSet(releaseWords(retVal)));
   }
   public static ImmutableConciseSet compact(ConciseSet set)
   {
-    IntList retVal = new IntList();
-    final ByteBuffer bb = set.toByteBuffer();
-    ImmutableConciseSet set_new = new ImmutableConciseSet(bb);
-    WordIterator itr = set_new.newWordIterator();
-    while (itr.hasNext()) {
-      addAndCompact(retVal, itr.next(),true);
-    }
-    IntBuffer buffer =  IntBuffer.wrap(retVal.toArray());
-    return new ImmutableConciseSet(buffer);
+    return compact(set, true);
   }
   public static ImmutableConciseSet compact(ImmutableConciseSet set)
   {
-    IntList retVal = new IntList();
+    IntList retVal = borrowWords();
     WordIterator itr = set.newWordIterator();
     while (itr.hasNext()) {
-      addAndCompact(retVal, itr.next(),false);
+      addAndCompact(retVal, itr.nextWord(),false);
     }
-    IntBuffer buffer =  IntBuffer.wrap(retVal.toArray());
+    IntBuffer buffer =  releaseWords(retVal);
     return new ImmutableConciseSet(buffer);
   }
   public static ImmutableConciseSet compact(ImmutableConciseSet set, boolean isConcise)
   {
-    IntList retVal = new IntList();
+    IntList retVal = borrowWords();
     WordIterator itr = set.newWordIterator();
     while (itr.hasNext()) {
-      addAndCompact(retVal, itr.next(),isConcise);
+      addAndCompact(retVal, itr.nextWord(),isConcise);
     }
-    IntBuffer buffer =  IntBuffer.wrap(retVal.toArray());
+    IntBuffer buffer =  releaseWords(retVal);
     return new ImmutableConciseSet(buffer);
   }
   public static ImmutableConciseSet compact(ConciseSet set, boolean isConcise)
   {
-    IntList retVal = new IntList();
-    final ByteBuffer bb = set.toByteBuffer();
-    ImmutableConciseSet set_new = new ImmutableConciseSet(bb);
-    WordIterator itr = set_new.newWordIterator();
-    while (itr.hasNext()) {
-      addAndCompact(retVal, itr.next(),isConcise);
+    if (set.isEmpty()) {
+      return new ImmutableConciseSet();
     }
-    IntBuffer buffer =  IntBuffer.wrap(retVal.toArray());
-    return new ImmutableConciseSet(buffer);
+    // the words of a ConciseSet are re-encoded directly, they must not be
+    // read as SECOMPAX words
+    return new ImmutableConciseSet(compactWords(IntBuffer.wrap(set.getWords()), isConcise));
+  }
+
+  /**
+   * Encodes increasing non-negative integers in a single pass
+   */
+  public static ImmutableConciseSet newImmutableFromSorted(int... ints)
+  {
+    SortedIntEncoder encoder = new SortedIntEncoder();
+    for (int i : ints) {
+      encoder.add(i);
+    }
+    return encoder.build();
+  }
+
+  /**
+   * Encodes the integers returned by an iterator in a single pass, the
+   * iterator must return them in increasing order
+   */
+  public static ImmutableConciseSet newImmutableFromIterator(IntSet.IntIterator ints)
+  {
+    SortedIntEncoder encoder = new SortedIntEncoder();
+    while (ints.hasNext()) {
+      encoder.add(ints.next());
+    }
+    return encoder.build();
+  }
+
+  /**
+   * Encodes increasing non-negative integers in a single pass, and keeps
+   * either the SECOMPAX words or the integers themselves as a sorted array,
+   * whichever takes fewer ints. Very sparse sets are both smaller and faster
+   * to search as arrays, and all the operations accept sets of either codec.
+   */
+  public static ImmutableConciseSet newImmutableAdaptive(int... ints)
+  {
+    SortedIntEncoder encoder = new SortedIntEncoder();
+    for (int i : ints) {
+      encoder.add(i);
+    }
+    return encoder.build(ints, ints.length);
+  }
+
+  /**
+   * Encodes the integers returned by an iterator as
+   * {@link #newImmutableAdaptive(int...)} does, the iterator must return them
+   * in increasing order
+   */
+  public static ImmutableConciseSet newImmutableAdaptive(IntSet.IntIterator ints)
+  {
+    SortedIntEncoder encoder = new SortedIntEncoder();
+    IntList values = new IntList();
+    while (ints.hasNext()) {
+      int i = ints.next();
+      encoder.add(i);
+      values.add(i);
+    }
+    return encoder.build(values.toArray(), values.length());
   }
   
   public static int ConvertFill(int word)
@@ -293,11 +688,11 @@ public class ImmutableConciseSet
     	{				//0-fill is compressed into a f-l-f
     		if(ConciseSetUtils.isF1_L_F2(last))
     		{
-    			int[] fillnum = ConciseSetUtils.getFLFFILLWords(last);
-    			int filltype = (last & 0x04000000) >>> 26;
+    			int fillnum = ConciseSetUtils.getFLFSecondFillCount(last);
+    			int filltype = ConciseSetUtils.getFLFSecondFillType(last);
       			if(filltype == fillkind)
       			{
-      				if(fillnum[1] + ConciseSetUtils.getSequenceCount(wordToAdd) <= ConciseSetUtils.MAX_F_L_F_NUM)
+      				if(fillnum + ConciseSetUtils.getSequenceCount(wordToAdd) <= ConciseSetUtils.MAX_F_L_F_NUM)
       				{
       					newWord = last + ConciseSetUtils.getSequenceCount(wordToAdd);
       					set.set(length - 1, newWord);
@@ -447,264 +842,114 @@ public class ImmutableConciseSet
 
   private static ImmutableConciseSet doUnion(Iterator<ImmutableConciseSet> sets)
   {
-    IntList retVal = new IntList();
+    WordWriter retVal = new WordWriter();
+    doUnion(sets, retVal);
+    return retVal.build();
+  }
 
-    // lhs = current word position, rhs = the iterator
+  private static void doUnion(Iterator<ImmutableConciseSet> sets, WordWriter retVal)
+  {
     // Comparison is first by index, then one fills > literals > zero fills
     // one fills are sorted by length (longer one fills have priority)
     // similarily, shorter zero fills have priority
-    MinMaxPriorityQueue<WordHolder> theQ = MinMaxPriorityQueue.orderedBy(
-        new Comparator<WordHolder>()
-        {
-          @Override
-          public int compare(WordHolder h1, WordHolder h2)
-          {
-            int w1 = h1.getWord();
-            int w2 = h2.getWord();
-            int s1 = h1.getIterator().startIndex;
-            int s2 = h2.getIterator().startIndex;
-
-            if (s1 != s2) {
-              return compareInts(s1, s2);
-            }
-
-            if (ConciseSetUtils.is1_fill(w1)) {
-              if (ConciseSetUtils.is1_fill(w2)) {
-                return -compareInts(ConciseSetUtils.getSequenceNumWords(w1), ConciseSetUtils.getSequenceNumWords(w2));
-              }
-              return -1;
-            } else if (ConciseSetUtils.isLiteral(w1)) {
-              if (ConciseSetUtils.is1_fill(w2)) {
-                return 1;
-              } else if (ConciseSetUtils.isLiteral(w2)) {
-                return 0;
-              }
-              return -1;
-            } else {
-              if (!ConciseSetUtils.is0_fill(w2)) {
-                return 1;
-              }
-              return compareInts(ConciseSetUtils.getSequenceNumWords(w1), ConciseSetUtils.getSequenceNumWords(w2));
-            }
-          }
-        }
-    ).create();
+    WordQueue theQ = new WordQueue(true);
 
     // populate priority queue
     while (sets.hasNext()) {
       ImmutableConciseSet set = sets.next();
 
       if (set != null && !set.isEmpty()) {
-        WordIterator itr = set.newWordIterator();
-        theQ.add(new WordHolder(itr.next(), itr));
+        theQ.addOperand(set.newWordIterator());
       }
     }
-    
+
     int currIndex = 0;
 
     while (!theQ.isEmpty()) {
-      // create a temp list to hold everything that will get pushed back into the priority queue after each run
-      List<WordHolder> wordsToAdd = Lists.newArrayList();
-
       // grab the top element from the priority queue
-      WordHolder curr = theQ.poll();
-      int word = curr.getWord();
-      WordIterator itr = curr.getIterator();
+      int curr = theQ.poll();
+      int word = theQ.getWord(curr);
+      WordIterator itr = theQ.getIterator(curr);
 
       // if the next word in the queue starts at a different point than where we ended off we need to create a zero gap
       // to fill the space
       if (currIndex < itr.startIndex) {
-        addAndCompact(retVal, itr.startIndex - currIndex,false);
+        retVal.addZeroFill(itr.startIndex - currIndex);
         currIndex = itr.startIndex;
       }
 
       if (ConciseSetUtils.is1_fill(word)) {
-        // extract a literal from the flip bits of the one sequence
-        //int flipBitLiteral = ConciseSetUtils.getLiteralFromOneSeqFlipBit(word);
-
         // advance everything past the longest ones sequence
-        WordHolder nextVal = theQ.peek();
-        while (nextVal != null &&
-               nextVal.getIterator().startIndex < itr.wordsWalked) {
-          WordHolder entry = theQ.poll();
-          int w = entry.getWord();
-          WordIterator i = entry.getIterator();
-
-          /*if (i.startIndex == itr.startIndex) {
-            // if a literal was created from a flip bit, OR it with other literals or literals from flip bits in the same
-            // position
-            if (ConciseSetUtils.isOneSequence(w)) {
-              flipBitLiteral |= ConciseSetUtils.getLiteralFromOneSeqFlipBit(w);
-            } else if (ConciseSetUtils.isLiteral(w)) {
-              flipBitLiteral |= w;
-            } else {
-              flipBitLiteral |= ConciseSetUtils.getLiteralFromZeroSeqFlipBit(w);
-            }
-          }*/
-
-          i.advanceTo(itr.wordsWalked);
-          if (i.hasNext()) {
-            wordsToAdd.add(new WordHolder(i.next(), i));
-          }
-          nextVal = theQ.peek();
+        while (!theQ.isEmpty() && theQ.peekStartIndex() < itr.wordsWalked) {
+          int i = theQ.poll();
+          theQ.getIterator(i).advanceTo(itr.wordsWalked);
+          theQ.advance(i);
         }
 
-        // advance longest one literal forward and push result back to priority queue
-        // if a flip bit is still needed, put it in the correct position
-        /*int newWord = word & 0xC1FFFFFF;
-        if (flipBitLiteral != ConciseSetUtils.ALL_ONES_LITERAL) {
-          flipBitLiteral ^= ConciseSetUtils.ALL_ONES_LITERAL;
-          int position = Integer.numberOfTrailingZeros(flipBitLiteral) + 1;
-          newWord |= (position << 25);
-        }*/
-        addAndCompact(retVal, word,false);
+        retVal.addOneFill(ConciseSetUtils.getSequenceCount(word));
         currIndex = itr.wordsWalked;
-
-        if (itr.hasNext()) {
-          wordsToAdd.add(new WordHolder(itr.next(), itr));
-        }
       } else if (ConciseSetUtils.isLiteral(word)) {
-        // advance all other literals
-        WordHolder nextVal = theQ.peek();
-        while (nextVal != null &&
-               nextVal.getIterator().startIndex == itr.startIndex) {
-
-          WordHolder entry = theQ.poll();
-          int w = entry.getWord();
-          WordIterator i = entry.getIterator();
-
-          // if we still have zero fills with flipped bits, OR them here
+        // OR all other literals, zero fills can be skipped
+        while (!theQ.isEmpty() && theQ.peekStartIndex() == itr.startIndex) {
+          int i = theQ.poll();
+          int w = theQ.getWord(i);
           if (ConciseSetUtils.isLiteral(w)) {
             word |= w;
-            if(word == 0xffffffff)
-            	word = 0x10000001;
-          } else {
-            /*int flipBitLiteral = ConciseSetUtils.getLiteralFromZeroSeqFlipBit(w);
-            if (flipBitLiteral != ConciseSetUtils.ALL_ZEROS_LITERAL) {
-              word |= flipBitLiteral;
-              i.advanceTo(itr.wordsWalked);
-            }*/
-        	if(ConciseSetUtils.is1_fill(w))
-        	{
-        		word = 0x10000001;
-        		i.advanceTo(itr.wordsWalked);
-        	}
           }
-
-          if (i.hasNext()) {
-            wordsToAdd.add(new WordHolder(i.next(), i));
-          }
-
-          nextVal = theQ.peek();
+          theQ.advance(i);
         }
 
-        // advance the set with the current literal forward and push result back to priority queue
-        addAndCompact(retVal, word, false);
+        retVal.addLiteral(word);
         currIndex++;
-
-        if (itr.hasNext()) {
-          wordsToAdd.add(new WordHolder(itr.next(), itr));
-        }
       } else { // zero fills
-          WordHolder nextVal = theQ.peek();
-
-          while (nextVal != null &&
-                 nextVal.getIterator().startIndex == itr.startIndex) {
-            // check if literal can be created flip bits of other zero sequences
-            WordHolder entry = theQ.poll();
-            int w = entry.getWord();
-            WordIterator i = entry.getIterator();
-
-            if (i.hasNext()) {
-              wordsToAdd.add(new WordHolder(i.next(), i));
-            }
-            nextVal = theQ.peek();
-          }
-
-          // check if a literal needs to be created from the flipped bits of this sequence
-          if (itr.hasNext()) {
-            wordsToAdd.add(new WordHolder(itr.next(), itr));
-          }
-          
+        while (!theQ.isEmpty() && theQ.peekStartIndex() == itr.startIndex) {
+          theQ.advance(theQ.poll());
         }
+      }
 
-      theQ.addAll(wordsToAdd);
-    }
-
-    if (retVal.isEmpty()) {
-      return new ImmutableConciseSet();
+      // push the set with the current word forward
+      theQ.advance(curr);
     }
-    return new ImmutableConciseSet(IntBuffer.wrap(retVal.toArray()));
   }
 
   public static ImmutableConciseSet doIntersection(Iterator<ImmutableConciseSet> sets)
   {
-    IntList retVal = new IntList();
+    WordWriter retVal = new WordWriter();
+    doIntersection(sets, retVal);
+    return retVal.build();
+  }
 
-    // lhs = current word position, rhs = the iterator
+  private static void doIntersection(Iterator<ImmutableConciseSet> sets, WordWriter retVal)
+  {
     // Comparison is first by index, then zero fills > literals > one fills
     // zero fills are sorted by length (longer zero fills have priority)
     // similarily, shorter one fills have priority
-    MinMaxPriorityQueue<WordHolder> theQ = MinMaxPriorityQueue.orderedBy(
-        new Comparator<WordHolder>()
-        {
-          @Override
-          public int compare(WordHolder h1, WordHolder h2)
-          {
-            int w1 = h1.getWord();
-            int w2 = h2.getWord();
-            int s1 = h1.getIterator().startIndex;
-            int s2 = h2.getIterator().startIndex;
-
-            if (s1 != s2) {
-              return compareInts(s1, s2);
-            }
-
-            if (ConciseSetUtils.is0_fill(w1)) {
-              if (ConciseSetUtils.is0_fill(w2)) {
-                return -compareInts(ConciseSetUtils.getSequenceNumWords(w1), ConciseSetUtils.getSequenceNumWords(w2));
-              }
-              return -1;
-            } else if (ConciseSetUtils.isLiteral(w1)) {
-              if (ConciseSetUtils.is0_fill(w2)) {
-                return 1;
-              } else if (ConciseSetUtils.isLiteral(w2)) {
-                return 0;
-              }
-              return -1;
-            } else {
-              if (!ConciseSetUtils.is1_fill(w2)) {
-                return 1;
-              }
-              return compareInts(ConciseSetUtils.getSequenceNumWords(w1), ConciseSetUtils.getSequenceNumWords(w2));
-            }
-          }
-        }
-    ).create();
+    WordQueue theQ = new WordQueue(false);
 
     // populate priority queue
     while (sets.hasNext()) {
       ImmutableConciseSet set = sets.next();
 
       if (set == null || set.isEmpty()) {
-        return new ImmutableConciseSet();
+        return;
       }
 
-      WordIterator itr = set.newWordIterator();
-      theQ.add(new WordHolder(itr.next(), itr));
+      theQ.addOperand(set.newWordIterator());
+    }
+
+    // the intersection of no sets is empty
+    if (theQ.isEmpty()) {
+      return;
     }
 
     int currIndex = 0;
     int wordsWalkedAtSequenceEnd = Integer.MAX_VALUE;
 
     while (!theQ.isEmpty()) {
-      // create a temp list to hold everything that will get pushed back into the priority queue after each run
-      List<WordHolder> wordsToAdd = Lists.newArrayList();
-
       // grab the top element from the priority queue
-      WordHolder curr = theQ.poll();
-      int word = curr.getWord();
-      WordIterator itr = curr.getIterator();
+      int curr = theQ.poll();
+      int word = theQ.getWord(curr);
+      WordIterator itr = theQ.getIterator(curr);
 
       // if a sequence has ended, we can break out because of Boolean logic
       if (itr.startIndex >= wordsWalkedAtSequenceEnd) {
@@ -714,1307 +959,2665 @@ public class ImmutableConciseSet
       // if the next word in the queue starts at a different point than where we ended off we need to create a one gap
       // to fill the space
       if (currIndex < itr.startIndex) {
-        // number of 31 bit blocks that compromise the fill minus one
-        addAndCompact(retVal, (0x10000000 | (itr.startIndex - currIndex)),false);
+        retVal.addOneFill(itr.startIndex - currIndex);
         currIndex = itr.startIndex;
       }
 
       if (ConciseSetUtils.is0_fill(word)) {
-        // extract a literal from the flip bits of the zero sequence
-        //int flipBitLiteral = ConciseSetUtils.getLiteralFromZeroSeqFlipBit(word);
-
         // advance everything past the longest zero sequence
-        WordHolder nextVal = theQ.peek();
-        while (nextVal != null &&
-               nextVal.getIterator().startIndex < itr.wordsWalked) {
-          WordHolder entry = theQ.poll();
-          int w = entry.getWord();
-          WordIterator i = entry.getIterator();
-
-          /*if (i.startIndex == itr.startIndex) {
-            // if a literal was created from a flip bit, AND it with other literals or literals from flip bits in the same
-            // position
-            if (ConciseSetUtils.isZeroSequence(w)) {
-              flipBitLiteral &= ConciseSetUtils.getLiteralFromZeroSeqFlipBit(w);
-            } else if (ConciseSetUtils.isLiteral(w)) {
-              flipBitLiteral &= w;
-            } else {
-              flipBitLiteral &= ConciseSetUtils.getLiteralFromOneSeqFlipBit(w);
-            }
-          }*/
-
-          i.advanceTo(itr.wordsWalked);
-          if (i.hasNext()) {
-            wordsToAdd.add(new WordHolder(i.next(), i));
-          } else {
-            wordsWalkedAtSequenceEnd = Math.min(i.wordsWalked, wordsWalkedAtSequenceEnd);
+        while (!theQ.isEmpty() && theQ.peekStartIndex() < itr.wordsWalked) {
+          int i = theQ.poll();
+          theQ.getIterator(i).advanceTo(itr.wordsWalked);
+          if (!theQ.advance(i)) {
+            wordsWalkedAtSequenceEnd = Math.min(theQ.getIterator(i).wordsWalked, wordsWalkedAtSequenceEnd);
           }
-          nextVal = theQ.peek();
         }
 
-        // advance longest zero literal forward and push result back to priority queue
-        // if a flip bit is still needed, put it in the correct position
-        //int newWord = word & 0xC1FFFFFF;
-        /*if (flipBitLiteral != ConciseSetUtils.ALL_ZEROS_LITERAL) {
-          int position = Integer.numberOfTrailingZeros(flipBitLiteral) + 1;
-          newWord = (word & 0xC1FFFFFF) | (position << 25);
-        }*/
-        addAndCompact(retVal, word, false);
+        retVal.addZeroFill(ConciseSetUtils.getSequenceCount(word));
         currIndex = itr.wordsWalked;
-
-        if (itr.hasNext()) {
-          wordsToAdd.add(new WordHolder(itr.next(), itr));
-        } else {
-          wordsWalkedAtSequenceEnd = Math.min(itr.wordsWalked, wordsWalkedAtSequenceEnd);
-        }
       } else if (ConciseSetUtils.isLiteral(word)) {
-        // advance all other literals
-        WordHolder nextVal = theQ.peek();
-        while (nextVal != null &&
-               nextVal.getIterator().startIndex == itr.startIndex) {
-
-          WordHolder entry = theQ.poll();
-          int w = entry.getWord();
-          WordIterator i = entry.getIterator();
-
-          // if we still have one fills with flipped bits, AND them here
+        // AND all other literals, one fills are advanced past the literal
+        while (!theQ.isEmpty() && theQ.peekStartIndex() == itr.startIndex) {
+          int i = theQ.poll();
+          int w = theQ.getWord(i);
           if (ConciseSetUtils.isLiteral(w)) {
             word &= w;
           } else {
-            /*int flipBitLiteral = ConciseSetUtils.getLiteralFromOneSeqFlipBit(w);
-            if (flipBitLiteral != ConciseSetUtils.ALL_ONES_LITERAL) {
-              word &= flipBitLiteral;
-              i.advanceTo(itr.wordsWalked);
-            }*/
-        	if(ConciseSetUtils.is0_fill(w))
-        	{
-        		word = 0x00000001;
-        		i.advanceTo(itr.wordsWalked);
-        	}
-        	else
-        	{
-        		i.advanceTo(itr.wordsWalked);
-        	}
+            theQ.getIterator(i).advanceTo(itr.wordsWalked);
           }
-
-          if (i.hasNext()) {
-            wordsToAdd.add(new WordHolder(i.next(), i));
-          } else {
-            wordsWalkedAtSequenceEnd = Math.min(i.wordsWalked, wordsWalkedAtSequenceEnd);
+          if (!theQ.advance(i)) {
+            wordsWalkedAtSequenceEnd = Math.min(theQ.getIterator(i).wordsWalked, wordsWalkedAtSequenceEnd);
           }
-
-          nextVal = theQ.peek();
         }
 
-        // advance the set with the current literal forward and push result back to priority queue
-        addAndCompact(retVal, word, false);
+        retVal.addLiteral(word);
         currIndex++;
-
-        if (itr.hasNext()) {
-          wordsToAdd.add(new WordHolder(itr.next(), itr));
-        } else {
-          wordsWalkedAtSequenceEnd = Math.min(itr.wordsWalked, wordsWalkedAtSequenceEnd);
-        }
       } else { // one fills
-        //int flipBitLiteral;
-        WordHolder nextVal = theQ.peek();
-
-        while (nextVal != null &&
-               nextVal.getIterator().startIndex == itr.startIndex) {
-          // check if literal can be created flip bits of other one sequences
-          WordHolder entry = theQ.poll();
-          int w = entry.getWord();
-          WordIterator i = entry.getIterator();
-          i.advanceTo(itr.wordsWalked);
-          /*flipBitLiteral = ConciseSetUtils.getLiteralFromOneSeqFlipBit(w);
-          if (flipBitLiteral != ConciseSetUtils.ALL_ONES_LITERAL) {
-            wordsToAdd.add(new WordHolder(flipBitLiteral, i));
-          } else */if (i.hasNext()) {
-            wordsToAdd.add(new WordHolder(i.next(), i));
-          } else {
-            wordsWalkedAtSequenceEnd = Math.min(i.wordsWalked, wordsWalkedAtSequenceEnd);
+        while (!theQ.isEmpty() && theQ.peekStartIndex() == itr.startIndex) {
+          int i = theQ.poll();
+          theQ.getIterator(i).advanceTo(itr.wordsWalked);
+          if (!theQ.advance(i)) {
+            wordsWalkedAtSequenceEnd = Math.min(theQ.getIterator(i).wordsWalked, wordsWalkedAtSequenceEnd);
           }
-
-          nextVal = theQ.peek();
-        }
-
-        // check if a literal needs to be created from the flipped bits of this sequence
-        //flipBitLiteral = ConciseSetUtils.getLiteralFromOneSeqFlipBit(word);
-        /*if (flipBitLiteral != ConciseSetUtils.ALL_ONES_LITERAL) {
-          wordsToAdd.add(new WordHolder(flipBitLiteral, itr));
-        } else */if (itr.hasNext()) {
-          wordsToAdd.add(new WordHolder(itr.next(), itr));
-        } else {
-          wordsWalkedAtSequenceEnd = Math.min(itr.wordsWalked, wordsWalkedAtSequenceEnd);
         }
       }
 
-      theQ.addAll(wordsToAdd);
+      // push the set with the current word forward
+      if (!theQ.advance(curr)) {
+        wordsWalkedAtSequenceEnd = Math.min(itr.wordsWalked, wordsWalkedAtSequenceEnd);
+      }
     }
 
     // fill in any missing one sequences
     if (currIndex < wordsWalkedAtSequenceEnd) {
-      addAndCompact(retVal, (0x10000000 | (wordsWalkedAtSequenceEnd - currIndex)),false);
-    }
-
-    if (retVal.isEmpty()) {
-      return new ImmutableConciseSet();
+      retVal.addOneFill(wordsWalkedAtSequenceEnd - currIndex);
     }
-    return new ImmutableConciseSet(IntBuffer.wrap(retVal.toArray()));
   }
 
-  public static ImmutableConciseSet doComplement(ImmutableConciseSet set)
+  /**
+   * Union of two non-empty sets, walking both word streams side by side
+   */
+  private static ImmutableConciseSet doUnion(ImmutableConciseSet set1, ImmutableConciseSet set2)
   {
-    if (set == null || set.isEmpty()) {
-      return new ImmutableConciseSet();
-    }
+    WordWriter retVal = new WordWriter();
+    WordCursor c1 = new WordCursor(set1);
+    WordCursor c2 = new WordCursor(set2);
 
-    IntList retVal = new IntList();
-    WordIterator iter = set.newWordIterator();
-    while (iter.hasNext()) {
-      int word = iter.next();
-      if (ConciseSetUtils.isLiteral(word)) {
-        retVal.add(ConciseSetUtils.ALL_ZEROS_LITERAL | ~word);
+    while (c1.hasWord() && c2.hasWord()) {
+      if (addCombinedComposites(c1, c2, OP_OR, retVal)) {
+        continue;
+      }
+      if (c1.isOneFill() || c2.isOneFill()) {
+        // the longest one fill covers whatever the other set has
+        WordCursor fill = !c2.isOneFill() || (c1.isOneFill() && c1.remaining >= c2.remaining) ? c1 : c2;
+        WordCursor other = fill == c1 ? c2 : c1;
+        int blocks = fill.remaining;
+        retVal.addOneFill(blocks);
+        fill.skip(blocks);
+        other.skip(blocks);
+      } else if (c1.isLiteral() && c2.isLiteral()) {
+        addCombinedLiterals(c1, c2, OP_OR, retVal);
+      } else if (c1.isLiteral()) {
+        retVal.addLiteral(c1.word);
+        c1.skip(1);
+        c2.skip(1);
+      } else if (c2.isLiteral()) {
+        retVal.addLiteral(c2.word);
+        c1.skip(1);
+        c2.skip(1);
       } else {
-    	  if(ConciseSetUtils.is0_fill(word))
-    	  {
-    		  retVal.add(0x10000000 | ConciseSetUtils.getSequenceCount(word));
-    	  }
-    	  else
-    	  {
-    		  retVal.add(ConciseSetUtils.getSequenceCount(word));
-    	  }
-        //retVal.add(ConciseSetUtils.SEQUENCE_BIT ^ word);
+        int blocks = Math.min(c1.remaining, c2.remaining);
+        retVal.addZeroFill(blocks);
+        c1.skip(blocks);
+        c2.skip(blocks);
       }
     }
-    // do not complement after the last element
-    int lastWord = retVal.get(retVal.length() - 1);
-    if (ConciseSetUtils.isLiteral(lastWord)) {
-      lastWord = ConciseSetUtils.clearBitsAfterInLastWord(
-          lastWord,
-          ConciseSetUtils.maxLiteralLengthModulus(set.getLast())
-      );
-    }
-
-    retVal.set(retVal.length() - 1, lastWord);
-
-    trimZeros(retVal);
 
-    if (retVal.isEmpty()) {
-      return new ImmutableConciseSet();
+    // copy the rest of the longest set
+    WordCursor rest = c1.hasWord() ? c1 : c2;
+    while (rest.hasWord()) {
+      rest.copyWordTo(retVal);
     }
-    return new ImmutableConciseSet(IntBuffer.wrap(retVal.toArray()));
+    return retVal.build();
   }
 
-  // Based on the ConciseSet implementation by Alessandro Colantonio
-  private static void trimZeros(IntList set)
+  /**
+   * Intersection of two non-empty sets, walking both word streams side by side
+   */
+  private static void doIntersection(ImmutableConciseSet set1, ImmutableConciseSet set2, WordWriter retVal)
   {
-    // loop over ALL_ZEROS_LITERAL words
-    int w;
-    int last = set.length() - 1;
-    do {
-      w = set.get(last);
-      if(ConciseSetUtils.is0_fill(w))
-    	  {
-    	  	set.set(last, 0);
-    	  	last--;
-    	  }
-      else {
-        // one sequence or literal
-        return;
+    WordCursor c1 = new WordCursor(set1);
+    WordCursor c2 = new WordCursor(set2);
+
+    while (c1.hasWord() && c2.hasWord()) {
+      if (addCombinedComposites(c1, c2, OP_AND, retVal)) {
+        continue;
       }
-      if (set.isEmpty() || last == -1) {
-        return;
+      if (c1.isZeroFill() || c2.isZeroFill()) {
+        // the longest zero fill clears whatever the other set has
+        WordCursor fill = !c2.isZeroFill() || (c1.isZeroFill() && c1.remaining >= c2.remaining) ? c1 : c2;
+        WordCursor other = fill == c1 ? c2 : c1;
+        int blocks = fill.remaining;
+        retVal.addZeroFill(blocks);
+        fill.skip(blocks);
+        other.skip(blocks);
+      } else if (c1.isLiteral() && c2.isLiteral()) {
+        addCombinedLiterals(c1, c2, OP_AND, retVal);
+      } else if (c1.isLiteral()) {
+        retVal.addLiteral(c1.word);
+        c1.skip(1);
+        c2.skip(1);
+      } else if (c2.isLiteral()) {
+        retVal.addLiteral(c2.word);
+        c1.skip(1);
+        c2.skip(1);
+      } else {
+        int blocks = Math.min(c1.remaining, c2.remaining);
+        retVal.addOneFill(blocks);
+        c1.skip(blocks);
+        c2.skip(blocks);
       }
-    } while (true);
+    }
   }
 
-  private final IntBuffer words;
-  private final int lastWordIndex;
-  private final int size;
-  
-  public int[] getWords()
+  /**
+   * Intersection of two non-empty sets through the bitmap of one of them,
+   * when the {@link DenseBitmapCache} has one. The set with fewer words is
+   * walked when both are cached.
+   *
+   * @return <code>false</code> if none of the sets is cached
+   */
+  private static boolean doCachedIntersection(ImmutableConciseSet set1, ImmutableConciseSet set2, WordWriter retVal)
   {
-	  return words.array();
-  }
-  public ImmutableConciseSet()
-  {
-    this.words = null;
-    this.lastWordIndex = -1;
-    this.size = 0;
+    DenseBitmapCache cache = denseCache;
+    if (cache == null) {
+      return false;
+    }
+    long[] bitmap1 = cache.get(set1);
+    long[] bitmap2 = cache.get(set2);
+    if (bitmap2 != null && (bitmap1 == null || set1.lastWordIndex <= set2.lastWordIndex)) {
+      doDense(set1, bitmap2, false, retVal);
+      return true;
+    }
+    if (bitmap1 != null) {
+      doDense(set2, bitmap1, false, retVal);
+      return true;
+    }
+    return false;
   }
 
-  public ImmutableConciseSet(ByteBuffer byteBuffer)
+  /**
+   * Intersection, or difference, of a set and a bitmap decoded by the
+   * {@link DenseBitmapCache}, walking the words of the set only: zero fills
+   * are skipped in bulk, literals and the blocks of one fills are combined
+   * with the blocks of the bitmap.
+   */
+  private static void doDense(ImmutableConciseSet set, long[] bitmap, boolean andNot, WordWriter retVal)
   {
-    this.words = byteBuffer.asIntBuffer();
-    this.lastWordIndex = words.capacity() - 1;
-    this.size = calcSize();
+    int bitmapBlocks = DenseBitmapCache.getBlockCount(bitmap);
+    int block = 0;
+    WordIterator itr = set.newWordIterator();
+    while (itr.hasNext()) {
+      int word = itr.nextWord();
+      if (ConciseSetUtils.isLiteral(word)) {
+        int bits = DenseBitmapCache.getBlock(bitmap, block);
+        retVal.addLiteral(ConciseSetUtils.ALL_ZEROS_LITERAL | (andNot ? word & ~bits : word & bits));
+        block++;
+        continue;
+      }
+      int end = block + ConciseSetUtils.getSequenceCount(word);
+      if (ConciseSetUtils.is0_fill(word)) {
+        retVal.addZeroFill(end - block);
+        block = end;
+        continue;
+      }
+      for (int covered = Math.min(end, bitmapBlocks); block < covered; block++) {
+        int bits = DenseBitmapCache.getBlock(bitmap, block);
+        retVal.addLiteral(ConciseSetUtils.ALL_ZEROS_LITERAL | (andNot ? ~bits : bits));
+      }
+      // the blocks after the bitmap are empty
+      if (block < end) {
+        if (andNot) {
+          retVal.addOneFill(end - block);
+        } else {
+          retVal.addZeroFill(end - block);
+        }
+        block = end;
+      }
+    }
   }
 
-  public ImmutableConciseSet(IntBuffer buffer)
+  /**
+   * Difference of two non-empty sets, walking both word streams side by side
+   */
+  private static ImmutableConciseSet doDifference(ImmutableConciseSet set1, ImmutableConciseSet set2)
   {
-    this.words = buffer;
-    this.lastWordIndex = (words == null || buffer.capacity() == 0) ? -1 : words.capacity() - 1;
-    this.size = calcSize();
-  }
+    WordWriter retVal = new WordWriter();
+    WordCursor c1 = new WordCursor(set1);
+    WordCursor c2 = new WordCursor(set2);
 
-  public byte[] toBytes()
-  {
-    ByteBuffer buf = ByteBuffer.allocate(words.capacity() * Ints.BYTES);
-    buf.asIntBuffer().put(words.asReadOnlyBuffer());
-    return buf.array();
-  }
+    while (c1.hasWord() && c2.hasWord()) {
+      if (addCombinedComposites(c1, c2, OP_AND_NOT, retVal)) {
+        continue;
+      }
+      if (c1.isZeroFill() || c2.isOneFill()) {
+        // nothing is left in these blocks
+        int blocks = c1.isZeroFill() && (!c2.isOneFill() || c1.remaining >= c2.remaining) ? c1.remaining : c2.remaining;
+        retVal.addZeroFill(blocks);
+        c1.skip(blocks);
+        c2.skip(blocks);
+      } else if (c1.isOneFill() && c2.isZeroFill()) {
+        int blocks = Math.min(c1.remaining, c2.remaining);
+        retVal.addOneFill(blocks);
+        c1.skip(blocks);
+        c2.skip(blocks);
+      } else if (c1.isLiteral() && c2.isLiteral()) {
+        addCombinedLiterals(c1, c2, OP_AND_NOT, retVal);
+      } else {
+        retVal.addLiteral(ConciseSetUtils.ALL_ZEROS_LITERAL | (c1.getLiteral() & ~c2.getLiteral()));
+        c1.skip(1);
+        c2.skip(1);
+      }
+    }
 
-  public int getLastWordIndex()
-  {
-    return lastWordIndex;
+    // nothing is removed after the end of the second set
+    while (c1.hasWord()) {
+      c1.copyWordTo(retVal);
+    }
+    return retVal.build();
   }
 
-  // Based on the ConciseSet implementation by Alessandro Colantonio
-  private int calcSize()  //
+  /**
+   * Symmetric difference of two non-empty sets, walking both word streams
+   * side by side
+   */
+  private static ImmutableConciseSet doSymmetricDifference(ImmutableConciseSet set1, ImmutableConciseSet set2)
   {
-    int retVal = 0;
-    for (int i = 0; i <= lastWordIndex; i++) {
-      int w = words.get(i);
-      if (ConciseSetUtils.isLiteral(w)) {
-        retVal += ConciseSetUtils.getLiteralBitCount(w);
+    WordWriter retVal = new WordWriter();
+    WordCursor c1 = new WordCursor(set1);
+    WordCursor c2 = new WordCursor(set2);
+
+    while (c1.hasWord() && c2.hasWord()) {
+      if (addCombinedComposites(c1, c2, OP_XOR, retVal)) {
+        continue;
+      }
+      if (c1.isLiteral() && c2.isLiteral()) {
+        addCombinedLiterals(c1, c2, OP_XOR, retVal);
+      } else if (c1.isLiteral() || c2.isLiteral()) {
+        retVal.addLiteral(ConciseSetUtils.ALL_ZEROS_LITERAL | (c1.getLiteral() ^ c2.getLiteral()));
+        c1.skip(1);
+        c2.skip(1);
       } else {
-        if (ConciseSetUtils.is0_fill(w)) {
-            retVal += 0;
+        int blocks = Math.min(c1.remaining, c2.remaining);
+        if (c1.isOneFill() == c2.isOneFill()) {
+          retVal.addZeroFill(blocks);
         } else {
-          if(ConciseSetUtils.is1_fill(w))
-        	  retVal += ConciseSetUtils.maxLiteralLengthMultiplication(ConciseSetUtils.getSequenceCount(w));
-          else
-          {
-        	  if(ConciseSetUtils.isF1_L_F2(w))
-        	  {
-        		  int[] fillnum = ConciseSetUtils.getFLFFILLWords(w);
-        		  int[] filltype = new int [2];
-        		  int literalByte = ConciseSetUtils.getFLFLiteralWords(w);
-        		  int literaltype = (w & 0x08000000) >>> 27;
-    			  int num;
-    			  if(literaltype == 0)
-    			  {
-    				  num = ConciseSetUtils.getLiteralBitCount(literalByte);
-    			  }
-    			  else
-    			  {
-    				  num = ConciseSetUtils.getLiteralBitCount(literalByte) + 23;
-    			  }
-        		  filltype[0] = (w & 0x10000000) >>> 28;
-    			  filltype[1] = (w & 0x04000000) >>> 26;
-        		  retVal += ConciseSetUtils.maxLiteralLengthMultiplication(filltype[0] * fillnum[0] + filltype[1] * fillnum[1])
-        		  	+ num;
-        	  }
-        	  else
-        	  {
-        		  if(ConciseSetUtils.is0L1_F_0L2(w))
-        		  {
-        			  int fillnum = ConciseSetUtils.getLFLFILLWords(w);
-        			  int filltype = (w & 0x00800000) >>> 23;
-        			  int[] literalByte = ConciseSetUtils.getLFLLiteralWords(w);
-        			  int[]literalnum = new int [2];
-        			  literalnum[0] = ConciseSetUtils.getLiteralBitCount(literalByte[0]);
-        			  literalnum[1] = ConciseSetUtils.getLiteralBitCount(literalByte[1]);
-        			  retVal += ConciseSetUtils.maxLiteralLengthMultiplication(fillnum * filltype) + literalnum[0]
-        			       + literalnum[1];
-        		  }
-        		  else
-        		  {
-        			  if(ConciseSetUtils.is1L1_F_1L2(w))
-            		  {
-            			  int fillnum = ConciseSetUtils.getLFLFILLWords(w);
-            			  int filltype = (w & 0x00800000) >>> 23;
-            			  int[] literalByte = ConciseSetUtils.getLFLLiteralWords(w);
-            			  int[]literalnum = new int [2];
-            			  literalnum[0] = ConciseSetUtils.getLiteralBitCount(literalByte[0]) + 23;
-            			  literalnum[1] = ConciseSetUtils.getLiteralBitCount(literalByte[1]) + 23;
-            			  retVal += ConciseSetUtils.maxLiteralLengthMultiplication(fillnum * filltype) + literalnum[0]
-            			       + literalnum[1];
-            		  }
-        			  else
-        			  {
-        				  if(ConciseSetUtils.is0L_F_1L(w))
-                		  {
-                			  int fillnum = ConciseSetUtils.getLFLFILLWords(w);
-                			  int filltype = (w & 0x00800000) >>> 23;
-                			  int[] literalByte = ConciseSetUtils.getLFLLiteralWords(w);
-                			  int[]literalnum = new int [2];
-                			  literalnum[0] = ConciseSetUtils.getLiteralBitCount(literalByte[0]);
-                			  literalnum[1] = ConciseSetUtils.getLiteralBitCount(literalByte[1]) + 23;
-                			  retVal += ConciseSetUtils.maxLiteralLengthMultiplication(fillnum * filltype) + literalnum[0]
-                			       + literalnum[1];
-                		  }
-        				  else
-        				  {
-        					  if(ConciseSetUtils.is1L_F_0L(w))
-        	        		  {
-        	        			  int fillnum = ConciseSetUtils.getLFLFILLWords(w);
-        	        			  int filltype = (w & 0x00800000) >>> 23;
-        	        			  int[] literalByte = ConciseSetUtils.getLFLLiteralWords(w);
-        	        			  int[]literalnum = new int [2];
-        	        			  literalnum[0] = ConciseSetUtils.getLiteralBitCount(literalByte[0]) + 23;
-        	        			  literalnum[1] = ConciseSetUtils.getLiteralBitCount(literalByte[1]);
-        	        			  retVal += ConciseSetUtils.maxLiteralLengthMultiplication(fillnum * filltype) + literalnum[0]
-        	        			       + literalnum[1];
-        	        		  }
-        				  }
-        			  }
-        		  }
-        	  }
-          }
+          retVal.addOneFill(blocks);
         }
+        c1.skip(blocks);
+        c2.skip(blocks);
       }
     }
 
-    return retVal;
+    // copy the rest of the longest set
+    WordCursor rest = c1.hasWord() ? c1 : c2;
+    while (rest.hasWord()) {
+      rest.copyWordTo(retVal);
+    }
+    return retVal.build();
   }
 
-  public int size()
+  /**
+   * Combines the F1-L-F2 or L1-F-L2 words at the current position of both
+   * cursors without expanding them, when their fills have the same lengths
+   * and their dirty bytes the same positions
+   *
+   * @return <code>false</code> if the words have to be walked part by part
+   */
+  private static boolean addCombinedComposites(WordCursor c1, WordCursor c2, int op, WordWriter retVal)
   {
-    return size;
+    int word1 = c1.getComposite();
+    int word2 = c2.getComposite();
+    if (word1 == 0 || word2 == 0) {
+      return false;
+    }
+
+    int word;
+    if (ConciseSetUtils.getWordKind(word1) == ConciseSetUtils.WORD_F_L_F) {
+      // the fill types, the literal type and the dirty byte are combined bit by bit
+      if (((word1 ^ word2) & FLF_LAYOUT) != 0) {
+        return false;
+      }
+      word = (word1 & FLF_LAYOUT) | (combine(word1, word2, op) & ~FLF_LAYOUT);
+    } else {
+      if (ConciseSetUtils.getWordKind(word2) != ConciseSetUtils.WORD_L_F_L || ((word1 ^ word2) & LFL_LAYOUT) != 0) {
+        return false;
+      }
+      int firstType = combine(getLFLFirstLiteralType(word1), getLFLFirstLiteralType(word2), op) & 1;
+      int secondType = combine(getLFLSecondLiteralType(word1), getLFLSecondLiteralType(word2), op) & 1;
+      word = LFL_HEADERS[firstType << 1 | secondType] | (word1 & LFL_LAYOUT)
+             | (combine(word1, word2, op) & LFL_BITS);
+    }
+    if (!isCompactComposite(word)) {
+      return false;
+    }
+    retVal.addComposite(word);
+    c1.skipComposite();
+    c2.skipComposite();
+    return true;
   }
 
-  // Based on the ConciseSet implementation by Alessandro Colantonio
-  public int getLast()
+  /**
+   * Combines the literals at the current position of both cursors, together
+   * with the literals stored right after them in both sets, up to
+   * {@link #LITERAL_CHUNK} of them. Runs of literals are copied and combined
+   * by {@link LiteralKernels}, a single literal is combined in place.
+   */
+  private static void addCombinedLiterals(WordCursor c1, WordCursor c2, int op, WordWriter retVal)
   {
-    if (isEmpty()) {
-      return -1;
+    int index1 = c1.getLiteralIndex();
+    int index2 = c2.getLiteralIndex();
+    int length = 1;
+    if (index1 >= 0 && index2 >= 0) {
+      IntBuffer words1 = c1.getWords();
+      IntBuffer words2 = c2.getWords();
+      int max = Math.min(LITERAL_CHUNK, Math.min(words1.capacity() - index1, words2.capacity() - index2));
+      // both words are literals when both flags are set
+      while (length < max && (words1.get(index1 + length) & words2.get(index2 + length)) < 0) {
+        length++;
+      }
+    }
+    if (length == 1) {
+      retVal.addLiteral(ConciseSetUtils.ALL_ZEROS_LITERAL | combine(c1.getWord(), c2.getWord(), op));
+      c1.skip(1);
+      c2.skip(1);
+      return;
     }
 
-    int last = 0;
-    for (int i = 0; i <= lastWordIndex; i++) {
-      int w = words.get(i);
-      if (ConciseSetUtils.isLiteral(w)) {
-        last += ConciseSetUtils.MAX_LITERAL_LENGTH;
-      } else {
-    	  if(ConciseSetUtils.is0_fill(w) || ConciseSetUtils.is1_fill(w))
-    		  last += ConciseSetUtils.maxLiteralLengthMultiplication(ConciseSetUtils.getSequenceCount(w));
-    	  else
-    	  {
-    		  if(ConciseSetUtils.isF1_L_F2(w))
-    		  {
-    			  int[] fillnum = ConciseSetUtils.getFLFFILLWords(w);
-    			  last += ConciseSetUtils.maxLiteralLengthMultiplication(fillnum[0] + fillnum[1] + 1);
-    		  }
-    		  else
-    		  {
-    			  if(ConciseSetUtils.is0L1_F_0L2(w) || ConciseSetUtils.is0L_F_1L(w) 
-    					  || ConciseSetUtils.is1L1_F_1L2(w) || ConciseSetUtils.is1L_F_0L(w))
-    			  {
-    				  int fillnum = ConciseSetUtils.getLFLFILLWords(w);
-    				  last += ConciseSetUtils.maxLiteralLengthMultiplication(fillnum + 2);
-    			  }
-    				  
-    		  }
-    	  }
-      }
+    int[] literals = retVal.getLiteralBuffer();
+    copyWords(c1.getWords(), index1, literals, LITERAL_CHUNK, length);
+    copyWords(c2.getWords(), index2, literals, 2 * LITERAL_CHUNK, length);
+    switch (op) {
+      case OP_AND:
+        LiteralKernels.and(literals, LITERAL_CHUNK, literals, 2 * LITERAL_CHUNK, literals, 0, length);
+        break;
+      case OP_OR:
+        LiteralKernels.or(literals, LITERAL_CHUNK, literals, 2 * LITERAL_CHUNK, literals, 0, length);
+        break;
+      case OP_AND_NOT:
+        LiteralKernels.andNot(literals, LITERAL_CHUNK, literals, 2 * LITERAL_CHUNK, literals, 0, length);
+        break;
+      default:
+        LiteralKernels.xor(literals, LITERAL_CHUNK, literals, 2 * LITERAL_CHUNK, literals, 0, length);
     }
+    retVal.addLiterals(literals, length);
+    c1.skipLiterals(length);
+    c2.skipLiterals(length);
+  }
 
-    int w = words.get(lastWordIndex);
-    if (ConciseSetUtils.isLiteral(w)) {
-      last -= Integer.numberOfLeadingZeros(ConciseSetUtils.getLiteralBits(w));
+  private static void copyWords(IntBuffer words, int index, int[] dest, int destFrom, int length)
+  {
+    if (words.hasArray()) {
+      System.arraycopy(words.array(), words.arrayOffset() + index, dest, destFrom, length);
     } else {
-    	if(ConciseSetUtils.is1_fill(w))
-    		last--;
-    	else
-    	{
-    		if(ConciseSetUtils.is0L1_F_0L2(w) || ConciseSetUtils.is0L_F_1L(w) 
-    				|| ConciseSetUtils.is1L1_F_1L2(w) || ConciseSetUtils.is1L_F_0L(w))
-    		{
-    			int[] fillByte = ConciseSetUtils.getLFLLiteralWords(w);
-    			last -= Integer.numberOfLeadingZeros(ConciseSetUtils.getLiteralBits(fillByte[1]));
-    		}
-    	}
+      IntBuffer run = words.duplicate();
+      run.position(index);
+      run.get(dest, destFrom, length);
     }
-    return last;
   }
 
-  // Based on the ConciseSet implementation by Alessandro Colantonio
-  public int get(int i)
+  private static int combine(int x, int y, int op)
   {
-    if (i < 0) {
-      throw new IndexOutOfBoundsException();
+    switch (op) {
+      case OP_AND:
+        return x & y;
+      case OP_OR:
+        return x | y;
+      case OP_AND_NOT:
+        return x & ~y;
+      default:
+        return x ^ y;
     }
+  }
 
-    // initialize data
-    int firstSetBitInWord = 0;
-    int position = i;
-    int setBitsInCurrentWord = 0;
-    for (int j = 0; j <= lastWordIndex; j++) {
-      int w = words.get(j);
-      if (ConciseSetUtils.isLiteral(w)) {
-        // number of bits in the current word
-        setBitsInCurrentWord = ConciseSetUtils.getLiteralBitCount(w);
-
-        // check if the desired bit is in the current word
-        if (position < setBitsInCurrentWord) {
-          int currSetBitInWord = -1;
-          for (; position >= 0; position--) {
-            currSetBitInWord = Integer.numberOfTrailingZeros(w & (0xFFFFFFFF << (currSetBitInWord + 1)));
+  private static int getLFLFirstLiteralType(int word)
+  {
+    int header = word & 0xf0000000;
+    return header == ConciseSetUtils.SEQUENCE_1L1_F_1L2 || header == ConciseSetUtils.SEQUENCE_1L_F_0L ? 1 : 0;
+  }
+
+  private static int getLFLSecondLiteralType(int word)
+  {
+    int header = word & 0xf0000000;
+    return header == ConciseSetUtils.SEQUENCE_1L1_F_1L2 || header == ConciseSetUtils.SEQUENCE_0L_F_1L ? 1 : 0;
+  }
+
+  /**
+   * Checks whether a F1-L-F2 or L1-F-L2 word has no empty fill and no empty
+   * or full literal, that is whether {@link #addAndCompact(IntList, int, boolean)}
+   * would build the same word from its parts
+   */
+  private static boolean isCompactComposite(int word)
+  {
+    if (ConciseSetUtils.getWordKind(word) == ConciseSetUtils.WORD_F_L_F) {
+      return ConciseSetUtils.getFLFFirstFillCount(word) > 0
+             && ConciseSetUtils.getFLFSecondFillCount(word) > 0
+             && isPartialDirtyByte((word >>> 27) & 1, (word >>> 8) & 0xff, (word >>> 24) & 3);
+    }
+    return ConciseSetUtils.getLFLFillCount(word) > 0
+           && isPartialDirtyByte(getLFLFirstLiteralType(word), (word >>> 8) & 0xff, (word >>> 26) & 3)
+           && isPartialDirtyByte(getLFLSecondLiteralType(word), word & 0xff, (word >>> 24) & 3);
+  }
+
+  /**
+   * Checks that a dirty byte does not make an empty or a full literal
+   */
+  private static boolean isPartialDirtyByte(int type, int dirtyByte, int pos)
+  {
+    if (type == 0) {
+      return dirtyByte != 0;
+    }
+    // the highest byte of a literal has 7 bits
+    return dirtyByte != (pos == 3 ? 0x7f : 0xff);
+  }
+
+  private static void doThreshold(WordCursor[] cursors, int minCount, WordWriter retVal, IntList counts)
+  {
+    final int n = cursors.length;
+    // blocks where at least this number of sets have zero fills are empty
+    final int minZeros = n - minCount + 1;
+    final int[] planes = new int[32 - Integer.numberOfLeadingZeros(n)];
+    final int[] oneBlocks = new int[n];
+    final int[] zeroBlocks = new int[n];
+
+    while (true) {
+      int ones = 0;
+      int zeros = 0;
+      int literals = 0;
+      int minBlocks = Integer.MAX_VALUE;
+      for (WordCursor c : cursors) {
+        if (!c.hasWord()) {
+          // the set has ended
+          zeroBlocks[zeros++] = Integer.MAX_VALUE;
+        } else if (c.isLiteral()) {
+          literals++;
+          minBlocks = 1;
+        } else {
+          if (c.isOneFill()) {
+            oneBlocks[ones++] = c.remaining;
+          } else {
+            zeroBlocks[zeros++] = c.remaining;
           }
-          return firstSetBitInWord + currSetBitInWord;
+          minBlocks = Math.min(minBlocks, c.remaining);
         }
+      }
 
-        // skip the 31-bit block
-        firstSetBitInWord += ConciseSetUtils.MAX_LITERAL_LENGTH;
+      int blocks;
+      if (ones + literals < minCount) {
+        // as long as the zero fills last, the blocks stay empty
+        blocks = kthSmallest(zeroBlocks, zeros, zeros - minZeros + 1);
+        if (blocks == Integer.MAX_VALUE) {
+          return;
+        }
+        retVal.addZeroFill(blocks);
+      } else if (ones >= minCount && counts == null) {
+        // as long as the one fills last, the blocks stay full
+        blocks = kthSmallest(oneBlocks, ones, ones - minCount + 1);
+        retVal.addOneFill(blocks);
+      } else if (literals == 0) {
+        // only fills, every element is counted by the same sets
+        blocks = minBlocks;
+        retVal.addOneFill(blocks);
+        for (int i = blocks * ConciseSetUtils.MAX_LITERAL_LENGTH; i > 0; i--) {
+          counts.add(ones);
+        }
       } else {
-        // number of involved bits (31 * blocks)
-        setBitsInCurrentWord = 0;
-        // check the sequence type
-        if (ConciseSetUtils.is1_fill(w) || ConciseSetUtils.is0_fill(w)) {
-        	int sequenceLength = ConciseSetUtils.maxLiteralLengthMultiplication(ConciseSetUtils.getSequenceCount(w));
-            if(ConciseSetUtils.is1_fill(w))
-            	setBitsInCurrentWord = sequenceLength;
-            if (position < setBitsInCurrentWord) 
-            {
-              return firstSetBitInWord + position;
-            }
-            firstSetBitInWord += sequenceLength;
-        } else {
-          if(ConciseSetUtils.isF1_L_F2(w))
-          {
-        	  int[]fillnum = ConciseSetUtils.getFLFFILLWords(w);
-        	  int[]fillType = new int[2];
-        	  int literalType = (w & 0x08000000) >>> 27;
-              int literalByte = ConciseSetUtils.getFLFLiteralWords(w);
-              int literalPos = (w & 0x03000000) >>> 24;
-        	  fillType[0] = (w & 0x10000000) >>> 28;
-              fillType[1] = (w & 0x04000000) >>> 26;
-    	      setBitsInCurrentWord = fillType[0] * fillnum[0];
-    	      
-    	      if(position < setBitsInCurrentWord)
-    	      {
-    	    	  return firstSetBitInWord + position;
-    	      }
-    	      firstSetBitInWord += setBitsInCurrentWord;
-    	      position -= setBitsInCurrentWord;
-    	      int literal;
-    	      if(literalType == 0)
-    	      {
-    	    	  literal = 0x80000000 | (literalByte << (literalPos * 8));
-    	      }
-    	      else
-    	      {
-    	    	  literal = 0x80000000 | (literalByte << (literalPos * 8));
-    	    	  switch(literalPos)
-    	    	  {
-    	    	  case 0: literal |= 0xffffff00;break;
-    	    	  case 1: literal |= 0xffff00ff;break;
-    	    	  case 2: literal |= 0xff00ffff;break;
-    	    	  case 3: literal |= 0x80ffffff;break;
-    	    	  }
-    	      }
-    	      setBitsInCurrentWord = ConciseSetUtils.getLiteralBitCount(literal);
-    	      if (position < setBitsInCurrentWord) {
-    	          int currSetBitInWord = -1;
-    	          for (; position >= 0; position--) {
-    	            currSetBitInWord = Integer.numberOfTrailingZeros(literal & (0xFFFFFFFF << (currSetBitInWord + 1)));
-    	          }
-    	          return firstSetBitInWord + currSetBitInWord;
-    	       }
-    	      firstSetBitInWord += ConciseSetUtils.MAX_LITERAL_LENGTH;
-    	      position -= setBitsInCurrentWord;
-    	      
-    	      setBitsInCurrentWord = fillType[1] * fillnum[1];
-    	      if(position < setBitsInCurrentWord)
-    	      {
-    	    	  return firstSetBitInWord + position;
-    	      }
-    	      firstSetBitInWord += setBitsInCurrentWord;
-          }
-          else
-          {
-        	  if(ConciseSetUtils.is0L1_F_0L2(w) || ConciseSetUtils.is1L1_F_1L2(w)
-        			  || ConciseSetUtils.is0L_F_1L(w) || ConciseSetUtils.is1L_F_0L(w))
-        	  {
-        		  int fillnum = ConciseSetUtils.getLFLFILLWords(w);
-        		  int filltype = (w & 0x00800000) >>> 23;
-    	          int[] literalType = new int [2];
-    	          int[] literalByte = ConciseSetUtils.getLFLLiteralWords(w);
-    	          int[] literalPos = new int [2];
-    	          literalPos[0] = (w & 0x0c000000) >>> 26;
-    	          literalPos[1] = (w & 0x03000000) >>> 24;
-    	    	  int[] literal = new int [2];
-    	    	  if(ConciseSetUtils.is0L1_F_0L2(w))
-    	    	  {
-    	    		  literalType[0] = 0;
-    	    		  literalType[1] = 0;
-    	    	  }
-    	    	  else
-    	    	  {
-    	    		  if(ConciseSetUtils.is1L1_F_1L2(w))
-        	    	  {
-        	    		  literalType[0] = 1;
-        	    		  literalType[1] = 1;
-        	    	  }
-    	    		  else
-    	    		  {
-    	    			  if(ConciseSetUtils.is0L_F_1L(w))
-    	    	    	  {
-    	    	    		  literalType[0] = 0;
-    	    	    		  literalType[1] = 1;
-    	    	    	  }
-    	    			  else
-    	    			  {
-    	    				  if(ConciseSetUtils.is1L_F_0L(w))
-    	        	    	  {
-    	        	    		  literalType[0] = 1;
-    	        	    		  literalType[1] = 0;
-    	        	    	  }
-    	    			  }
-    	    		  }
-    	    	  }
-    	          if(literalType[0] == 0)
-        	      {
-        	    	  literal[0] = 0x80000000 | (literalByte[0] << (literalPos[0] * 8));
-        	      }
-        	      else
-        	      {
-        	    	  literal[0] = 0x80000000 | (literalByte[0] << (literalPos[0] * 8));
-        	    	  switch(literalPos[0])
-        	    	  {
-        	    	  case 0: literal[0] |= 0xffffff00;break;
-        	    	  case 1: literal[0] |= 0xffff00ff;break;
-        	    	  case 2: literal[0] |= 0xff00ffff;break;
-        	    	  case 3: literal[0] |= 0x80ffffff;break;
-        	    	  }
-        	      }
-    	          if(literalType[1] == 0)
-        	      {
-        	    	  literal[1] = 0x80000000 | (literalByte[1] << (literalPos[1] * 8));
-        	      }
-        	      else
-        	      {
-        	    	  literal[1] = 0x80000000 | (literalByte[1] << (literalPos[1] * 8));
-        	    	  switch(literalPos[1])
-        	    	  {
-        	    	  case 0: literal[1] |= 0xffffff00;break;
-        	    	  case 1: literal[1] |= 0xffff00ff;break;
-        	    	  case 2: literal[1] |= 0xff00ffff;break;
-        	    	  case 3: literal[1] |= 0x80ffffff;break;
-        	    	  }
-        	      }
-    	          
-    	          setBitsInCurrentWord = ConciseSetUtils.getLiteralBitCount(literal[0]);
-        	      if (position < setBitsInCurrentWord) {
-        	          int currSetBitInWord = -1;
-        	          for (; position >= 0; position--) {
-        	            currSetBitInWord = Integer.numberOfTrailingZeros(literal[0] & (0xFFFFFFFF << (currSetBitInWord + 1)));
-        	          }
-        	          return firstSetBitInWord + currSetBitInWord;
-        	       }
-        	      firstSetBitInWord += ConciseSetUtils.MAX_LITERAL_LENGTH;
-        	      position -= setBitsInCurrentWord;
-        	      
-        	      setBitsInCurrentWord = fillnum * filltype;
-        	      if(position < setBitsInCurrentWord)
-        	      {
-        	    	  return firstSetBitInWord + position;
-        	      }
-        	      firstSetBitInWord += setBitsInCurrentWord;
-        	      position -= setBitsInCurrentWord;
-        	      
-        	      setBitsInCurrentWord = ConciseSetUtils.getLiteralBitCount(literal[1]);
-        	      if (position < setBitsInCurrentWord) {
-        	          int currSetBitInWord = -1;
-        	          for (; position >= 0; position--) {
-        	            currSetBitInWord = Integer.numberOfTrailingZeros(literal[1] & (0xFFFFFFFF << (currSetBitInWord + 1)));
-        	          }
-        	          return firstSetBitInWord + currSetBitInWord;
-        	       }
-        	      firstSetBitInWord += ConciseSetUtils.MAX_LITERAL_LENGTH;
-        	  }
+        blocks = 1;
+        Arrays.fill(planes, 0);
+        for (WordCursor c : cursors) {
+          if (c.hasWord() && c.isLiteral()) {
+            addToPlanes(planes, ConciseSetUtils.getLiteralBits(c.word));
           }
         }
-
-        // skip the 31-bit blocks
-        
+        int literal = atLeast(planes, minCount - ones);
+        retVal.addLiteral(literal);
+        if (counts != null) {
+          addCounts(planes, ones, literal, counts);
+        }
       }
 
-      // update the number of found set bits
-      position -= setBitsInCurrentWord;
+      for (WordCursor c : cursors) {
+        c.skip(blocks);
+      }
     }
-
-    throw new IndexOutOfBoundsException(Integer.toString(i));
   }
 
-  public int compareTo(ImmutableConciseSet other)
+  /**
+   * Gets the <code>k</code><sup>th</sup> smallest of the first
+   * <code>length</code> values, reordering them
+   */
+  private static int kthSmallest(int[] values, int length, int k)
   {
-    return words.asReadOnlyBuffer().compareTo(other.words.asReadOnlyBuffer());
+    Arrays.sort(values, 0, length);
+    return values[k - 1];
   }
 
-  private boolean isEmpty()
+  /**
+   * Adds one to the bit-sliced counters of the given bits, the
+   * <code>i</code><sup>th</sup> plane holding the <code>i</code><sup>th</sup>
+   * bit of each counter
+   */
+  private static void addToPlanes(int[] planes, int bits)
   {
-    return words == null;
+    int carry = bits;
+    for (int i = 0; carry != 0; i++) {
+      int nextCarry = planes[i] & carry;
+      planes[i] ^= carry;
+      carry = nextCarry;
+    }
   }
 
-  @Override
-  // Based on the AbstractIntSet implementation by Alessandro Colantonio
-  public String toString()
+  /**
+   * Gets the literal of the bit-sliced counters that are at least <code>min</code>
+   */
+  private static int atLeast(int[] planes, int min)
   {
-    IntSet.IntIterator itr = iterator();
-    if (!itr.hasNext()) {
-      return "[]";
+    if (min <= 0) {
+      return ConciseSetUtils.ALL_ONES_LITERAL;
+    }
+    if (min >= 1 << planes.length) {
+      return ConciseSetUtils.ALL_ZEROS_LITERAL;
+    }
+    // compare the counters with min from the most significant plane
+    int greater = 0;
+    int equal = ConciseSetUtils.ALL_ONES_WITHOUT_MSB;
+    for (int i = planes.length - 1; i >= 0; i--) {
+      if ((min & (1 << i)) != 0) {
+        equal &= planes[i];
+      } else {
+        greater |= equal & planes[i];
+        equal &= ~planes[i];
+      }
     }
+    return ConciseSetUtils.ALL_ZEROS_LITERAL | greater | equal;
+  }
 
-    StringBuilder sb = new StringBuilder();
-    sb.append('[');
-    for (; ; ) {
-      sb.append(itr.next());
-      if (!itr.hasNext()) {
-        return sb.append(']').toString();
+  private static void addCounts(int[] planes, int ones, int literal, IntList counts)
+  {
+    int bits = ConciseSetUtils.getLiteralBits(literal);
+    while (bits != 0) {
+      int bit = Integer.numberOfTrailingZeros(bits);
+      int count = ones;
+      for (int i = 0; i < planes.length; i++) {
+        count += ((planes[i] >>> bit) & 1) << i;
       }
-      sb.append(", ");
+      counts.add(count);
+      bits &= bits - 1;
     }
   }
 
-  // Based on the ConciseSet implementation by Alessandro Colantonio
-  public IntSet.IntIterator iterator()
+  public static ImmutableConciseSet doComplement(ImmutableConciseSet set)
   {
-    if (isEmpty()) {
-      return new IntSet.IntIterator()
-      {
-        @Override
-        public void skipAllBefore(int element) {/*empty*/}
+    if (set == null || set.isEmpty()) {
+      return new ImmutableConciseSet();
+    }
 
-        @Override
-        public boolean hasNext() {return false;}
+    IntList retVal = borrowWords();
+    WordIterator iter = set.newWordIterator();
+    while (iter.hasNext()) {
+      int word = iter.nextWord();
+      if (ConciseSetUtils.isLiteral(word)) {
+        retVal.add(ConciseSetUtils.ALL_ZEROS_LITERAL | ~word);
+      } else {
+    	  if(ConciseSetUtils.is0_fill(word))
+    	  {
+    		  retVal.add(0x10000000 | ConciseSetUtils.getSequenceCount(word));
+    	  }
+    	  else
+    	  {
+    		  retVal.add(ConciseSetUtils.getSequenceCount(word));
+    	  }
+        //retVal.add(ConciseSetUtils.SEQUENCE_BIT ^ word);
+      }
+    }
+    // do not complement after the last element
+    int lastWord = retVal.get(retVal.length() - 1);
+    if (ConciseSetUtils.isLiteral(lastWord)) {
+      lastWord = ConciseSetUtils.clearBitsAfterInLastWord(
+          lastWord,
+          ConciseSetUtils.maxLiteralLengthModulus(set.getLast())
+      );
+    }
 
-        @Override
-        public int next() {throw new NoSuchElementException();}
+    retVal.set(retVal.length() - 1, lastWord);
 
-        @Override
-        public void remove() {throw new UnsupportedOperationException();}
+    trimZeros(retVal);
 
-        @Override
-        public IntSet.IntIterator clone() {throw new UnsupportedOperationException();}
-      };
+    if (retVal.isEmpty()) {
+      giveBackWords(retVal);
+      return new ImmutableConciseSet();
     }
-    
-    //
-    BitIterator bit = new BitIterator();
-    return bit;
+    return new ImmutableConciseSet(releaseWords(retVal));
   }
 
-  public WordIterator newWordIterator()
+  // Based on the ConciseSet implementation by Alessandro Colantonio
+  private static void trimZeros(IntList set)
   {
-	 // BitIterator.next();
-    return new WordIterator();
+    // loop over ALL_ZEROS_LITERAL words
+    int w;
+    int last = set.length() - 1;
+    do {
+      w = set.get(last);
+      if(ConciseSetUtils.is0_fill(w))
+    	  {
+    	  	set.set(last, 0);
+    	  	last--;
+    	  }
+      else {
+        // one sequence or literal
+        return;
+      }
+      if (set.isEmpty() || last == -1) {
+        return;
+      }
+    } while (true);
   }
-  /*private class BitIterator implements IntSet.IntIterator
+
+  private final IntBuffer words;
+  // increasing integers of the sets stored with CODEC_ARRAY, words is null then
+  private final IntBuffer sortedInts;
+  private final int lastWordIndex;
+  private final int size;
+  private SkipIndex skipIndex;
+  private int last = UNKNOWN_LAST;
+  // see fingerprint(), 0 until computed
+  private volatile long fingerprint = 0;
+  
+  public int[] getWords()
   {
-    final ConciseSetUtils.LiteralAndZeroFillExpander litExp;
-    final ConciseSetUtils.OneFillExpander oneExp;
+	  if (sortedInts != null) {
+	    return compact(this).getWords();
+	  }
+	  if (!words.hasArray() || words.arrayOffset() != 0) {
+	    // built and mapped sets are backed by direct buffers
+	    int[] retVal = new int[words.capacity()];
+	    IntBuffer buffer = words.duplicate();
+	    buffer.position(0);
+	    buffer.get(retVal);
+	    return retVal;
+	  }
+	  // the buffer of an operator result may be a view of a larger array
+	  int[] array = words.array();
+	  return array.length == words.capacity() ? array : Arrays.copyOf(array, words.capacity());
+  }
+  public ImmutableConciseSet()
+  {
+    this.words = null;
+    this.sortedInts = null;
+    this.lastWordIndex = -1;
+    this.size = 0;
+  }
 
-    ConciseSetUtils.WordExpander exp;
-    int nextIndex = 0;
-    int nextOffset = 0;
+  public ImmutableConciseSet(ByteBuffer byteBuffer)
+  {
+    IntBuffer buffer = byteBuffer.asIntBuffer();
+    if (!hasHeader(buffer)) {
+      // legacy buffers only contain the words
+      this.words = buffer;
+      this.sortedInts = null;
+      this.lastWordIndex = words.capacity() - 1;
+      this.size = calcSize();
+      return;
+    }
 
-    private BitIterator()
-    {
-      litExp = ConciseSetUtils.newLiteralAndZeroFillExpander();
-      oneExp = ConciseSetUtils.newOneFillExpander();
+    int codec = buffer.get(1) & 0xff;
+    int wordCount = buffer.get(4);
+    buffer.position(HEADER_INTS);
+    IntBuffer body = buffer.slice();
+    if (wordCount == 0) {
+      this.words = null;
+      this.sortedInts = null;
+      this.lastWordIndex = -1;
+    } else if (codec == CODEC_ARRAY) {
+      this.words = null;
+      this.sortedInts = body;
+      this.lastWordIndex = body.capacity() - 1;
+    } else {
+      this.words = codec == CODEC_CONCISE ? compactWords(body, true) : body;
+      this.sortedInts = null;
+      this.lastWordIndex = words.capacity() - 1;
+    }
+    this.size = buffer.get(2);
+    this.last = buffer.get(3);
+  }
+
+  public ImmutableConciseSet(IntBuffer buffer)
+  {
+    this.words = buffer;
+    this.sortedInts = null;
+    this.lastWordIndex = (words == null || buffer.capacity() == 0) ? -1 : words.capacity() - 1;
+    this.size = calcSize();
+  }
+
+  /**
+   * Wraps increasing integers stored with {@link #CODEC_ARRAY}
+   */
+  private ImmutableConciseSet(int[] sortedInts)
+  {
+    this.words = null;
+    this.sortedInts = IntBuffer.wrap(sortedInts);
+    this.lastWordIndex = sortedInts.length - 1;
+    this.size = sortedInts.length;
+  }
+
+  public byte[] toBytes()
+  {
+    ByteBuffer buf = ByteBuffer.allocate((HEADER_INTS + lastWordIndex + 1) * Ints.BYTES);
+    IntBuffer ints = buf.asIntBuffer();
+    ints.put(SERIAL_MAGIC);
+    ints.put((SERIAL_VERSION << 8) | getCodec());
+    ints.put(size);
+    ints.put(getLast());
+    ints.put(lastWordIndex + 1);
+    if (lastWordIndex >= 0) {
+      ints.put((sortedInts == null ? words : sortedInts).asReadOnlyBuffer());
+    }
+    return buf.array();
+  }
+
+  /**
+   * Gets {@link #CODEC_ARRAY} for the sets stored as sorted integers,
+   * {@link #CODEC_SECOMPAX} otherwise
+   */
+  public int getCodec()
+  {
+    return sortedInts == null ? CODEC_SECOMPAX : CODEC_ARRAY;
+  }
+
+  /**
+   * Checks whether a buffer starts with a serialization header, legacy
+   * buffers starting with the words. Once the magic number matches, the
+   * header must be valid.
+   *
+   * @throws IllegalArgumentException if the version, the codec or the number
+   *                                  of words is not supported
+   */
+  private static boolean hasHeader(IntBuffer buffer)
+  {
+    if (buffer.capacity() < HEADER_INTS || buffer.get(0) != SERIAL_MAGIC) {
+      return false;
+    }
+    int version = buffer.get(1) >>> 8;
+    if (version != SERIAL_VERSION) {
+      throw new IllegalArgumentException("unsupported serialization version: " + Integer.toString(version));
+    }
+    int codec = buffer.get(1) & 0xff;
+    if (codec != CODEC_CONCISE && codec != CODEC_SECOMPAX && codec != CODEC_ARRAY) {
+      throw new IllegalArgumentException("unsupported codec: " + Integer.toString(codec));
+    }
+    int wordCount = buffer.get(4);
+    if (wordCount != buffer.capacity() - HEADER_INTS) {
+      throw new IllegalArgumentException(
+          "expected " + Integer.toString(wordCount) + " words, found "
+          + Integer.toString(buffer.capacity() - HEADER_INTS)
+      );
+    }
+    return true;
+  }
+
+  private static IntBuffer compactWords(IntBuffer words, boolean isConcise)
+  {
+    IntList retVal = borrowWords();
+    for (int i = 0; i < words.capacity(); i++) {
+      addAndCompact(retVal, words.get(i), isConcise);
+    }
+    return releaseWords(retVal);
+  }
+
+  /**
+   * Takes the scratch word list of the current thread, or a new list when it
+   * is already taken by an enclosing operation. The list must be returned
+   * through {@link #releaseWords(IntList)} or {@link #giveBackWords(IntList)}.
+   */
+  static IntList borrowWords()
+  {
+    IntList retVal = WORD_POOL.get();
+    if (retVal == null) {
+      return new IntList();
+    }
+    WORD_POOL.set(null);
+    // the limit may have been lowered since the list was kept
+    return retVal.capacity() <= maxPooledWords ? retVal : new IntList();
+  }
+
+  /**
+   * Gets the words of a borrowed list as the buffer of a new set, and gives
+   * the list back. The array is handed over without copying when the words
+   * fill most of it, otherwise the words are copied and the array is kept for
+   * the next operation of the thread.
+   */
+  static IntBuffer releaseWords(IntList words)
+  {
+    int capacity = words.capacity();
+    IntBuffer retVal = words.length() >= capacity - (capacity >> 2)
+                       ? words.detach()
+                       : IntBuffer.wrap(words.toArray());
+    giveBackWords(words);
+    return retVal;
+  }
+
+  /**
+   * Gives a borrowed list back without using its words
+   */
+  static void giveBackWords(IntList words)
+  {
+    words.clear();
+    if (words.capacity() <= maxPooledWords) {
+      WORD_POOL.set(words);
+    }
+  }
+
+  /**
+   * Gets the index of the last word, or of the last integer of the sets
+   * stored with {@link #CODEC_ARRAY}
+   */
+  public int getLastWordIndex()
+  {
+    return lastWordIndex;
+  }
+
+  // Based on the ConciseSet implementation by Alessandro Colantonio
+  private int calcSize()  //
+  {
+    int retVal = 0;
+    for (int i = 0; i <= lastWordIndex; i++) {
+      retVal += ConciseSetUtils.getWordBitCount(words.get(i));
+    }
+    return retVal;
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  // Based on the ConciseSet implementation by Alessandro Colantonio
+  public int getLast()
+  {
+    if (isEmpty() || lastWordIndex < 0) {
+      return -1;
+    }
+    if (sortedInts != null) {
+      return sortedInts.get(lastWordIndex);
+    }
+
+    // computed once, unless read from the serialization header
+    int retVal = last;
+    if (retVal == UNKNOWN_LAST) {
+      int blocks = 0;
+      for (int i = 0; i < lastWordIndex; i++) {
+        blocks += ConciseSetUtils.getWordBlockCount(words.get(i));
+      }
+      retVal = ConciseSetUtils.maxLiteralLengthMultiplication(blocks)
+               + ConciseSetUtils.getWordLastSetBit(words.get(lastWordIndex));
+      last = retVal;
+    }
+    return retVal;
+  }
+
+  // Based on the ConciseSet implementation by Alessandro Colantonio
+  public int get(int i)
+  {
+    if (i < 0) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (sortedInts != null) {
+      if (i >= size) {
+        throw new IndexOutOfBoundsException(Integer.toString(i));
+      }
+      return sortedInts.get(i);
+    }
+
+    // start from the last checkpoint preceding the i-th set bit
+    SkipIndex index = getSkipIndex();
+    int checkpoint = index.floorByRank(i);
+    int firstSetBitInWord = index.offsets[checkpoint];
+    int position = i - index.ranks[checkpoint];
+    for (int j = index.wordIndexes[checkpoint]; j <= lastWordIndex; j++) {
+      int w = words.get(j);
+      // F1-L-F2 and L1-F-L2 words are walked as three separate words
+      int kind = ConciseSetUtils.getWordKind(w);
+      int parts = kind == ConciseSetUtils.WORD_L_F_L || kind == ConciseSetUtils.WORD_F_L_F ? 3 : 1;
+      for (int k = 0; k < parts; k++) {
+        int part = parts == 1 ? w : ConciseSetUtils.getCompositeWordPart(w, k);
+        if (ConciseSetUtils.isLiteral(part)) {
+          // number of bits in the current word
+          int setBitsInCurrentWord = ConciseSetUtils.getLiteralBitCount(part);
+
+          // check if the desired bit is in the current word
+          if (position < setBitsInCurrentWord) {
+            int currSetBitInWord = -1;
+            for (; position >= 0; position--) {
+              currSetBitInWord = Integer.numberOfTrailingZeros(part & (0xFFFFFFFF << (currSetBitInWord + 1)));
+            }
+            return firstSetBitInWord + currSetBitInWord;
+          }
+
+          // skip the 31-bit block
+          position -= setBitsInCurrentWord;
+          firstSetBitInWord += ConciseSetUtils.MAX_LITERAL_LENGTH;
+        } else {
+          // number of involved bits (31 * blocks)
+          int sequenceLength = ConciseSetUtils.maxLiteralLengthMultiplication(ConciseSetUtils.getSequenceCount(part));
+          if (ConciseSetUtils.is1_fill(part)) {
+            if (position < sequenceLength) {
+              return firstSetBitInWord + position;
+            }
+            position -= sequenceLength;
+          }
+
+          // skip the 31-bit blocks
+          firstSetBitInWord += sequenceLength;
+        }
+      }
+    }
+
+    throw new IndexOutOfBoundsException(Integer.toString(i));
+  }
+
+  public boolean contains(int i)
+  {
+    if (isEmpty() || i < 0) {
+      return false;
+    }
+    if (sortedInts != null) {
+      int k = lowerBound(0, i);
+      return k < size && sortedInts.get(k) == i;
+    }
+
+    // start from the last checkpoint preceding the bit
+    SkipIndex index = getSkipIndex();
+    int checkpoint = index.floorByOffset(i);
+    int offset = index.offsets[checkpoint];
+    for (int j = index.wordIndexes[checkpoint]; j <= lastWordIndex; j++) {
+      int w = words.get(j);
+      int length = ConciseSetUtils.maxLiteralLengthMultiplication(ConciseSetUtils.getWordBlockCount(w));
+      if (i - offset < length) {
+        return ConciseSetUtils.isWordBitSet(w, i - offset);
+      }
+      offset += length;
+    }
+    return false;
+  }
+
+  public int indexOf(int e)
+  {
+    if (e < 0) {
+      throw new IllegalArgumentException("positive integer expected: " + Integer.toString(e));
+    }
+    if (isEmpty()) {
+      return -1;
+    }
+    if (sortedInts != null) {
+      int k = lowerBound(0, e);
+      return k < size && sortedInts.get(k) == e ? k : -1;
+    }
+
+    // start from the last checkpoint preceding the bit
+    SkipIndex index = getSkipIndex();
+    int checkpoint = index.floorByOffset(e);
+    int offset = index.offsets[checkpoint];
+    int rank = index.ranks[checkpoint];
+    for (int j = index.wordIndexes[checkpoint]; j <= lastWordIndex; j++) {
+      int w = words.get(j);
+      int length = ConciseSetUtils.maxLiteralLengthMultiplication(ConciseSetUtils.getWordBlockCount(w));
+      if (e - offset < length) {
+        if (!ConciseSetUtils.isWordBitSet(w, e - offset)) {
+          return -1;
+        }
+        return rank + ConciseSetUtils.getWordBitCountBefore(w, e - offset);
+      }
+      offset += length;
+      rank += ConciseSetUtils.getWordBitCount(w);
+    }
+    return -1;
+  }
+
+  /**
+   * Compares the SECOMPAX words of the sets, whatever their codec
+   */
+  public int compareTo(ImmutableConciseSet other)
+  {
+    return getWordBuffer().asReadOnlyBuffer().compareTo(other.getWordBuffer().asReadOnlyBuffer());
+  }
+
+  private IntBuffer getWordBuffer()
+  {
+    return sortedInts == null ? words : compact(this).words;
+  }
+
+  private boolean isEmpty()
+  {
+    return words == null && sortedInts == null;
+  }
+
+  /**
+   * Gets the index of the first integer not lower than <code>e</code> among
+   * the sorted integers starting from <code>from</code>
+   */
+  private int lowerBound(int from, int e)
+  {
+    int low = from;
+    int high = size;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (sortedInts.get(mid) < e) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Gets the skip index of the set, building it on first use. Small sets do
+   * not need one, hence they share a single checkpoint at the first word.
+   */
+  private SkipIndex getSkipIndex()
+  {
+    SkipIndex retVal = skipIndex;
+    if (retVal == null) {
+      if (lastWordIndex < SKIP_INDEX_INTERVAL) {
+        retVal = SkipIndex.FIRST_WORD;
+      } else {
+        retVal = new SkipIndex(words, lastWordIndex);
+      }
+      skipIndex = retVal;
+    }
+    return retVal;
+  }
+
+  @Override
+  // Based on the AbstractIntSet implementation by Alessandro Colantonio
+  public String toString()
+  {
+    IntSet.IntIterator itr = iterator();
+    if (!itr.hasNext()) {
+      return "[]";
+    }
+
+    StringBuilder sb = new StringBuilder();
+    sb.append('[');
+    for (; ; ) {
+      sb.append(itr.next());
+      if (!itr.hasNext()) {
+        return sb.append(']').toString();
+      }
+      sb.append(", ");
+    }
+  }
+
+  // Based on the ConciseSet implementation by Alessandro Colantonio
+  public IntSet.IntIterator iterator()
+  {
+    if (isEmpty()) {
+      return new IntSet.IntIterator()
+      {
+        @Override
+        public void skipAllBefore(int element) {/*empty*/}
+
+        @Override
+        public boolean hasNext() {return false;}
+
+        @Override
+        public int next() {throw new NoSuchElementException();}
+
+        @Override
+        public void remove() {throw new UnsupportedOperationException();}
+
+        @Override
+        public IntSet.IntIterator clone() {throw new UnsupportedOperationException();}
+      };
+    }
+    
+    //
+    if (sortedInts != null) {
+      return new ArrayIterator(0);
+    }
+    BitIterator bit = new BitIterator();
+    return bit;
+  }
+
+  /**
+   * Gets a cursor over the runs of consecutive elements of the set, taking
+   * one fills and the fills of composite words as a whole
+   */
+  public RunCursor runCursor()
+  {
+    return new WordRunCursor();
+  }
+
+  /**
+   * Gets a 64-bit hash of the elements of the set, computed once, equal to
+   * the fingerprint of any set with the same elements
+   *
+   * @see RunCursor#fingerprint()
+   */
+  public long fingerprint()
+  {
+    long retVal = fingerprint;
+    if (retVal == 0) {
+      retVal = runCursor().fingerprint();
+      fingerprint = retVal;
+    }
+    return retVal;
+  }
+
+  public WordIterator newWordIterator()
+  {
+	 // BitIterator.next();
+    return new WordIterator();
+  }
+  /*private class BitIterator implements IntSet.IntIterator
+  {
+    final ConciseSetUtils.LiteralAndZeroFillExpander litExp;
+    final ConciseSetUtils.OneFillExpander oneExp;
+
+    ConciseSetUtils.WordExpander exp;
+    int nextIndex = 0;
+    int nextOffset = 0;
+
+    private BitIterator()
+    {
+      litExp = ConciseSetUtils.newLiteralAndZeroFillExpander();
+      oneExp = ConciseSetUtils.newOneFillExpander();
+
+      nextWord();
+    }
+
+    private BitIterator(
+        ConciseSetUtils.LiteralAndZeroFillExpander litExp,
+        ConciseSetUtils.OneFillExpander oneExp,
+        ConciseSetUtils.WordExpander exp,
+        int nextIndex,
+        int nextOffset
+    )
+    {
+      this.litExp = litExp;
+      this.oneExp = oneExp;
+      this.exp = exp;
+      this.nextIndex = nextIndex;
+      this.nextOffset = nextOffset;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+      while (!exp.hasNext()) {
+        if (nextIndex > lastWordIndex) {
+          return false;
+        }
+        nextWord();
+      }
+      return true;
+    }
+
+    @Override
+    public int next()
+    {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return exp.next();
+    }
+
+    @Override
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void skipAllBefore(int element)
+    {
+      while (true) {
+        exp.skipAllBefore(element);
+        if (exp.hasNext() || nextIndex > lastWordIndex) {
+          return;
+        }
+        nextWord();
+      }
+    }
+
+    @Override
+    public IntSet.IntIterator clone()
+    {
+      return new BitIterator(
+          (ConciseSetUtils.LiteralAndZeroFillExpander) litExp.clone(),
+          (ConciseSetUtils.OneFillExpander) oneExp.clone(),
+          exp.clone(),
+          nextIndex,
+          nextOffset
+      );
+    }
+
+    private void nextWord()
+    {
+      final int word = words.get(nextIndex++);
+      exp = ConciseSetUtils.is1_fill(word) ? oneExp : litExp;
+      exp.reset(nextOffset, word, true);
+
+      // prepare next offset
+      if (ConciseSetUtils.isLiteral(word)) {
+        nextOffset += ConciseSetUtils.MAX_LITERAL_LENGTH;
+      } else {
+        nextOffset += ConciseSetUtils.maxLiteralLengthMultiplication(ConciseSetUtils.getSequenceCount(word));
+      }
+    }
+  }
+  */
+  // Based on the ConciseSet implementation by Alessandro Colantonio
+  private class BitIterator implements IntSet.IntIterator
+  {
+    final ConciseSetUtils.LiteralAndZeroFillExpander litExp;
+    final ConciseSetUtils.OneFillExpander oneExp;
+    final ConciseSetUtils.FLFExpander flfExp;
+    final ConciseSetUtils.LFLExpander lflExp;
+
+    ConciseSetUtils.WordExpander exp;
+    int nextIndex = 0;
+    int nextOffset = 0;
+
+    private BitIterator()
+    {
+      litExp = ConciseSetUtils.newLiteralAndZeroFillExpander();
+      oneExp = ConciseSetUtils.newOneFillExpander();
+      flfExp = ConciseSetUtils.newFLFExpander();
+      lflExp = ConciseSetUtils.newLFLExpander();
+      nextWord();
+    }
+
+    private BitIterator(
+        ConciseSetUtils.LiteralAndZeroFillExpander litExp,
+        ConciseSetUtils.OneFillExpander oneExp,
+        ConciseSetUtils.WordExpander exp,
+        ConciseSetUtils.FLFExpander flfExp,
+        ConciseSetUtils.LFLExpander lflExp,
+        int nextIndex,
+        int nextOffset
+    )
+    {
+      this.litExp = litExp;
+      this.oneExp = oneExp;
+      this.exp = exp;
+      this.nextIndex = nextIndex;
+      this.nextOffset = nextOffset;
+      this.flfExp = flfExp;
+      this.lflExp = lflExp;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+      while (!exp.hasNext()) {
+        if (nextIndex > lastWordIndex) {
+          return false;
+        }
+        nextWord();
+      }
+      return true;
+    }
+
+    @Override
+    public int next()
+    {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return exp.next();
+    }
+
+    @Override
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Decodes literals and zero fills directly, and the other words through
+     * their expander
+     */
+    @Override
+    public int nextBatch(int[] dst)
+    {
+      int n = exp.nextBatch(dst, 0);
+      while (n < dst.length && nextIndex <= lastWordIndex) {
+        final int word = words.get(nextIndex);
+        if (ConciseSetUtils.isLiteral(word) && dst.length - n >= ConciseSetUtils.MAX_LITERAL_LENGTH) {
+          int bits = ConciseSetUtils.getLiteralBits(word);
+          while (bits != 0) {
+            dst[n++] = nextOffset + Integer.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+          }
+          nextIndex++;
+          nextOffset += ConciseSetUtils.MAX_LITERAL_LENGTH;
+        } else if (ConciseSetUtils.is0_fill(word)) {
+          nextIndex++;
+          nextOffset += ConciseSetUtils.maxLiteralLengthMultiplication(ConciseSetUtils.getSequenceCount(word));
+        } else {
+          nextWord();
+          n += exp.nextBatch(dst, n);
+        }
+      }
+      return n;
+    }
+
+    @Override
+    public void skipAllBefore(int element)
+    {
+      if (element > nextOffset) {
+        // jump over the words preceding the last checkpoint before the element
+        SkipIndex index = getSkipIndex();
+        int checkpoint = index.floorByOffset(element);
+        if (index.wordIndexes[checkpoint] > nextIndex) {
+          nextIndex = index.wordIndexes[checkpoint];
+          nextOffset = index.offsets[checkpoint];
+          nextWord();
+        }
+      }
+      while (true) {
+        exp.skipAllBefore(element);
+        if (exp.hasNext() || nextIndex > lastWordIndex) {
+          return;
+        }
+        nextWord();
+      }
+    }
+
+    @Override
+    public IntSet.IntIterator clone()
+    {
+      return new BitIterator(
+          (ConciseSetUtils.LiteralAndZeroFillExpander) litExp.clone(),
+          (ConciseSetUtils.OneFillExpander) oneExp.clone(),
+          exp.clone(),
+          (ConciseSetUtils.FLFExpander) flfExp.clone(),
+          (ConciseSetUtils.LFLExpander) lflExp.clone(),
+          nextIndex,
+          nextOffset
+      );
+    }
+
+    private void nextWord()
+    {
+      final int word = words.get(nextIndex++);
+      switch (ConciseSetUtils.getWordKind(word)) {
+        case ConciseSetUtils.WORD_1_FILL:
+          exp = oneExp;
+          break;
+        case ConciseSetUtils.WORD_F_L_F:
+          exp = flfExp;
+          break;
+        case ConciseSetUtils.WORD_L_F_L:
+          exp = lflExp;
+          break;
+        default:
+          exp = litExp;
+      }
+      exp.reset(nextOffset, word, true);
+
+      // prepare next offset
+      nextOffset += ConciseSetUtils.maxLiteralLengthMultiplication(ConciseSetUtils.getWordBlockCount(word));
+    }
+  }
+  
+  private class ArrayIterator implements IntSet.IntIterator
+  {
+    int nextIndex;
+
+    private ArrayIterator(int nextIndex)
+    {
+      this.nextIndex = nextIndex;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+      return nextIndex < size;
+    }
+
+    @Override
+    public int next()
+    {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return sortedInts.get(nextIndex++);
+    }
+
+    @Override
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int nextBatch(int[] dst)
+    {
+      int n = Math.min(dst.length, size - nextIndex);
+      IntBuffer view = sortedInts.duplicate();
+      view.position(nextIndex);
+      view.get(dst, 0, n);
+      nextIndex += n;
+      return n;
+    }
+
+    @Override
+    public void skipAllBefore(int element)
+    {
+      if (hasNext() && sortedInts.get(nextIndex) < element) {
+        nextIndex = lowerBound(nextIndex, element);
+      }
+    }
+
+    @Override
+    public IntSet.IntIterator clone()
+    {
+      return new ArrayIterator(nextIndex);
+    }
+  }
+
+  private class WordRunCursor extends RunCursor
+  {
+    private final WordIterator itr = isEmpty() ? null : newWordIterator();
+    private int nextOffset = 0;
+
+    @Override
+    boolean nextPart()
+    {
+      if (itr == null || !itr.hasNext()) {
+        return false;
+      }
+      final int word = itr.nextWord();
+      if (ConciseSetUtils.isLiteral(word)) {
+        setLiteral(nextOffset, ConciseSetUtils.getLiteralBits(word));
+        nextOffset += ConciseSetUtils.MAX_LITERAL_LENGTH;
+      } else {
+        int end = nextOffset + ConciseSetUtils.maxLiteralLengthMultiplication(ConciseSetUtils.getSequenceCount(word));
+        if (ConciseSetUtils.is1_fill(word)) {
+          setOneFill(nextOffset, end);
+        }
+        nextOffset = end;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Iterator over the words of the set, where F1-L-F2 and L1-F-L2 words are
+   * split into their literal and fill parts. Internal algorithms should use
+   * {@link #nextWord()}, which does not box the returned word. The words of
+   * the sets stored with {@link #CODEC_ARRAY} are encoded on the fly, as
+   * literals and zero fills.
+   */
+  public class WordIterator implements Iterator<Integer>
+  {
+    private int startIndex;
+    private int wordsWalked;
+    private int currWord;
+    private int nextWord;
+    private int currRow;
+    private int flcount;
+    private int nextInt;
+
+    private boolean hasNextWord = false;
+
+    WordIterator()
+    {
+      startIndex = -1;
+      wordsWalked = 0;
+      currRow = -1;
+      flcount = 0;
+    }
+
+    public void advanceTo(int endCount)			//
+    {
+      while (hasNext() && wordsWalked < endCount) {
+        nextWord();
+      }
+      if (wordsWalked <= endCount) {
+        return;
+      }
+      // only a fill can walk past endCount, keep the remaining part of it
+      int fill = currWord;
+      int kind = ConciseSetUtils.getWordKind(currWord);
+      if (kind == ConciseSetUtils.WORD_L_F_L || kind == ConciseSetUtils.WORD_F_L_F) {
+        // flcount has already been moved to the part following the fill
+        fill = ConciseSetUtils.getCompositeWordPart(currWord, (flcount + 2) % 3);
+      }
+      nextWord = (fill & ConciseSetUtils.SEQUENCE_1_FILL) | (wordsWalked - endCount);
+      startIndex = endCount;
+      hasNextWord = true;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+      if(flcount != 0)
+    	  return true;
+      if (isEmpty()) {
+        return false;
+      }
+      if (hasNextWord) {
+        return true;
+      }
+      if (sortedInts != null) {
+        return nextInt < size;
+      }
+      return currRow < (words.capacity() - 1);
+    }
+
+    /**
+     * Gets the next word without boxing it
+     *
+     * @return the next literal or fill word
+     */
+    public int nextWord()
+    {
+      if (hasNextWord) {
+        hasNextWord = false;
+        if (ConciseSetUtils.is0_fill(currWord) || ConciseSetUtils.is1_fill(currWord)) {
+          currWord = nextWord;
+          return currWord;
+        }
+        // the remaining parts of F1-L-F2 and L1-F-L2 words still have to be walked
+        return nextWord;
+      }
+      if(flcount == 0)
+      {
+    	  currWord = sortedInts == null ? words.get(++currRow) : nextArrayWord();
+      }
+      startIndex = wordsWalked;
+      switch (ConciseSetUtils.getWordKind(currWord)) {
+        case ConciseSetUtils.WORD_LITERAL:
+          wordsWalked++;
+          return currWord;
+        case ConciseSetUtils.WORD_0_FILL:
+        case ConciseSetUtils.WORD_1_FILL:
+          wordsWalked += ConciseSetUtils.getSequenceCount(currWord);
+          return currWord;
+        default:
+          // F1-L-F2 and L1-F-L2 words are walked as three separate words
+          int part = ConciseSetUtils.getCompositeWordPart(currWord, flcount);
+          flcount = (flcount + 1) % 3;
+          wordsWalked += ConciseSetUtils.getWordBlockCount(part);
+          return part;
+      }
+    }
+
+    /**
+     * Encodes the integers of the next non-empty block as a literal, or the
+     * empty blocks preceding it as a zero fill
+     */
+    private int nextArrayWord()
+    {
+      int block = ConciseSetUtils.maxLiteralLengthDivision(sortedInts.get(nextInt));
+      if (block > wordsWalked) {
+        return block - wordsWalked;
+      }
+      int literal = ConciseSetUtils.ALL_ZEROS_LITERAL;
+      int i;
+      while (nextInt < size
+             && ConciseSetUtils.maxLiteralLengthDivision(i = sortedInts.get(nextInt)) == block) {
+        literal |= 1 << ConciseSetUtils.maxLiteralLengthModulus(i);
+        nextInt++;
+      }
+      return literal;
+    }
+
+    /**
+     * Gets the F1-L-F2 or L1-F-L2 word whose first part has just been
+     * returned by {@link #nextWord()}, 0 otherwise
+     */
+    int getCompositeWord()
+    {
+      return flcount == 1 && !hasNextWord ? currWord : 0;
+    }
+
+    /**
+     * Gets the index of the word last returned by {@link #nextWord()} when
+     * it is a literal stored as it is, -1 otherwise
+     */
+    int getLiteralIndex()
+    {
+      return sortedInts == null && flcount == 0 && !hasNextWord && ConciseSetUtils.isLiteral(currWord) ? currRow : -1;
+    }
+
+    /**
+     * Skips the given number of literals stored after the one given by
+     * {@link #getLiteralIndex()}
+     */
+    void skipLiterals(int count)
+    {
+      currRow += count;
+      wordsWalked += count;
+      startIndex = wordsWalked - 1;
+      currWord = words.get(currRow);
+    }
+
+    /**
+     * Skips the parts of the current F1-L-F2 or L1-F-L2 word not returned yet
+     */
+    void skipCompositeParts()
+    {
+      int first = ConciseSetUtils.getWordBlockCount(ConciseSetUtils.getCompositeWordPart(currWord, 0));
+      startIndex = wordsWalked;
+      wordsWalked += ConciseSetUtils.getWordBlockCount(currWord) - first;
+      flcount = 0;
+    }
+
+    @Override
+    public Integer next()
+    {
+      return nextWord();
+    }
+
+    @Override
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Builds a set by appending increasing integers, or whole words, to words
+   * written in a direct buffer that grows as needed. Words are compacted
+   * with the same rules as {@link #compact(ImmutableConciseSet)}.
+   * <p>
+   * {@link #snapshot()} publishes the integers added so far while the
+   * builder keeps appending to the same buffer: the words are copied in bulk
+   * into a buffer of their own, followed by the block still being filled.
+   * {@link #build()} ends the builder and wraps its buffer, copying the words
+   * only when they fill less than three quarters of it.
+   */
+  public static class Builder
+  {
+    private final static int DEFAULT_CAPACITY = 1024;
+    // words written by the encoder when its pending block is flushed
+    private final static int PENDING_WORDS = 2;
+
+    private DirectWordList words;
+    private SortedIntEncoder encoder;
+    // last snapshot, null once integers or words are added after it
+    private ImmutableConciseSet snapshot = null;
+
+    public Builder()
+    {
+      this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity number of words of the buffer first allocated
+     */
+    public Builder(int initialCapacity)
+    {
+      if (initialCapacity < 1) {
+        throw new IllegalArgumentException("positive capacity expected: " + initialCapacity);
+      }
+      words = new DirectWordList(initialCapacity);
+      encoder = new SortedIntEncoder(words);
+    }
+
+    /**
+     * Adds an integer greater than the integers added so far, and than the
+     * integers covered by the words added so far
+     */
+    public Builder add(int i)
+    {
+      checkNotBuilt();
+      encoder.add(i);
+      snapshot = null;
+      return this;
+    }
+
+    /**
+     * Adds a SECOMPAX word, covering the blocks following the integers and
+     * words added so far
+     */
+    public Builder addWord(int word)
+    {
+      checkNotBuilt();
+      encoder.addWord(word);
+      snapshot = null;
+      return this;
+    }
+
+    /**
+     * Gets a set of the integers added so far, which does not change as
+     * more integers are added
+     */
+    public ImmutableConciseSet snapshot()
+    {
+      checkNotBuilt();
+      if (snapshot == null) {
+        DirectWordList copy = words.copy(words.length() + PENDING_WORDS);
+        new SortedIntEncoder(copy, encoder).flushBlock();
+        snapshot = copy.isEmpty()
+                   ? new ImmutableConciseSet()
+                   : new ImmutableConciseSet(copy.getBuffer().asReadOnlyBuffer());
+      }
+      return snapshot;
+    }
+
+    /**
+     * Builds the set of all the integers added, after which the builder
+     * cannot be used anymore
+     */
+    public ImmutableConciseSet build()
+    {
+      checkNotBuilt();
+      encoder.flushBlock();
+      ImmutableConciseSet retVal;
+      int capacity = words.capacity();
+      if (words.isEmpty()) {
+        retVal = new ImmutableConciseSet();
+      } else if (words.length() >= capacity - (capacity >> 2)) {
+        retVal = new ImmutableConciseSet(words.getBuffer());
+      } else {
+        // the set would otherwise hold on to the unused part of the buffer
+        retVal = new ImmutableConciseSet(words.copy(words.length()).getBuffer());
+      }
+      words = null;
+      encoder = null;
+      snapshot = null;
+      return retVal;
+    }
+
+    private void checkNotBuilt()
+    {
+      if (words == null) {
+        throw new IllegalStateException("the set is already built");
+      }
+    }
+  }
+
+  /**
+   * Words stored in a direct buffer, whose capacity is doubled when full
+   */
+  private static class DirectWordList extends IntList
+  {
+    private IntBuffer buffer;
+    private int length = 0;
+
+    DirectWordList(int capacity)
+    {
+      super(0);
+      buffer = allocate(capacity);
+    }
+
+    @Override
+    public int length()
+    {
+      return length;
+    }
+
+    @Override
+    public void setLength(int index)
+    {
+      // same meaning as IntList: index of the last word
+      ensureCapacity(index + 1);
+      length = index + 1;
+    }
+
+    @Override
+    public int capacity()
+    {
+      return buffer.capacity();
+    }
+
+    @Override
+    public void clear()
+    {
+      length = 0;
+    }
+
+    @Override
+    public void set(int index, int value)
+    {
+      ensureCapacity(index + 1);
+      buffer.put(index, value);
+      if (index >= length) {
+        length = index + 1;
+      }
+    }
+
+    @Override
+    public int get(int index)
+    {
+      if (index >= length) {
+        throw new ArrayIndexOutOfBoundsException(index);
+      }
+      return buffer.get(index);
+    }
+
+    @Override
+    public int baseListCount()
+    {
+      return isEmpty() ? 0 : 1;
+    }
+
+    @Override
+    public IntBuffer getBaseList(int index)
+    {
+      if (index != 0 || isEmpty()) {
+        return null;
+      }
+      return getBuffer().asReadOnlyBuffer();
+    }
+
+    @Override
+    public int[] toArray()
+    {
+      int[] retVal = new int[length];
+      getBuffer().get(retVal);
+      return retVal;
+    }
+
+    /**
+     * Hands the words over without copying them, the list being left empty
+     * with a new buffer of the same capacity
+     */
+    @Override
+    public IntBuffer detach()
+    {
+      IntBuffer retVal = getBuffer();
+      buffer = allocate(buffer.capacity());
+      length = 0;
+      return retVal;
+    }
+
+    /**
+     * Gets the words written so far, sharing the content of the buffer
+     */
+    IntBuffer getBuffer()
+    {
+      IntBuffer retVal = buffer.duplicate();
+      retVal.clear();
+      retVal.limit(length);
+      return retVal.slice();
+    }
+
+    /**
+     * Copies the words in bulk into a new list with the given capacity
+     */
+    DirectWordList copy(int capacity)
+    {
+      DirectWordList retVal = new DirectWordList(Math.max(capacity, Math.max(length, 1)));
+      retVal.buffer.put(getBuffer());
+      retVal.length = length;
+      return retVal;
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+      if (capacity > buffer.capacity()) {
+        IntBuffer old = buffer;
+        buffer = allocate(Math.max(2 * old.capacity(), capacity));
+        old.clear();
+        old.limit(length);
+        buffer.put(old);
+      }
+    }
+
+    private static IntBuffer allocate(int capacity)
+    {
+      return ByteBuffer.allocateDirect(capacity * Ints.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+  }
+
+  /**
+   * Encodes increasing integers one 31-bit block at a time. Each completed
+   * block is passed to {@link #addAndCompact(IntList, int, boolean)} as a
+   * literal or as a 1-block fill, and the blocks without set bits as a
+   * single 0-fill. Whole words may be added between the integers.
+   */
+  private static class SortedIntEncoder
+  {
+    private final IntList words;
+    // blocks encoded in words, and blocks covered by the words added and
+    // by the zero fill held back after them
+    private int writtenBlocks = 0;
+    private int coveredBlocks = 0;
+    // block whose literal is being filled
+    private boolean hasLiteral = false;
+    private int block;
+    private int literal;
+    private int last = -1;
+
+    SortedIntEncoder()
+    {
+      this(borrowWords());
+    }
+
+    SortedIntEncoder(IntList words)
+    {
+      this.words = words;
+    }
+
+    /**
+     * Continues the encoding of another encoder into a copy of its words
+     */
+    SortedIntEncoder(IntList words, SortedIntEncoder other)
+    {
+      this.words = words;
+      this.writtenBlocks = other.writtenBlocks;
+      this.coveredBlocks = other.coveredBlocks;
+      this.hasLiteral = other.hasLiteral;
+      this.block = other.block;
+      this.literal = other.literal;
+      this.last = other.last;
+    }
+
+    void add(int i)
+    {
+      if (i < 0) {
+        throw new IllegalArgumentException("positive integer expected: " + Integer.toString(i));
+      }
+      if (i <= last) {
+        throw new IllegalArgumentException("integers must be increasing: " + i + " after " + last);
+      }
+      last = i;
+
+      int b = ConciseSetUtils.maxLiteralLengthDivision(i);
+      if (!hasLiteral || b != block) {
+        flushBlock();
+        hasLiteral = true;
+        block = b;
+        literal = ConciseSetUtils.ALL_ZEROS_LITERAL;
+      }
+      literal |= 1 << ConciseSetUtils.maxLiteralLengthModulus(i);
+    }
+
+    void addWord(int word)
+    {
+      flushBlock();
+      int blocks = ConciseSetUtils.getWordBlockCount(word);
+      if (ConciseSetUtils.getWordBitCount(word) > 0) {
+        flushZeroBlocks(coveredBlocks);
+        if (word == ConciseSetUtils.ALL_ONES_LITERAL) {
+          addAndCompact(words, ConciseSetUtils.SEQUENCE_1_FILL | 1, false);
+        } else {
+          addAndCompact(words, word, false);
+        }
+        writtenBlocks += blocks;
+      }
+      coveredBlocks += blocks;
+      last = Math.max(last, ConciseSetUtils.maxLiteralLengthMultiplication(coveredBlocks) - 1);
+    }
+
+    ImmutableConciseSet build()
+    {
+      flushBlock();
+      if (words.isEmpty()) {
+        giveBackWords(words);
+        return new ImmutableConciseSet();
+      }
+      return new ImmutableConciseSet(releaseWords(words));
+    }
+
+    /**
+     * Builds the set as a sorted array when the first <code>length</code>
+     * integers of <code>ints</code>, that is the integers added so far, take
+     * fewer ints than the words
+     */
+    ImmutableConciseSet build(int[] ints, int length)
+    {
+      flushBlock();
+      if (length < words.length()) {
+        giveBackWords(words);
+        return new ImmutableConciseSet(Arrays.copyOf(ints, length));
+      }
+      return build();
+    }
+
+    void flushBlock()
+    {
+      if (!hasLiteral) {
+        return;
+      }
+      hasLiteral = false;
+      flushZeroBlocks(block);
+      if (literal == ConciseSetUtils.ALL_ONES_LITERAL) {
+        addAndCompact(words, ConciseSetUtils.SEQUENCE_1_FILL | 1, false);
+      } else {
+        addAndCompact(words, literal, false);
+      }
+      writtenBlocks = block + 1;
+      coveredBlocks = writtenBlocks;
+    }
+
+    /**
+     * Writes the blocks without set bits preceding the given block
+     */
+    private void flushZeroBlocks(int nextBlock)
+    {
+      if (nextBlock > writtenBlocks) {
+        addAndCompact(words, nextBlock - writtenBlocks, false);
+        writtenBlocks = nextBlock;
+      }
+    }
+  }
+
+  /**
+   * Checkpoints taken every {@link #SKIP_INDEX_INTERVAL} words, recording the
+   * index of the word, the first bit it covers and the number of set bits
+   * before it
+   */
+  private static class SkipIndex
+  {
+    static final SkipIndex FIRST_WORD = new SkipIndex(new int[]{0}, new int[]{0}, new int[]{0});
+
+    final int[] wordIndexes;
+    final int[] offsets;
+    final int[] ranks;
+
+    SkipIndex(int[] wordIndexes, int[] offsets, int[] ranks)
+    {
+      this.wordIndexes = wordIndexes;
+      this.offsets = offsets;
+      this.ranks = ranks;
+    }
+
+    SkipIndex(IntBuffer words, int lastWordIndex)
+    {
+      int checkpoints = lastWordIndex / SKIP_INDEX_INTERVAL + 1;
+      wordIndexes = new int[checkpoints];
+      offsets = new int[checkpoints];
+      ranks = new int[checkpoints];
+
+      int offset = 0;
+      int rank = 0;
+      for (int i = 0; i <= lastWordIndex; i++) {
+        if (i % SKIP_INDEX_INTERVAL == 0) {
+          int checkpoint = i / SKIP_INDEX_INTERVAL;
+          wordIndexes[checkpoint] = i;
+          offsets[checkpoint] = offset;
+          ranks[checkpoint] = rank;
+        }
+        int w = words.get(i);
+        offset += ConciseSetUtils.maxLiteralLengthMultiplication(ConciseSetUtils.getWordBlockCount(w));
+        rank += ConciseSetUtils.getWordBitCount(w);
+      }
+    }
+
+    /**
+     * Gets the last checkpoint whose first bit is not greater than <code>bit</code>
+     */
+    int floorByOffset(int bit)
+    {
+      return floor(offsets, bit);
+    }
+
+    /**
+     * Gets the last checkpoint preceded by no more than <code>rank</code> set bits
+     */
+    int floorByRank(int rank)
+    {
+      return floor(ranks, rank);
+    }
+
+    private static int floor(int[] values, int key)
+    {
+      int low = 0;
+      int high = values.length - 1;
+      while (low < high) {
+        int mid = (low + high + 1) >>> 1;
+        if (values[mid] <= key) {
+          low = mid;
+        } else {
+          high = mid - 1;
+        }
+      }
+      return low;
+    }
+  }
+
+  private static class UnionTask extends RecursiveTask<ImmutableConciseSet>
+  {
+    private static final long serialVersionUID = -3049186213876135526L;
+
+    private final List<ImmutableConciseSet> sets;
+    private final int threshold;
+
+    UnionTask(List<ImmutableConciseSet> sets, int threshold)
+    {
+      this.sets = sets;
+      this.threshold = threshold;
+    }
+
+    @Override
+    protected ImmutableConciseSet compute()
+    {
+      if (sets.size() <= threshold) {
+        return union(sets);
+      }
+      int middle = sets.size() / 2;
+      UnionTask left = new UnionTask(sets.subList(0, middle), threshold);
+      UnionTask right = new UnionTask(sets.subList(middle, sets.size()), threshold);
+      left.fork();
+      ImmutableConciseSet rightResult = right.compute();
+      return union(left.join(), rightResult);
+    }
+  }
+
+  /**
+   * Cursor over the literals and fills of a set, where fills can be
+   * consumed a few blocks at a time
+   */
+  static class WordCursor
+  {
+    private final IntBuffer words;
+    private final WordIterator itr;
+    private int word;
+    private int remaining;
+    private int composite;
+
+    WordCursor(ImmutableConciseSet set)
+    {
+      words = set.words;
+      itr = set.newWordIterator();
+      nextWord();
+    }
+
+    boolean hasWord()
+    {
+      return remaining > 0;
+    }
+
+    int getWord()
+    {
+      return word;
+    }
+
+    /**
+     * Gets the bits of the current block as a literal word
+     */
+    int getLiteral()
+    {
+      if (isLiteral()) {
+        return word;
+      }
+      return isOneFill() ? ConciseSetUtils.ALL_ONES_LITERAL : ConciseSetUtils.ALL_ZEROS_LITERAL;
+    }
+
+    /**
+     * Gets the number of blocks left in the current word
+     */
+    int getRemaining()
+    {
+      return remaining;
+    }
+
+    boolean isLiteral()
+    {
+      return ConciseSetUtils.isLiteral(word);
+    }
+
+    boolean isZeroFill()
+    {
+      return ConciseSetUtils.is0_fill(word);
+    }
+
+    boolean isOneFill()
+    {
+      return ConciseSetUtils.is1_fill(word);
+    }
+
+    /**
+     * Gets the F1-L-F2 or L1-F-L2 word starting at the current block, when
+     * none of its blocks has been consumed yet, 0 otherwise
+     */
+    int getComposite()
+    {
+      return composite;
+    }
+
+    /**
+     * Consumes the whole word returned by {@link #getComposite()}
+     */
+    void skipComposite()
+    {
+      itr.skipCompositeParts();
+      nextWord();
+    }
+
+    /**
+     * Gets the words of the set, read by {@link #getLiteralIndex()}
+     */
+    IntBuffer getWords()
+    {
+      return words;
+    }
+
+    /**
+     * Gets the index in {@link #getWords()} of the current word when it is a
+     * literal stored as it is, -1 for literals decoded from other words
+     */
+    int getLiteralIndex()
+    {
+      return composite == 0 ? itr.getLiteralIndex() : -1;
+    }
+
+    /**
+     * Consumes the given number of literals stored one after the other from
+     * {@link #getLiteralIndex()}
+     */
+    void skipLiterals(int count)
+    {
+      itr.skipLiterals(count - 1);
+      nextWord();
+    }
+
+    /**
+     * Consumes the given number of blocks, moving to the following words if needed
+     */
+    void skip(int blocks)
+    {
+      while (blocks > 0 && remaining > 0) {
+        if (blocks < remaining) {
+          remaining -= blocks;
+          composite = 0;
+          return;
+        }
+        blocks -= remaining;
+        nextWord();
+      }
+    }
+
+    /**
+     * Appends what is left of the current word and moves to the next one
+     */
+    void copyWordTo(WordWriter writer)
+    {
+      if (composite != 0) {
+        writer.addComposite(composite);
+        skipComposite();
+        return;
+      }
+      if (isLiteral()) {
+        writer.addLiteral(word);
+      } else if (isOneFill()) {
+        writer.addOneFill(remaining);
+      } else {
+        writer.addZeroFill(remaining);
+      }
+      nextWord();
+    }
+
+    private void nextWord()
+    {
+      remaining = 0;
+      // F1-L-F2 and L1-F-L2 words may contain empty fills
+      while (remaining == 0 && itr.hasNext()) {
+        word = itr.nextWord();
+        remaining = ConciseSetUtils.isLiteral(word) ? 1 : ConciseSetUtils.getSequenceCount(word);
+      }
+      composite = remaining > 0 ? itr.getCompositeWord() : 0;
+    }
+  }
+
+  /**
+   * Appends words through {@link #addAndCompact(IntList, int, boolean)},
+   * holding zero fills back until a word with set bits follows, so that the
+   * result never ends with a zero fill.
+   * <p>
+   * F1-L-F2 and L1-F-L2 words are appended as a whole when
+   * <code>addAndCompact</code> would merge their parts back into the same
+   * word, hence the result does not depend on how the words were given.
+   */
+  static class WordWriter
+  {
+    private final IntList words;
+    private int zeroBlocks = 0;
+    // the last word is a F1-L-F2 word whose second fill is a zero fill
+    // still held back, as if only its first fill and literal were written
+    private boolean zeroFillTail = false;
+    // literals combined by addCombinedLiterals(), and its two operands
+    private int[] literals;
+
+    WordWriter()
+    {
+      this(borrowWords());
+    }
+
+    WordWriter(IntList words)
+    {
+      this.words = words;
+    }
 
-      nextWord();
+    void addLiteral(int literal)
+    {
+      if (literal == ConciseSetUtils.ALL_ZEROS_LITERAL) {
+        zeroBlocks++;
+        return;
+      }
+      flushZeroBlocks();
+      if (literal == ConciseSetUtils.ALL_ONES_LITERAL) {
+        addAndCompact(words, ConciseSetUtils.SEQUENCE_1_FILL | 1, false);
+      } else {
+        addAndCompact(words, literal, false);
+      }
     }
 
-    private BitIterator(
-        ConciseSetUtils.LiteralAndZeroFillExpander litExp,
-        ConciseSetUtils.OneFillExpander oneExp,
-        ConciseSetUtils.WordExpander exp,
-        int nextIndex,
-        int nextOffset
-    )
+    void addZeroFill(int blocks)
     {
-      this.litExp = litExp;
-      this.oneExp = oneExp;
-      this.exp = exp;
-      this.nextIndex = nextIndex;
-      this.nextOffset = nextOffset;
+      zeroBlocks += blocks;
     }
 
-    @Override
-    public boolean hasNext()
+    /**
+     * Appends the first <code>length</code> literals of the given array
+     */
+    void addLiterals(int[] literals, int length)
     {
-      while (!exp.hasNext()) {
-        if (nextIndex > lastWordIndex) {
-          return false;
-        }
-        nextWord();
+      for (int i = 0; i < length; i++) {
+        addLiteral(literals[i]);
       }
-      return true;
     }
 
-    @Override
-    public int next()
+    /**
+     * Gets the buffer used by {@link #addCombinedLiterals(WordCursor, WordCursor, int, WordWriter)}
+     */
+    int[] getLiteralBuffer()
     {
-      if (!hasNext()) {
-        throw new NoSuchElementException();
+      if (literals == null) {
+        literals = new int[3 * LITERAL_CHUNK];
       }
-      return exp.next();
+      return literals;
     }
 
-    @Override
-    public void remove()
+    void addOneFill(int blocks)
     {
-      throw new UnsupportedOperationException();
+      if (blocks == 0) {
+        return;
+      }
+      flushZeroBlocks();
+      addAndCompact(words, ConciseSetUtils.SEQUENCE_1_FILL | blocks, false);
     }
 
-    @Override
-    public void skipAllBefore(int element)
+    /**
+     * Appends a F1-L-F2 or L1-F-L2 word
+     */
+    void addComposite(int word)
     {
-      while (true) {
-        exp.skipAllBefore(element);
-        if (exp.hasNext() || nextIndex > lastWordIndex) {
-          return;
+      boolean whole = isCompactComposite(word);
+      if (whole && (zeroBlocks > 0 || zeroFillTail)) {
+        // a first zero fill would be merged with the zeros held back
+        whole = !ConciseSetUtils.is0_fill(ConciseSetUtils.getCompositeWordPart(word, 0));
+        if (whole) {
+          flushZeroBlocks();
         }
-        nextWord();
       }
+      if (!whole || !isMergedBack(word)) {
+        for (int k = 0; k < 3; k++) {
+          addPart(ConciseSetUtils.getCompositeWordPart(word, k));
+        }
+        return;
+      }
+      words.add(word);
+      zeroFillTail = ConciseSetUtils.getWordKind(word) == ConciseSetUtils.WORD_F_L_F
+                     && ConciseSetUtils.getFLFSecondFillType(word) == 0;
     }
 
-    @Override
-    public IntSet.IntIterator clone()
+    ImmutableConciseSet build()
     {
-      return new BitIterator(
-          (ConciseSetUtils.LiteralAndZeroFillExpander) litExp.clone(),
-          (ConciseSetUtils.OneFillExpander) oneExp.clone(),
-          exp.clone(),
-          nextIndex,
-          nextOffset
-      );
+      if (zeroFillTail) {
+        // trailing zeros are dropped
+        splitLastWord();
+      }
+      if (words.isEmpty()) {
+        giveBackWords(words);
+        return new ImmutableConciseSet();
+      }
+      return new ImmutableConciseSet(releaseWords(words));
     }
 
-    private void nextWord()
+    private void addPart(int part)
     {
-      final int word = words.get(nextIndex++);
-      exp = ConciseSetUtils.is1_fill(word) ? oneExp : litExp;
-      exp.reset(nextOffset, word, true);
-
-      // prepare next offset
-      if (ConciseSetUtils.isLiteral(word)) {
-        nextOffset += ConciseSetUtils.MAX_LITERAL_LENGTH;
+      if (ConciseSetUtils.isLiteral(part)) {
+        addLiteral(part);
+      } else if (ConciseSetUtils.is1_fill(part)) {
+        addOneFill(ConciseSetUtils.getSequenceCount(part));
       } else {
-        nextOffset += ConciseSetUtils.maxLiteralLengthMultiplication(ConciseSetUtils.getSequenceCount(word));
+        addZeroFill(ConciseSetUtils.getSequenceCount(part));
       }
     }
-  }
-  */
-  // Based on the ConciseSet implementation by Alessandro Colantonio
-  private class BitIterator implements IntSet.IntIterator
-  {
-    final ConciseSetUtils.LiteralAndZeroFillExpander litExp;
-    final ConciseSetUtils.OneFillExpander oneExp;
-    final ConciseSetUtils.FLFExpander flfExp;
-    final ConciseSetUtils.LFLExpander lflExp;
-
-    ConciseSetUtils.WordExpander exp;
-    int nextIndex = 0;
-    int nextOffset = 0;
 
-    private BitIterator()
+    /**
+     * Checks whether <code>addAndCompact</code> would rebuild the given word
+     * from its parts after the last word written, without merging any part
+     * with the words before
+     */
+    private boolean isMergedBack(int word)
     {
-      litExp = ConciseSetUtils.newLiteralAndZeroFillExpander();
-      oneExp = ConciseSetUtils.newOneFillExpander();
-      flfExp = ConciseSetUtils.newFLFExpander();
-      lflExp = ConciseSetUtils.newLFLExpander();
-      nextWord();
+      if (words.isEmpty()) {
+        return true;
+      }
+      int last = words.get(words.length() - 1);
+      int lastKind = ConciseSetUtils.getWordKind(last);
+      if (ConciseSetUtils.getWordKind(word) == ConciseSetUtils.WORD_L_F_L) {
+        // a fill before would be merged with the first literal, or with the
+        // first literal and the fill
+        return lastKind != ConciseSetUtils.WORD_0_FILL && lastKind != ConciseSetUtils.WORD_1_FILL;
+      }
+      if (lastKind == ConciseSetUtils.WORD_LITERAL) {
+        return !ConciseSetUtils.isDirtyByte0Word(last) && !ConciseSetUtils.isDirtyByte1Word(last);
+      }
+      int firstFillType = ConciseSetUtils.getFLFFirstFillType(word);
+      switch (lastKind) {
+        case ConciseSetUtils.WORD_0_FILL:
+          return firstFillType == 1;
+        case ConciseSetUtils.WORD_1_FILL:
+          return firstFillType == 0;
+        case ConciseSetUtils.WORD_F_L_F:
+          return ConciseSetUtils.getFLFSecondFillType(last) != firstFillType;
+        default:
+          return true;
+      }
     }
 
-    private BitIterator(
-        ConciseSetUtils.LiteralAndZeroFillExpander litExp,
-        ConciseSetUtils.OneFillExpander oneExp,
-        ConciseSetUtils.WordExpander exp,
-        ConciseSetUtils.FLFExpander flfExp,
-        ConciseSetUtils.LFLExpander lflExp,
-        int nextIndex,
-        int nextOffset
-    )
+    /**
+     * Replaces the last F1-L-F2 word with its first fill and its literal,
+     * holding its second fill back
+     */
+    private void splitLastWord()
     {
-      this.litExp = litExp;
-      this.oneExp = oneExp;
-      this.exp = exp;
-      this.nextIndex = nextIndex;
-      this.nextOffset = nextOffset;
-      this.flfExp = flfExp;
-      this.lflExp = lflExp;
+      int last = words.get(words.length() - 1);
+      words.set(words.length() - 1, ConciseSetUtils.getCompositeWordPart(last, 0));
+      words.add(ConciseSetUtils.getCompositeWordPart(last, 1));
+      zeroBlocks += ConciseSetUtils.getFLFSecondFillCount(last);
+      zeroFillTail = false;
     }
 
-    @Override
-    public boolean hasNext()
+    private void flushZeroBlocks()
     {
-      while (!exp.hasNext()) {
-        if (nextIndex > lastWordIndex) {
-          return false;
+      if (zeroFillTail) {
+        zeroFillTail = false;
+        int last = words.get(words.length() - 1);
+        if (ConciseSetUtils.getFLFSecondFillCount(last) + zeroBlocks > ConciseSetUtils.MAX_F_L_F_NUM) {
+          // the zeros do not fit the second fill anymore
+          splitLastWord();
         }
-        nextWord();
       }
-      return true;
+      if (zeroBlocks > 0) {
+        addAndCompact(words, zeroBlocks, false);
+        zeroBlocks = 0;
+      }
+    }
+  }
+
+  /**
+   * Counts the bits of the words given to a {@link WordWriter}, without
+   * encoding them
+   */
+  static class WordCounter extends WordWriter
+  {
+    private int count = 0;
+
+    WordCounter()
+    {
+      // no words are written
+      super(null);
     }
 
     @Override
-    public int next()
+    void addLiteral(int literal)
     {
-      if (!hasNext()) {
-        throw new NoSuchElementException();
-      }
-      return exp.next();
+      count += ConciseSetUtils.getLiteralBitCount(literal);
     }
 
     @Override
-    public void remove()
+    void addLiterals(int[] literals, int length)
     {
-      throw new UnsupportedOperationException();
+      count += LiteralKernels.bitCount(literals, 0, length);
     }
 
     @Override
-    public void skipAllBefore(int element)
+    void addZeroFill(int blocks)
     {
-      while (true) {
-        exp.skipAllBefore(element);
-        if (exp.hasNext() || nextIndex > lastWordIndex) {
-          return;
-        }
-        nextWord();
-      }
     }
 
     @Override
-    public IntSet.IntIterator clone()
+    void addOneFill(int blocks)
     {
-      return new BitIterator(
-          (ConciseSetUtils.LiteralAndZeroFillExpander) litExp.clone(),
-          (ConciseSetUtils.OneFillExpander) oneExp.clone(),
-          exp.clone(),
-          (ConciseSetUtils.FLFExpander) flfExp.clone(),
-          (ConciseSetUtils.LFLExpander) lflExp.clone(),
-          nextIndex,
-          nextOffset
-      );
+      count += blocks * ConciseSetUtils.MAX_LITERAL_LENGTH;
     }
 
-    private void nextWord()
+    @Override
+    void addComposite(int word)
     {
-      final int word = words.get(nextIndex++);
-      if(ConciseSetUtils.is1_fill(word))		//
-    	  exp = oneExp;
-      else
-      {
-    	  if(ConciseSetUtils.is0_fill(word) || ConciseSetUtils.isLiteral(word))
-    	  {
-    		  exp = litExp;
-    	  }
-    	  else
-    	  {
-    		  if(ConciseSetUtils.isF1_L_F2(word))
-    		  {
-    			  exp = flfExp;
-    		  }
-    		  else
-    		  {
-    			  if(ConciseSetUtils.is0L1_F_0L2(word) || ConciseSetUtils.is0L_F_1L(word) 
-    					  || ConciseSetUtils.is1L1_F_1L2(word) || ConciseSetUtils.is1L_F_0L(word))
-    			  {
-    				  exp = lflExp;
-    			  }
-    		  }
-    	  }
-      }
-      exp.reset(nextOffset, word, true);
+      count += ConciseSetUtils.getWordBitCount(word);
+    }
 
-      // prepare next offset
-      if (ConciseSetUtils.isLiteral(word)) {
-        nextOffset += ConciseSetUtils.MAX_LITERAL_LENGTH;
-      } else {
-    	  if(ConciseSetUtils.is0_fill(word) || ConciseSetUtils.is1_fill(word))
-    		  nextOffset += ConciseSetUtils.maxLiteralLengthMultiplication(ConciseSetUtils.getSequenceCount(word));
-    	  else
-    	  {
-    		  if(ConciseSetUtils.isF1_L_F2(word))
-    		  {
-    			  int[] fillnum = ConciseSetUtils.getFLFFILLWords(word);
-    			  nextOffset += ConciseSetUtils.maxLiteralLengthMultiplication(fillnum[0] + fillnum[1] + 1);
-    		  }
-    		  else
-    		  {
-    			  if(ConciseSetUtils.is1L1_F_1L2(word) || ConciseSetUtils.is1L_F_0L(word) 
-    					  || ConciseSetUtils.is0L1_F_0L2(word) || ConciseSetUtils.is0L_F_1L(word))
-    			  {
-    				  int fillnum = ConciseSetUtils.getLFLFILLWords(word);
-    				  nextOffset += ConciseSetUtils.maxLiteralLengthMultiplication(fillnum + 2);
-    			  }
-    		  }
-    	  }
-      }
+    int getCount()
+    {
+      return count;
     }
   }
-  
-  public class WordIterator implements Iterator
-  {
-    private int startIndex;
-    private int wordsWalked;
-    private int currWord;
-    private int nextWord;
-    private int currRow;
-    private int flcount;
-
-    private volatile boolean hasNextWord = false;
 
-    WordIterator()
+  /**
+   * Binary heap of the operands of a union or an intersection, ordered by
+   * the start index of their current word, then by word class and length.
+   * Operands are identified by their position in primitive arrays, hence
+   * moving an operand to its next word does not allocate.
+   */
+  private static class WordQueue
+  {
+    private final boolean union;
+    private WordIterator[] iterators = new WordIterator[8];
+    private int[] words = new int[8];
+    private long[] keys = new long[8];
+    private int[] heap = new int[8];
+    private int operands = 0;
+    private int size = 0;
+
+    /**
+     * @param union <code>true</code> to give priority to one fills, as
+     *              needed by unions, <code>false</code> to give priority to
+     *              zero fills, as needed by intersections
+     */
+    WordQueue(boolean union)
     {
-      startIndex = -1;
-      wordsWalked = 0;
-      currRow = -1;
-      flcount = 0;
+      this.union = union;
     }
 
-    public void advanceTo(int endCount)			//
+    void addOperand(WordIterator itr)
     {
-      while (hasNext() && wordsWalked < endCount) {
-         next();
-      }
-      if (wordsWalked <= endCount) {
-        return;
-      }
-      if(ConciseSetUtils.is1_fill(currWord))
-      nextWord = 0x10000000 | (wordsWalked - endCount);   //
-      else
-      {
-    	  if(ConciseSetUtils.is0_fill(currWord))
-    		  nextWord = wordsWalked - endCount;
-    	  else
-    	  {
-    		  if(ConciseSetUtils.isF1_L_F2(currWord))
-    		  {
-    			  int []filltype = new int [2];
-    			  filltype[0] = (currWord & 0x10000000) >>> 28;
-		          filltype[1] = (currWord & 0x04000000) >>> 26;
-        	      if(flcount == 1)
-    			  {
-    				  if(filltype[0] == 0)
-    				  {
-    					  nextWord = wordsWalked - endCount;
-    				  }
-    				  else
-    				  {
-    					  nextWord = 0x10000000 | (wordsWalked - endCount);
-    				  }
-    			  }
-    			  else
-    			  {
-    				  if(flcount == 0)
-    				  {
-    					  if(filltype[1] == 0)
-        				  {
-        					  nextWord = wordsWalked - endCount;
-        				  }
-        				  else
-        				  {
-        					  nextWord = 0x10000000 | (wordsWalked - endCount);
-        				  }
-    				  }
-    			  }
-    			  /*int[] fillnum = ConciseSetUtils.getFLFFILLWords(currWord);
-    			  if(endCount >= startIndex && endCount< startIndex + fillnum[0])
-    			  {
-    				  if(filltype[0] == 0)
-    				  {
-    					  nextWord = wordsWalked - endCount - 1;
-    				  }
-    				  else
-    				  {
-    					  nextWord = 0x10000000 | (wordsWalked - endCount - 1);
-    				  }
-    			  }
-    			  else
-    			  {
-    				  if(endCount >= startIndex + fillnum[0] + 1 && endCount < startIndex +fillnum[0] + fillnum[1] + 1)
-    				  {
-    					  if(filltype[1] == 0)
-        				  {
-        					  nextWord = wordsWalked - endCount - 1;
-        				  }
-        				  else
-        				  {
-        					  nextWord = 0x10000000 | (wordsWalked - endCount - 1);
-        				  }
-    				  }
-    			  }*/
-    		  }
-    		  else
-    		  {
-    			  if(ConciseSetUtils.is0L1_F_0L2(currWord) || ConciseSetUtils.is0L_F_1L(currWord)
-    					  || ConciseSetUtils.is1L1_F_1L2(currWord) || ConciseSetUtils.is1L_F_0L(currWord))
-    			  {
-    				  int filltype = (currWord & 0x00800000) >>> 23;
-        	    	  if(filltype == 0)
-    				  {
-    					  nextWord = wordsWalked - endCount;
-    				  }
-    				  else
-    				  {
-    					  nextWord = 0x10000000 | (wordsWalked - endCount);
-    				  }
-    			  }
-    				  
-    		  }
-    	  }
+      if (operands == iterators.length) {
+        int capacity = operands * 2;
+        iterators = Arrays.copyOf(iterators, capacity);
+        words = Arrays.copyOf(words, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        heap = Arrays.copyOf(heap, capacity);
       }
-      startIndex = endCount;
-      hasNextWord = true;
+      iterators[operands] = itr;
+      advance(operands++);
     }
 
-    @Override
-    public boolean hasNext()
+    boolean isEmpty()
     {
-      if(flcount != 0)
-    	  return true;
-      if (isEmpty()) {
-        return false;
-      }
-      if (hasNextWord) {
-        return true;
-      }
-      return currRow < (words.capacity() - 1);
+      return size == 0;
     }
 
-    @Override
-    public Integer next()
+    int getWord(int operand)
     {
-      if (hasNextWord) {
-    	  if(ConciseSetUtils.is0L1_F_0L2(currWord) || ConciseSetUtils.is0L_F_1L(currWord)
-				  || ConciseSetUtils.is1L1_F_1L2(currWord) || ConciseSetUtils.is1L_F_0L(currWord)
-				  || ConciseSetUtils.isF1_L_F2(currWord))
-    	  {
-    		  hasNextWord = false;
-    		  return new Integer(nextWord);
-    	  }
-    	  else
-    	  {
-    		currWord = nextWord;
-    		hasNextWord = false;
-    	  }
-        return new Integer(currWord);
-      }
-      if(flcount == 0)
-      {
-    	  currWord = words.get(++currRow);
-      }
-      if (ConciseSetUtils.isLiteral(currWord)) {
-        startIndex = wordsWalked++;
-      } else {
-    	if(ConciseSetUtils.is0_fill(currWord) || ConciseSetUtils.is1_fill(currWord))
-        {
-    		startIndex = wordsWalked;
-    		wordsWalked += ConciseSetUtils.getSequenceCount(currWord);
-        }
-    	else
-    	{
-    		if(ConciseSetUtils.is0L1_F_0L2(currWord) || ConciseSetUtils.is0L_F_1L(currWord)
-    				|| ConciseSetUtils.is1L_F_0L(currWord) || ConciseSetUtils.is1L1_F_1L2(currWord))
-    		{
-    			int []words;
-    			int filltype;
-      			int fillnum;
-        	    int []literalbyte;
-        	    int []literalPos;
-        	    
-    			words = new int [3];
-    			filltype = (currWord & 0x00800000) >>> 23;
-      			fillnum = (currWord & 0x007f0000) >>> 16;
-        	    if(flcount == 0)
-              	{
-        	    literalbyte = ConciseSetUtils.getLFLLiteralWords(currWord);
-        	    literalPos = new int [2];
-        	    literalPos[0] = (currWord & 0x0c000000) >>> 26;
-        	    literalPos[1] = (currWord & 0x03000000) >>> 24;
-        	    if(ConciseSetUtils.is0L1_F_0L2(currWord))
-        	    {
-        	    	words[0] = 0x80000000 | (literalbyte[0] <<(literalPos[0] * 8));
-        	    	words[2] = 0x80000000 | (literalbyte[1] <<(literalPos[1] * 8));
-        	    }
-        	    else
-        	    {
-        	    	if(ConciseSetUtils.is1L1_F_1L2(currWord))
-            	    {
-        	    		words[0] = ((literalbyte[0]) << (literalPos[0] * 8));
-	  		    		  switch(literalPos[0])
-	  		    		  {
-	  		    		  case 0: words[0] |= 0xffffff00; break;
-	  		    		  case 1: words[0] |= 0xffff00ff; break;
-	  		    		  case 2: words[0] |= 0xff00ffff; break;
-	  		    		  default: words[0] |= 0x80ffffff;
-	  		    		  }
-	  		    		  
-	  		    		words[2] = ((literalbyte[1]) << (literalPos[1] * 8));
-	  		    		  switch(literalPos[1])
-	  		    		  {
-	  		    		  case 0: words[2] |= 0xffffff00; break;
-	  		    		  case 1: words[2] |= 0xffff00ff; break;
-	  		    		  case 2: words[2] |= 0xff00ffff; break;
-	  		    		  default: words[2] |= 0x80ffffff;
-	  		    		  }
-            	    }
-        	    	else
-        	    	{
-        	    		if(ConciseSetUtils.is1L_F_0L(currWord))
-                	    {
-        	    			words[0] = ((literalbyte[0]) << (literalPos[0] * 8));
-	      		    		  switch(literalPos[0])
-	      		    		  {
-	      		    		  case 0: words[0] |= 0xffffff00; break;
-	      		    		  case 1: words[0] |= 0xffff00ff; break;
-	      		    		  case 2: words[0] |= 0xff00ffff; break;
-	      		    		  default: words[0] |= 0x80ffffff;
-	      		    		  }
-            	    		words[2] = 0x80000000 | (literalbyte[1] <<(literalPos[1] * 8));
-                	    }
-        	    		else
-        	    		{
-        	    			if(ConciseSetUtils.is0L_F_1L(currWord))
-                    	    {
-                	    		words[0] = 0x80000000 | (literalbyte[0] <<(literalPos[0] * 8));
-                	    		words[2] = ((literalbyte[1]) << (literalPos[1] * 8));
-	          		    		  switch(literalPos[1])
-	          		    		  {
-	          		    		  case 0: words[2] |= 0xffffff00; break;
-	          		    		  case 1: words[2] |= 0xffff00ff; break;
-	          		    		  case 2: words[2] |= 0xff00ffff; break;
-	          		    		  default: words[2] |= 0x80ffffff;
-	          		    		  }
-                    	    }
-        	    		}
-        	    	}
-        	    }
-        	    words[1] = (filltype << 28) | fillnum;
-        	    }
-        	    if(flcount == 0)
-        	    {
-        	    	startIndex = wordsWalked;
-        	    	wordsWalked ++;
-        	    	flcount ++;
-        	    	return new Integer(words[0]);
-        	    }
-        	    else
-        	    {
-        	    	if(flcount == 1)
-        	    	{
-        	    		startIndex = wordsWalked;
-        	    		wordsWalked += fillnum;
-        	    		flcount ++;
-        	    		return new Integer(words[1]);
-        	    	}
-        	    	else
-        	    	{
-        	    		if(flcount == 2)
-        	    		{
-        	    			startIndex = wordsWalked;
-        	    			wordsWalked ++;
-        	    			flcount = 0;
-        	    			return new Integer(words[2]);
-        	    		}
-        	    	}
-        	    }
-    		}
-    		else
-    		{
-    			if(ConciseSetUtils.isF1_L_F2(currWord))
-    		      {
-    		    	  int []words = new int [3];
-    		    	  int []filltype = new int [2];
-    		    	  int []fillnum = new int[2];
-    		    	  int literaltype = (currWord & 0x08000000) >>> 27;
-    		          int literalbyte = (currWord & 0x0000ff00) >>> 8;
-    		          int literalPos = (currWord & 0x03000000) >>> 24;
-            	      if(flcount == 0)
-            	      {
-    		    	  filltype[0] = (currWord & 0x10000000) >>> 28;
-    		          filltype[1] = (currWord & 0x04000000) >>> 26;
-    		          fillnum[0] = (currWord & 0x00ff0000) >>> 16;
-    		          fillnum[1] = (currWord & 0x000000ff);
-    		    	  words[0] = (filltype[0] << 28) | fillnum[0];
-    		    	  words[2] = (filltype[1] << 28) | fillnum[1];
-    		    	  if(literaltype == 0)
-    		    	  {
-    		    		  words[1] = 0x80000000 | (literalbyte <<(literalPos * 8));
-    		    	  }
-    		    	  else
-    		    	  {
-    		    		  words[1] = ((literalbyte) << (literalPos * 8));
-    		    		  switch(literalPos)
-    		    		  {
-    		    		  case 0: words[1] |= 0xffffff00; break;
-    		    		  case 1: words[1] |= 0xffff00ff; break;
-    		    		  case 2: words[1] |= 0xff00ffff; break;
-    		    		  default: words[1] |= 0x80ffffff;
-    		    		  }
-    		    		   
-    		    	  }
-            	      }
-    		    	  if(flcount == 0)
-    		    	  {
-    		    		  startIndex = wordsWalked;
-    		    		  wordsWalked += fillnum[0];
-    		    		  flcount ++;
-    		    		  return new Integer(words[0]);
-    		    	  }
-    		    	  else
-    		    	  {
-    		    		  if(flcount == 1)
-    		    		  {
-    		    			  startIndex = wordsWalked ++;
-    		    			  flcount ++;
-    		    			  return new Integer(words[1]);
-    		    		  }
-    		    		  else
-    		    		  {
-    		    			  if(flcount == 2)
-    		    			  {
-    		    				  startIndex = wordsWalked;
-    		    				  wordsWalked += fillnum[1];
-    		    				  flcount = 0;
-    		    				  return new Integer(words[2]);
-    		    			  }
-    		    		  }
-    		    	  }
-    		      }
-    		}
-    			
-    	}
-      }
+      return words[operand];
+    }
 
-      return new Integer(currWord);
+    WordIterator getIterator(int operand)
+    {
+      return iterators[operand];
     }
 
-    @Override
-    public void remove()
+    int peekStartIndex()
     {
-      throw new UnsupportedOperationException();
+      return (int) (keys[heap[0]] >>> 32);
     }
-  }
 
-  private static class WordHolder
-  {
-    private final int word;
-    private final WordIterator iterator;
+    int poll()
+    {
+      int retVal = heap[0];
+      heap[0] = heap[--size];
+      siftDown(0);
+      return retVal;
+    }
 
-    public WordHolder(
-        int word,
-        WordIterator iterator
-    )
+    /**
+     * Moves an operand, that must not be in the heap, to its next word
+     *
+     * @return <code>false</code> if the operand has no more words
+     */
+    boolean advance(int operand)
     {
-      this.word = word;
-      this.iterator = iterator;
+      WordIterator itr = iterators[operand];
+      if (!itr.hasNext()) {
+        return false;
+      }
+      int word = itr.nextWord();
+      words[operand] = word;
+      keys[operand] = ((long) itr.startIndex << 32) | rank(word);
+      siftUp(size++, operand);
+      return true;
     }
 
-    public int getWord()
+    private int rank(int word)
     {
-      return word;
+      // fill lengths take the lowest 28 bits, and the class the 2 bits above
+      int count = ConciseSetUtils.getSequenceCount(word);
+      switch (ConciseSetUtils.getWordKind(word)) {
+        case ConciseSetUtils.WORD_1_FILL:
+          return union ? ConciseSetUtils.MAX_FILL_NUM - count : (2 << 28) | count;
+        case ConciseSetUtils.WORD_0_FILL:
+          return union ? (2 << 28) | count : ConciseSetUtils.MAX_FILL_NUM - count;
+        default:
+          return 1 << 28;
+      }
+    }
+
+    private void siftUp(int pos, int operand)
+    {
+      long key = keys[operand];
+      while (pos > 0) {
+        int parent = (pos - 1) >>> 1;
+        if (keys[heap[parent]] <= key) {
+          break;
+        }
+        heap[pos] = heap[parent];
+        pos = parent;
+      }
+      heap[pos] = operand;
     }
 
-    public WordIterator getIterator()
+    private void siftDown(int pos)
     {
-      return iterator;
+      if (size == 0) {
+        return;
+      }
+      int operand = heap[pos];
+      long key = keys[operand];
+      int half = size >>> 1;
+      while (pos < half) {
+        int child = 2 * pos + 1;
+        if (child + 1 < size && keys[heap[child + 1]] < keys[heap[child]]) {
+          child++;
+        }
+        if (key <= keys[heap[child]]) {
+          break;
+        }
+        heap[pos] = heap[child];
+        pos = child;
+      }
+      heap[pos] = operand;
     }
   }
 }
@@ -0,0 +1,407 @@
+/*
+* Copyright 2012 Metamarkets Group Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package it.uniroma3.mat.extendedset.intset;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tree of AND, OR and NOT operators over {@link ImmutableConciseSet}
+ * instances, evaluated in a single pass over the words of all the sets.
+ * <p>
+ * Each node of the tree reads the current run of blocks of its operands,
+ * that is a literal or a fill, and produces its own run, hence fills are
+ * skipped in bulk and no intermediate set is encoded.
+ * <p>
+ * Complemented sets are bounded by a length: {@link #evaluate()} and
+ * {@link #size()} complement up to the greatest element of the sets of the
+ * tree, as {@link ImmutableConciseSet#complement(ImmutableConciseSet)} does.
+ */
+public abstract class ImmutableConciseSetExpression
+{
+  private ImmutableConciseSetExpression()
+  {
+  }
+
+  public static ImmutableConciseSetExpression of(ImmutableConciseSet set)
+  {
+    return new SetExpression(set == null ? new ImmutableConciseSet() : set);
+  }
+
+  public static ImmutableConciseSetExpression and(ImmutableConciseSetExpression... operands)
+  {
+    return and(Arrays.asList(operands));
+  }
+
+  public static ImmutableConciseSetExpression and(List<ImmutableConciseSetExpression> operands)
+  {
+    return new OperatorExpression(true, toArray(operands));
+  }
+
+  public static ImmutableConciseSetExpression or(ImmutableConciseSetExpression... operands)
+  {
+    return or(Arrays.asList(operands));
+  }
+
+  public static ImmutableConciseSetExpression or(List<ImmutableConciseSetExpression> operands)
+  {
+    return new OperatorExpression(false, toArray(operands));
+  }
+
+  public static ImmutableConciseSetExpression not(ImmutableConciseSetExpression operand)
+  {
+    return new NotExpression(operand);
+  }
+
+  /**
+   * Evaluates the expression, complementing up to the greatest element of
+   * the sets of the tree
+   */
+  public ImmutableConciseSet evaluate()
+  {
+    return evaluate(getLast() + 1);
+  }
+
+  /**
+   * Evaluates the expression, complementing within <code>[0, length)</code>
+   *
+   * @param length number of integers considered by the NOT operators
+   *
+   * @return the elements lower than <code>length</code> selected by the expression
+   */
+  public ImmutableConciseSet evaluate(int length)
+  {
+    ImmutableConciseSet.WordWriter writer = new ImmutableConciseSet.WordWriter();
+    evaluate(length, writer);
+    return writer.build();
+  }
+
+  /**
+   * Counts the elements selected by the expression without encoding them,
+   * complementing up to the greatest element of the sets of the tree
+   */
+  public int size()
+  {
+    return size(getLast() + 1);
+  }
+
+  /**
+   * Counts the elements selected by the expression without encoding them,
+   * complementing within <code>[0, length)</code>
+   */
+  public int size(int length)
+  {
+    ImmutableConciseSet.WordCounter counter = new ImmutableConciseSet.WordCounter();
+    evaluate(length, counter);
+    return counter.getCount();
+  }
+
+  /**
+   * Gets the greatest element of the sets of the tree, -1 if they are empty
+   */
+  abstract int getLast();
+
+  abstract Cursor newCursor();
+
+  private void evaluate(int length, ImmutableConciseSet.WordWriter writer)
+  {
+    if (length <= 0) {
+      return;
+    }
+    int lastBlock = (length - 1) / ConciseSetUtils.MAX_LITERAL_LENGTH;
+    int lastBit = ConciseSetUtils.maxLiteralLengthModulus(length - 1);
+
+    Cursor cursor = newCursor();
+    int block = 0;
+    while (block <= lastBlock) {
+      if (cursor.kind == Cursor.ZERO_FILL && cursor.blocks == Cursor.UNBOUNDED) {
+        // nothing else is set
+        return;
+      }
+
+      int blocks = Math.min(cursor.blocks, lastBlock + 1 - block);
+      if (block + blocks > lastBlock) {
+        // the last block is cut at the given length
+        int literal;
+        switch (cursor.kind) {
+          case Cursor.ZERO_FILL:
+            return;
+          case Cursor.ONE_FILL:
+            writer.addOneFill(blocks - 1);
+            literal = ConciseSetUtils.ALL_ONES_LITERAL;
+            break;
+          default:
+            literal = cursor.literal;
+        }
+        writer.addLiteral(ConciseSetUtils.clearBitsAfterInLastWord(literal, lastBit));
+        return;
+      }
+
+      switch (cursor.kind) {
+        case Cursor.ZERO_FILL:
+          writer.addZeroFill(blocks);
+          break;
+        case Cursor.ONE_FILL:
+          writer.addOneFill(blocks);
+          break;
+        default:
+          writer.addLiteral(cursor.literal);
+      }
+      cursor.skip(blocks);
+      block += blocks;
+    }
+  }
+
+  private static ImmutableConciseSetExpression[] toArray(List<ImmutableConciseSetExpression> operands)
+  {
+    if (operands.isEmpty()) {
+      throw new IllegalArgumentException("at least one operand expected");
+    }
+    return operands.toArray(new ImmutableConciseSetExpression[operands.size()]);
+  }
+
+  /**
+   * Current run of blocks of a node: a literal, or a fill of
+   * <code>blocks</code> blocks
+   */
+  abstract static class Cursor
+  {
+    static final int ZERO_FILL = 0;
+    static final int ONE_FILL = 1;
+    static final int LITERAL = 2;
+
+    /**
+     * Length of the zero fill following the last word of a set
+     */
+    static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    int kind;
+    int literal;
+    int blocks;
+
+    /**
+     * Consumes the given number of blocks, moving past the current run if needed
+     */
+    abstract void skip(int count);
+  }
+
+  private static class SetExpression extends ImmutableConciseSetExpression
+  {
+    private final ImmutableConciseSet set;
+
+    SetExpression(ImmutableConciseSet set)
+    {
+      this.set = set;
+    }
+
+    @Override
+    int getLast()
+    {
+      return set.size() == 0 ? -1 : set.getLast();
+    }
+
+    @Override
+    Cursor newCursor()
+    {
+      return new SetCursor(set);
+    }
+  }
+
+  private static class SetCursor extends Cursor
+  {
+    private final ImmutableConciseSet.WordCursor words;
+
+    SetCursor(ImmutableConciseSet set)
+    {
+      words = new ImmutableConciseSet.WordCursor(set);
+      update();
+    }
+
+    @Override
+    void skip(int count)
+    {
+      if (words.hasWord()) {
+        words.skip(count);
+        update();
+      }
+    }
+
+    private void update()
+    {
+      if (!words.hasWord()) {
+        kind = ZERO_FILL;
+        blocks = UNBOUNDED;
+      } else if (words.isLiteral()) {
+        kind = LITERAL;
+        literal = words.getWord();
+        blocks = 1;
+      } else {
+        kind = words.isOneFill() ? ONE_FILL : ZERO_FILL;
+        blocks = words.getRemaining();
+      }
+    }
+  }
+
+  private static class OperatorExpression extends ImmutableConciseSetExpression
+  {
+    private final boolean and;
+    private final ImmutableConciseSetExpression[] operands;
+
+    OperatorExpression(boolean and, ImmutableConciseSetExpression[] operands)
+    {
+      this.and = and;
+      this.operands = operands;
+    }
+
+    @Override
+    int getLast()
+    {
+      int last = -1;
+      for (ImmutableConciseSetExpression operand : operands) {
+        last = Math.max(last, operand.getLast());
+      }
+      return last;
+    }
+
+    @Override
+    Cursor newCursor()
+    {
+      Cursor[] cursors = new Cursor[operands.length];
+      for (int i = 0; i < operands.length; i++) {
+        cursors[i] = operands[i].newCursor();
+      }
+      return new OperatorCursor(and, cursors);
+    }
+  }
+
+  /**
+   * AND, or OR, of the runs of the operands. The fill that decides the
+   * result (zero fills for AND, one fills for OR) is taken as long as
+   * possible, the other one as short as possible.
+   */
+  private static class OperatorCursor extends Cursor
+  {
+    private final int dominantKind;
+    private final int neutralKind;
+    private final Cursor[] operands;
+
+    OperatorCursor(boolean and, Cursor[] operands)
+    {
+      this.dominantKind = and ? ZERO_FILL : ONE_FILL;
+      this.neutralKind = and ? ONE_FILL : ZERO_FILL;
+      this.operands = operands;
+      update();
+    }
+
+    @Override
+    void skip(int count)
+    {
+      for (Cursor operand : operands) {
+        operand.skip(count);
+      }
+      update();
+    }
+
+    private void update()
+    {
+      boolean and = dominantKind == ZERO_FILL;
+      int dominantBlocks = 0;
+      int neutralBlocks = UNBOUNDED;
+      boolean literals = false;
+      int bits = and ? ConciseSetUtils.ALL_ONES_LITERAL : ConciseSetUtils.ALL_ZEROS_LITERAL;
+
+      for (Cursor operand : operands) {
+        if (operand.kind == dominantKind) {
+          dominantBlocks = Math.max(dominantBlocks, operand.blocks);
+        } else if (operand.kind == neutralKind) {
+          neutralBlocks = Math.min(neutralBlocks, operand.blocks);
+        } else {
+          literals = true;
+          bits = and ? bits & operand.literal : bits | operand.literal;
+        }
+      }
+
+      if (dominantBlocks > 0) {
+        kind = dominantKind;
+        blocks = dominantBlocks;
+      } else if (!literals) {
+        kind = neutralKind;
+        blocks = neutralBlocks;
+      } else {
+        kind = LITERAL;
+        literal = bits;
+        blocks = 1;
+      }
+    }
+  }
+
+  private static class NotExpression extends ImmutableConciseSetExpression
+  {
+    private final ImmutableConciseSetExpression operand;
+
+    NotExpression(ImmutableConciseSetExpression operand)
+    {
+      this.operand = operand;
+    }
+
+    @Override
+    int getLast()
+    {
+      return operand.getLast();
+    }
+
+    @Override
+    Cursor newCursor()
+    {
+      return new NotCursor(operand.newCursor());
+    }
+  }
+
+  private static class NotCursor extends Cursor
+  {
+    private final Cursor operand;
+
+    NotCursor(Cursor operand)
+    {
+      this.operand = operand;
+      update();
+    }
+
+    @Override
+    void skip(int count)
+    {
+      operand.skip(count);
+      update();
+    }
+
+    private void update()
+    {
+      blocks = operand.blocks;
+      switch (operand.kind) {
+        case ZERO_FILL:
+          kind = ONE_FILL;
+          break;
+        case ONE_FILL:
+          kind = ZERO_FILL;
+          break;
+        default:
+          kind = LITERAL;
+          literal = ConciseSetUtils.ALL_ZEROS_LITERAL | ~operand.literal;
+      }
+    }
+  }
+}
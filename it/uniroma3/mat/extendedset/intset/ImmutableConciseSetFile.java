@@ -0,0 +1,161 @@
+/*
+* Copyright 2012 Metamarkets Group Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package it.uniroma3.mat.extendedset.intset;
+
+import com.google.common.primitives.Ints;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * File holding many {@link ImmutableConciseSet} instances back to back.
+ * <p>
+ * The file starts with the magic number, the format version and the number
+ * of sets, followed by <code>count + 1</code> offsets (relative to the end of
+ * the offset table) and then the sets as written by
+ * {@link ImmutableConciseSet#toBytes()}. The file is mapped once, and
+ * {@link #get(int)} returns sets that read the mapped memory directly.
+ */
+public class ImmutableConciseSetFile
+{
+  public final static int FILE_MAGIC = 0x5EC0F11E;
+  public final static int FILE_VERSION = 1;
+
+  private final static int FILE_HEADER_INTS = 3;
+
+  private final ByteBuffer data;
+  private final int[] offsets;
+
+  private ImmutableConciseSetFile(ByteBuffer data, int[] offsets)
+  {
+    this.data = data;
+    this.offsets = offsets;
+  }
+
+  /**
+   * Writes the given sets to a file, replacing its content
+   */
+  public static void write(File file, List<ImmutableConciseSet> sets) throws IOException
+  {
+    int[] offsets = new int[sets.size() + 1];
+    long offset = 0;
+    for (int i = 0; i < sets.size(); i++) {
+      offsets[i] = (int) offset;
+      offset += (long) (ImmutableConciseSet.HEADER_INTS + sets.get(i).getLastWordIndex() + 1) * Ints.BYTES;
+    }
+    long headerBytes = (long) (FILE_HEADER_INTS + offsets.length) * Ints.BYTES;
+    if (headerBytes + offset > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("too many words to be mapped: " + (headerBytes + offset) + " bytes");
+    }
+    offsets[sets.size()] = (int) offset;
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeInt(FILE_MAGIC);
+      out.writeInt(FILE_VERSION);
+      out.writeInt(sets.size());
+      for (int o : offsets) {
+        out.writeInt(o);
+      }
+      for (ImmutableConciseSet set : sets) {
+        out.write(set.toBytes());
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Maps a file written by {@link #write(File, List)}. The sets returned by
+   * the instance remain valid after the file has been closed.
+   */
+  public static ImmutableConciseSetFile map(File file) throws IOException
+  {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return open(mapped);
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Reads the offset table of a buffer holding the content of a file written
+   * by {@link #write(File, List)}
+   */
+  public static ImmutableConciseSetFile open(ByteBuffer buffer) throws IOException
+  {
+    if (buffer.capacity() < FILE_HEADER_INTS * Ints.BYTES
+        || buffer.getInt(0) != FILE_MAGIC
+        || buffer.getInt(Ints.BYTES) != FILE_VERSION) {
+      throw new IOException("not a set file");
+    }
+    int count = buffer.getInt(2 * Ints.BYTES);
+    // the offset table must fit the buffer
+    if (count < 0 || count > buffer.capacity() / Ints.BYTES - FILE_HEADER_INTS - 1) {
+      throw new IOException("truncated set file: " + Integer.toString(count) + " sets");
+    }
+    int dataStart = (FILE_HEADER_INTS + count + 1) * Ints.BYTES;
+    long dataLength = (long) buffer.capacity() - dataStart;
+
+    int[] offsets = new int[count + 1];
+    for (int i = 0; i <= count; i++) {
+      offsets[i] = buffer.getInt((FILE_HEADER_INTS + i) * Ints.BYTES);
+      if (offsets[i] < (i == 0 ? 0 : offsets[i - 1]) || offsets[i] > dataLength) {
+        throw new IOException("corrupt set file: offset " + Integer.toString(offsets[i]) + " of set " + i);
+      }
+    }
+
+    ByteBuffer data = buffer.duplicate();
+    data.position(dataStart);
+    return new ImmutableConciseSetFile(data.slice(), offsets);
+  }
+
+  /**
+   * Gets the number of sets within the file
+   */
+  public int size()
+  {
+    return offsets.length - 1;
+  }
+
+  /**
+   * Gets the <code>i</code><sup>th</sup> set of the file, without copying its words
+   */
+  public ImmutableConciseSet get(int i)
+  {
+    if (i < 0 || i >= size()) {
+      throw new IndexOutOfBoundsException(Integer.toString(i));
+    }
+    ByteBuffer slice = data.duplicate();
+    slice.limit(offsets[i + 1]);
+    slice.position(offsets[i]);
+    return new ImmutableConciseSet(slice.slice());
+  }
+}
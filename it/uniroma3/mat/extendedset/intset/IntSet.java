@@ -287,6 +287,24 @@ public interface IntSet extends Cloneable, Comparable<IntSet> {
      * @return a clone of the IntIterator
      */
     public IntIterator clone();
+
+		/**
+		 * Copies the next elements into <code>dst</code>, as many as fit in
+		 * the array. Implementations should override it to decode whole words
+		 * at a time.
+		 * 
+		 * @param dst
+		 *            array receiving the elements
+		 * @return the number of copied elements, less than
+		 *         <code>dst.length</code> only at the end of the iteration
+		 */
+		public default int nextBatch(int[] dst) {
+			int n = 0;
+			while (n < dst.length && hasNext()) {
+				dst[n++] = next();
+			}
+			return n;
+		}
 	}
 
 	/**
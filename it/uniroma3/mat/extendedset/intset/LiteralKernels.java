@@ -0,0 +1,72 @@
+/*
+* Copyright 2012 Metamarkets Group Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package it.uniroma3.mat.extendedset.intset;
+
+/**
+ * Bitwise operations over runs of literal words.
+ * <p>
+ * Each kernel is a counted loop over int arrays without branches, the shape
+ * that the HotSpot compiler turns into SIMD instructions, so that a run of
+ * literals is combined several words at a time on any JVM, without
+ * depending on an incubating module.
+ */
+final class LiteralKernels
+{
+  private LiteralKernels()
+  {
+  }
+
+  static void and(int[] a, int aFrom, int[] b, int bFrom, int[] out, int outFrom, int length)
+  {
+    for (int i = 0; i < length; i++) {
+      out[outFrom + i] = a[aFrom + i] & b[bFrom + i];
+    }
+  }
+
+  static void or(int[] a, int aFrom, int[] b, int bFrom, int[] out, int outFrom, int length)
+  {
+    for (int i = 0; i < length; i++) {
+      out[outFrom + i] = a[aFrom + i] | b[bFrom + i];
+    }
+  }
+
+  static void andNot(int[] a, int aFrom, int[] b, int bFrom, int[] out, int outFrom, int length)
+  {
+    for (int i = 0; i < length; i++) {
+      out[outFrom + i] = ConciseSetUtils.ALL_ZEROS_LITERAL | (a[aFrom + i] & ~b[bFrom + i]);
+    }
+  }
+
+  static void xor(int[] a, int aFrom, int[] b, int bFrom, int[] out, int outFrom, int length)
+  {
+    for (int i = 0; i < length; i++) {
+      out[outFrom + i] = ConciseSetUtils.ALL_ZEROS_LITERAL | (a[aFrom + i] ^ b[bFrom + i]);
+    }
+  }
+
+  /**
+   * Counts the set bits of literals, without their literal flags
+   */
+  static int bitCount(int[] literals, int from, int length)
+  {
+    int count = 0;
+    for (int i = 0; i < length; i++) {
+      count += Integer.bitCount(literals[from + i]);
+    }
+    return count - length;
+  }
+}
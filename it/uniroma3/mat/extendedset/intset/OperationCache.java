@@ -0,0 +1,285 @@
+/*
+* Copyright 2012 Metamarkets Group Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package it.uniroma3.mat.extendedset.intset;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Memoizes the results of unions and intersections, for the queries that
+ * combine the same sets over and over.
+ * <p>
+ * Results are keyed by the operator and the operands themselves, compared
+ * by identity and referenced weakly, so that a result is only returned for
+ * the very sets it was computed from, whatever their order. The operands are
+ * hashed by their fingerprints, see {@link ImmutableConciseSet#fingerprint()}.
+ * Once an operand is collected its results cannot be found anymore, and are
+ * left to the eviction.
+ * <p>
+ * Concurrent requests of the same result compute it once. The results are
+ * kept within a budget of bytes, the least recently used ones being evicted
+ * first, and are shared by all the callers.
+ */
+public class OperationCache
+{
+  private final static int UNION = 0;
+  private final static int INTERSECTION = 1;
+
+  // bytes taken by a result and its key besides the words and operands
+  private final static int ENTRY_OVERHEAD = 128;
+  // bytes taken by the fingerprint and the reference of an operand
+  private final static int OPERAND_OVERHEAD = 40;
+  // fingerprint of the null operands
+  private final static long EMPTY_FINGERPRINT = new ImmutableConciseSet().fingerprint();
+
+  // order of the operands in the keys
+  private final static Comparator<ImmutableConciseSet> OPERAND_ORDER = new Comparator<ImmutableConciseSet>()
+  {
+    @Override
+    public int compare(ImmutableConciseSet set1, ImmutableConciseSet set2)
+    {
+      int retVal = Long.compare(getFingerprint(set1), getFingerprint(set2));
+      if (retVal != 0) {
+        return retVal;
+      }
+      return Integer.compare(System.identityHashCode(set1), System.identityHashCode(set2));
+    }
+  };
+
+  private final Cache<Key, ImmutableConciseSet> results;
+
+  /**
+   * @param maxBytes maximum number of bytes taken by the results
+   */
+  public OperationCache(long maxBytes)
+  {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("non-negative size expected: " + Long.toString(maxBytes));
+    }
+    // a single segment, so that any result within the budget fits
+    this.results = CacheBuilder.newBuilder()
+                               .concurrencyLevel(1)
+                               .maximumWeight(maxBytes)
+                               .weigher(
+                                   new Weigher<Key, ImmutableConciseSet>()
+                                   {
+                                     @Override
+                                     public int weigh(Key key, ImmutableConciseSet result)
+                                     {
+                                       return key.fingerprints.length * OPERAND_OVERHEAD
+                                              + getWordCount(result) * 4 + ENTRY_OVERHEAD;
+                                     }
+                                   }
+                               )
+                               .recordStats()
+                               .build();
+  }
+
+  public ImmutableConciseSet union(final ImmutableConciseSet set1, final ImmutableConciseSet set2)
+  {
+    if (isEmpty(set1) || isEmpty(set2)) {
+      return ImmutableConciseSet.union(set1, set2);
+    }
+    return get(
+        new Key(UNION, set1, set2),
+        new Callable<ImmutableConciseSet>()
+        {
+          @Override
+          public ImmutableConciseSet call()
+          {
+            return ImmutableConciseSet.union(set1, set2);
+          }
+        }
+    );
+  }
+
+  public ImmutableConciseSet union(final List<ImmutableConciseSet> sets)
+  {
+    return get(
+        new Key(UNION, sets.toArray(new ImmutableConciseSet[sets.size()])),
+        new Callable<ImmutableConciseSet>()
+        {
+          @Override
+          public ImmutableConciseSet call()
+          {
+            return ImmutableConciseSet.union(sets);
+          }
+        }
+    );
+  }
+
+  public ImmutableConciseSet intersection(final ImmutableConciseSet set1, final ImmutableConciseSet set2)
+  {
+    if (isEmpty(set1) || isEmpty(set2)) {
+      return new ImmutableConciseSet();
+    }
+    return get(
+        new Key(INTERSECTION, set1, set2),
+        new Callable<ImmutableConciseSet>()
+        {
+          @Override
+          public ImmutableConciseSet call()
+          {
+            return ImmutableConciseSet.intersection(set1, set2);
+          }
+        }
+    );
+  }
+
+  public ImmutableConciseSet intersection(final List<ImmutableConciseSet> sets)
+  {
+    return get(
+        new Key(INTERSECTION, sets.toArray(new ImmutableConciseSet[sets.size()])),
+        new Callable<ImmutableConciseSet>()
+        {
+          @Override
+          public ImmutableConciseSet call()
+          {
+            return ImmutableConciseSet.intersection(sets);
+          }
+        }
+    );
+  }
+
+  /**
+   * Gets the hit, miss and eviction counts
+   */
+  public CacheStats stats()
+  {
+    return results.stats();
+  }
+
+  /**
+   * Gets the number of cached results
+   */
+  public long size()
+  {
+    return results.size();
+  }
+
+  public void invalidateAll()
+  {
+    results.invalidateAll();
+  }
+
+  private ImmutableConciseSet get(Key key, Callable<ImmutableConciseSet> operation)
+  {
+    try {
+      return results.get(key, operation);
+    }
+    catch (ExecutionException e) {
+      // the operations only throw unchecked exceptions
+      throw new IllegalStateException(e.getCause());
+    }
+    catch (UncheckedExecutionException e) {
+      throw (RuntimeException) e.getCause();
+    }
+    catch (ExecutionError e) {
+      throw (Error) e.getCause();
+    }
+  }
+
+  private static boolean isEmpty(ImmutableConciseSet set)
+  {
+    return set == null || set.size() == 0;
+  }
+
+  private static long getFingerprint(ImmutableConciseSet set)
+  {
+    return set == null ? EMPTY_FINGERPRINT : set.fingerprint();
+  }
+
+  private static int getWordCount(ImmutableConciseSet result)
+  {
+    return Math.max(0, result.getLastWordIndex() + 1);
+  }
+
+  /**
+   * Operator and operands, sorted since union and intersection are
+   * commutative. Keys are equal only when their operands are the same
+   * instances, a cleared reference matching no operand.
+   */
+  private static class Key
+  {
+    private final int operator;
+    private final long[] fingerprints;
+    // null for the null operands
+    private final WeakReference<?>[] operands;
+    private final int hashCode;
+
+    Key(int operator, ImmutableConciseSet... sets)
+    {
+      ImmutableConciseSet[] sorted = sets.clone();
+      Arrays.sort(sorted, OPERAND_ORDER);
+      this.operator = operator;
+      this.fingerprints = new long[sorted.length];
+      this.operands = new WeakReference<?>[sorted.length];
+      for (int i = 0; i < sorted.length; i++) {
+        fingerprints[i] = getFingerprint(sorted[i]);
+        operands[i] = sorted[i] == null ? null : new WeakReference<ImmutableConciseSet>(sorted[i]);
+      }
+      this.hashCode = 31 * operator + Arrays.hashCode(fingerprints);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      if (operator != other.operator || !Arrays.equals(fingerprints, other.fingerprints)) {
+        return false;
+      }
+      for (int i = 0; i < operands.length; i++) {
+        if (!isSameOperand(operands[i], other.operands[i])) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static boolean isSameOperand(WeakReference<?> operand1, WeakReference<?> operand2)
+    {
+      if (operand1 == null || operand2 == null) {
+        return operand1 == operand2;
+      }
+      Object set = operand1.get();
+      return set != null && set == operand2.get();
+    }
+  }
+}
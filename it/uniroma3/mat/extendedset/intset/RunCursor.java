@@ -0,0 +1,167 @@
+/*
+* Copyright 2012 Metamarkets Group Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package it.uniroma3.mat.extendedset.intset;
+
+/**
+ * Cursor over the maximal runs of consecutive integers of a compressed set.
+ * <p>
+ * One fills are returned as a whole, the set bits of literals are grouped
+ * with <code>numberOfTrailingZeros</code>, and runs touching each other
+ * across words are merged, so that a dense set is visited without
+ * enumerating its elements:
+ * <pre>
+ * RunCursor runs = set.runCursor();
+ * while (runs.next()) {
+ *   process(runs.getStart(), runs.getEnd());
+ * }
+ * </pre>
+ */
+public abstract class RunCursor
+{
+  private int start;
+  private int end;
+
+  // next run within a single word, not merged yet
+  private boolean started = false;
+  private boolean hasPiece;
+  private int pieceStart;
+  private int pieceEnd;
+
+  // literal bits not returned yet
+  private int bits = 0;
+  private int bitsOffset;
+
+  // one fill given by the last call to nextPart()
+  private boolean hasFill;
+  private int fillStart;
+  private int fillEnd;
+
+  RunCursor()
+  {
+  }
+
+  /**
+   * Moves to the next run
+   *
+   * @return <code>false</code> if there are no more runs
+   */
+  public boolean next()
+  {
+    if (!started) {
+      started = true;
+      hasPiece = nextPiece();
+    }
+    if (!hasPiece) {
+      return false;
+    }
+    start = pieceStart;
+    end = pieceEnd;
+    while ((hasPiece = nextPiece()) && pieceStart == end) {
+      end = pieceEnd;
+    }
+    return true;
+  }
+
+  /**
+   * Gets the first integer of the current run
+   */
+  public int getStart()
+  {
+    return start;
+  }
+
+  /**
+   * Gets the integer following the last one of the current run
+   */
+  public int getEnd()
+  {
+    return end;
+  }
+
+  /**
+   * Hashes the runs not visited yet into 64 bits. Sets with the same
+   * elements get the same fingerprint whatever their encoding.
+   *
+   * @return the fingerprint, never 0
+   */
+  public long fingerprint()
+  {
+    long retVal = 0x9E3779B97F4A7C15L;
+    while (next()) {
+      retVal = mix(retVal ^ start);
+      retVal = mix(retVal ^ end);
+    }
+    return retVal == 0 ? 1 : retVal;
+  }
+
+  /**
+   * Moves to the next literal or fill of the set, reporting literals through
+   * {@link #setLiteral(int, int)} and one fills through
+   * {@link #setOneFill(int, int)}
+   *
+   * @return <code>false</code> if there are no more words
+   */
+  abstract boolean nextPart();
+
+  /**
+   * Reports the set bits of a literal whose first bit is <code>offset</code>
+   */
+  final void setLiteral(int offset, int literalBits)
+  {
+    bits = literalBits;
+    bitsOffset = offset;
+  }
+
+  /**
+   * Reports the integers <code>[from, to)</code> of a one fill
+   */
+  final void setOneFill(int from, int to)
+  {
+    hasFill = from < to;
+    fillStart = from;
+    fillEnd = to;
+  }
+
+  // finalizer of the SplitMix64 generator
+  private static long mix(long z)
+  {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  private boolean nextPiece()
+  {
+    while (bits == 0) {
+      hasFill = false;
+      if (!nextPart()) {
+        return false;
+      }
+      if (hasFill) {
+        pieceStart = fillStart;
+        pieceEnd = fillEnd;
+        return true;
+      }
+    }
+    int first = Integer.numberOfTrailingZeros(bits);
+    int length = Integer.numberOfTrailingZeros(~(bits >>> first));
+    pieceStart = bitsOffset + first;
+    pieceEnd = pieceStart + length;
+    bits &= ~(((1 << length) - 1) << first);
+    return true;
+  }
+}
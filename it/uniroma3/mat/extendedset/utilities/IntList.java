@@ -1,15 +1,20 @@
 package it.uniroma3.mat.extendedset.utilities;
 
 import java.nio.IntBuffer;
-import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
+ * Growable list of ints stored in a single array, whose capacity is doubled
+ * when full
  */
 public class IntList
 {
-  private final ArrayList<int[]> baseLists = new ArrayList<int[]>();
+  private static final int[] EMPTY = new int[0];
 
-  private final int allocateSize;
+  private int[] array;
+
+  // capacity of the array allocated by the first write, while the list has none
+  private int reserved;
 
   private int maxIndex;
 
@@ -20,8 +25,9 @@ public class IntList
 
   public IntList(final int allocateSize)
   {
-    this.allocateSize = allocateSize;
+    this.reserved = Math.max(allocateSize, 0);
 
+    array = EMPTY;
     maxIndex = -1;
   }
   
@@ -33,8 +39,26 @@ public class IntList
   //
   public void setLength(int index)
   {
+	  ensureCapacity(index + 1);
 	  maxIndex = index;
   }
+
+  /**
+   * Gets the number of ints the list holds before growing, including the
+   * array allocated by the first write
+   */
+  public int capacity()
+  {
+    return array.length == 0 ? reserved : array.length;
+  }
+
+  /**
+   * Empties the list, keeping its array
+   */
+  public void clear()
+  {
+    maxIndex = -1;
+  }
   public boolean isEmpty()
   {
     return (length() == 0);
@@ -47,22 +71,11 @@ public class IntList
 
   public void set(int index, int value)
   {
-    int subListIndex = index / allocateSize;
-
-    if (subListIndex >= baseLists.size()) {
-      for (int i = baseLists.size(); i <= subListIndex; ++i) {
-        baseLists.add(null);
-      }
-    }
-
-    int[] baseList = baseLists.get(subListIndex);
-
-    if (baseList == null) {
-      baseList = new int[allocateSize];
-      baseLists.set(subListIndex, baseList);
+    if (index >= array.length) {
+      ensureCapacity(index + 1);
     }
 
-    baseList[index % allocateSize] = value;
+    array[index] = value;
 
     if (index > maxIndex) {
       maxIndex = index;
@@ -75,46 +88,46 @@ public class IntList
       throw new ArrayIndexOutOfBoundsException(index);
     }
 
-    int subListIndex = index / allocateSize;
-    int[] baseList = baseLists.get(subListIndex);
-
-    if (baseList == null) {
-      return 0;
-    }
-
-    return baseList[index % allocateSize];
+    return array[index];
   }
 
   public int baseListCount()
   {
-    return baseLists.size();
+    return isEmpty() ? 0 : 1;
   }
 
   public IntBuffer getBaseList(int index)
   {
-    final int[] array = baseLists.get(index);
-    if (array == null) {
+    if (index != 0 || isEmpty()) {
       return null;
     }
+    return IntBuffer.wrap(array, 0, length()).asReadOnlyBuffer();
+  }
 
-    final IntBuffer retVal = IntBuffer.wrap(array);
-
-    if (index + 1 == baseListCount()) {
-      retVal.limit(maxIndex - (index * allocateSize));
-    }
+  public int[] toArray()
+  {
+    return Arrays.copyOf(array, length());
+  }
 
-    return retVal.asReadOnlyBuffer();
+  /**
+   * Hands the ints over to a buffer of exactly {@link #length()} ints,
+   * without copying them. The list gives its array up and is left empty,
+   * keeping its capacity for the array allocated by the next write.
+   */
+  public IntBuffer detach()
+  {
+    IntBuffer retVal = IntBuffer.wrap(array, 0, length()).slice();
+    reserved = capacity();
+    array = EMPTY;
+    maxIndex = -1;
+    return retVal;
   }
 
-  public int[] toArray()
+  private void ensureCapacity(int capacity)
   {
-    int[] retVal = new int[length()];
-    int currIndex = 0;
-    for (int[] arr : baseLists) {
-      int min = Math.min(length() - currIndex, arr.length);
-      System.arraycopy(arr, 0, retVal, currIndex, min);
-      currIndex += min;
+    if (capacity > array.length) {
+      int size = array.length == 0 && reserved > 0 ? reserved : Math.max(2 * array.length, 16);
+      array = Arrays.copyOf(array, Math.max(capacity, size));
     }
-    return retVal;
   }
 }